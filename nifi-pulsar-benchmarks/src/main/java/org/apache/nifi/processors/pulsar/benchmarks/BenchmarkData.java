@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+/**
+ * The content that the benchmarks publish and consume. It is generated rather than random, so that every run of a
+ * benchmark does exactly the same work.
+ */
+final class BenchmarkData {
+
+    static final String TOPIC = "persistent://public/default/benchmark";
+
+    static final byte[] DEMARCATOR = "\n".getBytes(StandardCharsets.UTF_8);
+
+    static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+            new RecordField("id", RecordFieldType.STRING.getDataType()),
+            new RecordField("name", RecordFieldType.STRING.getDataType()),
+            new RecordField("payload", RecordFieldType.STRING.getDataType())));
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return a payload of the given size, which contains neither the demarcator nor a field separator.
+     */
+    static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        return payload;
+    }
+
+    /**
+     * @return the given number of payloads, separated by the demarcator.
+     */
+    static byte[] demarcated(int count, int size) {
+        final byte[] payload = payload(size);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(count * (size + DEMARCATOR.length));
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.write(DEMARCATOR, 0, DEMARCATOR.length);
+            }
+            out.write(payload, 0, payload.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a record whose CSV form, as written by {@link CsvRecordSetWriterFactory}, is roughly the given size.
+     */
+    static Record record(int index, int size) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("id", String.valueOf(index));
+        values.put("name", "record-" + index % 100);
+        values.put("payload", new String(payload(Math.max(0, size - 20)), StandardCharsets.UTF_8));
+        return new MapRecord(SCHEMA, values);
+    }
+
+    static List<Record> records(int count, int size) {
+        final List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(record(i, size));
+        }
+        return records;
+    }
+
+    /**
+     * @return the given number of lines in the form read by {@link CsvRecordReaderFactory}.
+     */
+    static byte[] csv(int count, int size) {
+        final StringBuilder csv = new StringBuilder();
+        for (Record record : records(count, size)) {
+            csv.append(record.getAsString("id")).append(',')
+                .append(record.getAsString("name")).append(',')
+                .append(record.getAsString("payload")).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Map<String, String> properties() {
+        final Map<String, String> properties = new HashMap<>();
+        properties.put("source", "benchmark");
+        properties.put("tenant", "public");
+        return Collections.unmodifiableMap(properties);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsar;
+import org.apache.nifi.pulsar.inmemory.InMemoryPulsarClientService;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Triggers ConsumePulsar once per invocation, which receives a batch from an in-memory Pulsar broker, writes it to
+ * FlowFiles and acknowledges it. The score is batches per second; multiply it by batchSize for messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsumePulsarBenchmark {
+
+    @Param({"100", "1024"})
+    private int messageSize;
+
+    @Param({"1000"})
+    private int batchSize;
+
+    @Param({"Exclusive", "Shared"})
+    private String subscriptionType;
+
+    private TestRunner runner;
+    private Producer<byte[]> producer;
+    private List<byte[]> payloads;
+    private Map<String, String> properties;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InitializationException, PulsarClientException {
+        final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+
+        runner = TestRunners.newTestRunner(ConsumePulsar.class);
+        runner.addControllerService("Pulsar Client Service", service);
+        runner.enableControllerService(service);
+        runner.setProperty(ConsumePulsar.PULSAR_CLIENT_SERVICE, "Pulsar Client Service");
+        runner.setProperty(ConsumePulsar.TOPICS, BenchmarkData.TOPIC);
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "benchmark");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, subscriptionType);
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_SIZE, String.valueOf(batchSize));
+
+        // Schedule the processor once, so that each invocation only measures onTrigger
+        runner.run(1, false, true);
+        runner.clearTransferState();
+
+        producer = service.getPulsarClient().newProducer().topic(BenchmarkData.TOPIC).create();
+        properties = BenchmarkData.properties();
+        payloads = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            payloads.add(BenchmarkData.payload(messageSize));
+        }
+    }
+
+    /**
+     * Publishes the batch that the next invocation consumes. The subscription only receives messages published
+     * after it was created, so each batch is consumed exactly once.
+     */
+    @Setup(Level.Invocation)
+    public void publish() throws PulsarClientException {
+        for (byte[] payload : payloads) {
+            producer.newMessage().properties(properties).value(payload).sendAsync();
+        }
+        producer.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws PulsarClientException {
+        producer.close();
+        runner.run(1, true, false);
+        runner.shutdown();
+    }
+
+    @Benchmark
+    public int consume() {
+        runner.run(1, false, false);
+        final int flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).size();
+
+        // The mock session keeps every FlowFile and event in memory, so drop them before the next invocation
+        runner.clearTransferState();
+        runner.clearProvenanceEvents();
+        return flowFiles;
+    }
+}
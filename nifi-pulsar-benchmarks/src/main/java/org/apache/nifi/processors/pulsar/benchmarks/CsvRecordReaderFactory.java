@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+/**
+ * Reads each line as a record of comma-separated values, one for each field of a fixed schema. It does the least
+ * work a reader can do, so that the record benchmarks measure the processors rather than the parser.
+ */
+public class CsvRecordReaderFactory extends AbstractControllerService implements RecordReaderFactory {
+
+    private final RecordSchema schema;
+
+    public CsvRecordReaderFactory(RecordSchema schema) {
+        this.schema = schema;
+    }
+
+    @Override
+    public RecordReader createRecordReader(Map<String, String> variables, InputStream in, long inputLength, ComponentLog logger) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        final List<String> fieldNames = schema.getFieldNames();
+
+        return new RecordReader() {
+            @Override
+            public Record nextRecord(boolean coerceTypes, boolean dropUnknownFields) throws IOException, MalformedRecordException {
+                final String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+
+                final String[] values = line.split(",", -1);
+                if (values.length != fieldNames.size()) {
+                    throw new MalformedRecordException("Expected " + fieldNames.size() + " values but found " + values.length);
+                }
+
+                final Map<String, Object> valueMap = new HashMap<>();
+                for (int i = 0; i < values.length; i++) {
+                    valueMap.put(fieldNames.get(i), values[i]);
+                }
+                return new MapRecord(schema, valueMap);
+            }
+
+            @Override
+            public RecordSchema getSchema() {
+                return schema;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+}
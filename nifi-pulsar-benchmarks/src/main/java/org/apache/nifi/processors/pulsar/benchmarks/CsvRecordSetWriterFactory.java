@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+
+/**
+ * Writes each record as a line of comma-separated values, the counterpart of {@link CsvRecordReaderFactory}.
+ */
+public class CsvRecordSetWriterFactory extends AbstractControllerService implements RecordSetWriterFactory {
+
+    private static final byte[] SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LINE_END = "\n".getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+        return readSchema;
+    }
+
+    @Override
+    public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out, Map<String, String> variables) {
+        return new RecordSetWriter() {
+            private int recordCount = 0;
+
+            @Override
+            public void beginRecordSet() {
+                recordCount = 0;
+            }
+
+            @Override
+            public WriteResult finishRecordSet() {
+                return WriteResult.of(recordCount, Collections.emptyMap());
+            }
+
+            @Override
+            public WriteResult write(RecordSet recordSet) throws IOException {
+                beginRecordSet();
+                for (Record record = recordSet.next(); record != null; record = recordSet.next()) {
+                    write(record);
+                }
+                return finishRecordSet();
+            }
+
+            @Override
+            public WriteResult write(Record record) throws IOException {
+                boolean first = true;
+                for (String fieldName : record.getSchema().getFieldNames()) {
+                    if (!first) {
+                        out.write(SEPARATOR);
+                    }
+                    final String value = record.getAsString(fieldName);
+                    if (value != null) {
+                        out.write(value.getBytes(StandardCharsets.UTF_8));
+                    }
+                    first = false;
+                }
+                out.write(LINE_END);
+                recordCount++;
+                return WriteResult.of(1, Collections.emptyMap());
+            }
+
+            @Override
+            public String getMimeType() {
+                return "text/csv";
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+}
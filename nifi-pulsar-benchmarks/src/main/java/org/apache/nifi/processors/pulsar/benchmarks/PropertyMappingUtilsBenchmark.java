@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processors.pulsar.utils.PropertyMappingUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Maps message properties to FlowFile attributes, which the consumers do for every message they receive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertyMappingUtilsBenchmark {
+
+    @Param({"1", "5", "20"})
+    private int mappingCount;
+
+    private String mappings;
+    private Map<String, String> properties;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final StringBuilder builder = new StringBuilder();
+        properties = new HashMap<>();
+
+        for (int i = 0; i < mappingCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            // Alternate between renamed and same-named mappings, as both forms are allowed
+            builder.append(i % 2 == 0 ? "attribute" + i + "=property" + i : "property" + i);
+            properties.put("property" + i, "value" + i);
+        }
+
+        mappings = builder.toString();
+    }
+
+    @Benchmark
+    public Map<String, String> getMappedValues() {
+        return PropertyMappingUtils.getMappedValues(mappings, properties::get);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processors.pulsar.utils.PublisherLease;
+import org.apache.nifi.pulsar.inmemory.InMemoryPulsar;
+import org.apache.nifi.serialization.record.ListRecordSet;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Publishes one FlowFile per invocation through a PublisherLease, either as demarcated content or as records, to
+ * an in-memory Pulsar broker. The score is FlowFiles per second; multiply it by messagesPerFlowFile for messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PublisherLeaseBenchmark {
+
+    @Param({"100", "1024"})
+    private int messageSize;
+
+    @Param({"1000"})
+    private int messagesPerFlowFile;
+
+    @Param({"true", "false"})
+    private boolean async;
+
+    private InMemoryPulsar pulsar;
+    private PublisherLease lease;
+    private MockFlowFile flowFile;
+    private Map<String, String> properties;
+    private byte[] content;
+    private List<Record> records;
+    private CsvRecordSetWriterFactory writerFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws PulsarClientException {
+        // Without a subscription on the topic, the broker does not keep the messages it is sent
+        pulsar = new InMemoryPulsar();
+        lease = new PublisherLease(pulsar.newClient().newProducer().topic(BenchmarkData.TOPIC).create(),
+                new MockComponentLog("benchmark", this));
+
+        content = BenchmarkData.demarcated(messagesPerFlowFile, messageSize);
+        records = BenchmarkData.records(messagesPerFlowFile, messageSize);
+        properties = BenchmarkData.properties();
+        writerFactory = new CsvRecordSetWriterFactory();
+
+        flowFile = new MockFlowFile(1L);
+        flowFile.setData(content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lease.close();
+        pulsar.close();
+    }
+
+    @Benchmark
+    public long publishDemarcated() throws IOException {
+        lease.publish(flowFile, new ByteArrayInputStream(content), null, properties, BenchmarkData.DEMARCATOR, async);
+        return lease.complete();
+    }
+
+    @Benchmark
+    public long publishRecords() throws IOException {
+        lease.publish(flowFile, new ListRecordSet(BenchmarkData.SCHEMA, records), writerFactory, BenchmarkData.SCHEMA,
+                "id", properties, async);
+        return lease.complete();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.stream.io.util.StreamDemarcator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits FlowFile content into messages the way PublishPulsar and PublishPulsarRecord do, without publishing them,
+ * so that the cost of the demarcator can be told apart from the cost of sending. The score is FlowFiles per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamDemarcatorBenchmark {
+
+    @Param({"100", "1024", "65536"})
+    private int tokenSize;
+
+    @Param({"1000"})
+    private int tokenCount;
+
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        content = BenchmarkData.demarcated(tokenCount, tokenSize);
+    }
+
+    @Benchmark
+    public long split() throws IOException {
+        long bytes = 0;
+        try (final StreamDemarcator demarcator = new StreamDemarcator(new ByteArrayInputStream(content), BenchmarkData.DEMARCATOR, Integer.MAX_VALUE)) {
+            byte[] token;
+            while ((token = demarcator.nextToken()) != null) {
+                bytes += token.length;
+            }
+        }
+        return bytes;
+    }
+}
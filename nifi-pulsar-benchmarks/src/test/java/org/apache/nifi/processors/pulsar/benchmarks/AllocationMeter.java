@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Measures how many bytes the whole JVM allocates between {@link #start()} and {@link #stop()}, as the growth of the
+ * heap plus whatever the garbage collector freed in between. The processors under test run on the TestRunner's own
+ * threads, which are gone by the time they could be asked for their allocation counters, so the heap is the only
+ * place left to measure it. The figure includes the allocations of the TestRunner and the in-memory broker as well.
+ */
+final class AllocationMeter implements NotificationListener {
+
+    private static final long NOTIFICATION_WAIT_MILLIS = 1000;
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final AtomicLong freed = new AtomicLong(0);
+    private final AtomicLong notifications = new AtomicLong(0);
+
+    private long startUsed;
+    private long startCollections;
+
+    /**
+     * @return false if the JVM does not report its garbage collections, in which case nothing can be measured.
+     */
+    boolean isSupported() {
+        for (GarbageCollectorMXBean collector : collectors) {
+            if (!(collector instanceof NotificationEmitter)) {
+                return false;
+            }
+        }
+        return !collectors.isEmpty();
+    }
+
+    void start() {
+        freed.set(0);
+        notifications.set(0);
+        for (GarbageCollectorMXBean collector : collectors) {
+            ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+        }
+        startCollections = collectionCount();
+        startUsed = heapUsed();
+    }
+
+    /**
+     * @return the number of bytes allocated since {@link #start()}.
+     */
+    long stop() {
+        final long used = heapUsed();
+        final long collections = collectionCount() - startCollections;
+
+        // The notifications are delivered on another thread, so wait for the ones about collections we already know of
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NOTIFICATION_WAIT_MILLIS);
+        while (notifications.get() < collections && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+
+        for (GarbageCollectorMXBean collector : collectors) {
+            try {
+                ((NotificationEmitter) collector).removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Nothing to remove
+            }
+        }
+        return Math.max(0, used - startUsed + freed.get());
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        final GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+        freed.addAndGet(used(info.getMemoryUsageBeforeGc().values()) - used(info.getMemoryUsageAfterGc().values()));
+        notifications.incrementAndGet();
+    }
+
+    private long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long used(Collection<MemoryUsage> usages) {
+        long used = 0;
+        for (MemoryUsage usage : usages) {
+            used += usage.getUsed();
+        }
+        return used;
+    }
+}
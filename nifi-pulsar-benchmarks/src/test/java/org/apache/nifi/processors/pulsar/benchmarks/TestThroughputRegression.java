@@ -0,0 +1,480 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processor.Processor;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processors.pulsar.AbstractPulsarConsumerProcessor;
+import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
+import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsar;
+import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsarRecord;
+import org.apache.nifi.processors.pulsar.pubsub.PublishPulsar;
+import org.apache.nifi.processors.pulsar.pubsub.PublishPulsarRecord;
+import org.apache.nifi.pulsar.inmemory.InMemoryPulsar;
+import org.apache.nifi.pulsar.inmemory.InMemoryPulsarClientService;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Pushes the test corpora of the docker image, 5k-test.txt to 100k-test.txt, through each of the processors
+ * against an in-memory Pulsar broker, one line per message. Each scenario is warmed up before it is measured.
+ *
+ * Each corpus is also published straight to the broker, without any processor involved, as a reference scenario.
+ * Throughput is compared against the baseline as a percentage of the reference of the same run, so that a baseline
+ * recorded on one machine still holds on another.
+ *
+ * Every metric is written to a JSON report, and the regressions against the baseline by more than the threshold are
+ * reported. Wall-clock throughput varies too much between runs on shared machines to fail a build on by default, so
+ * the scenarios only fail on a regression if the gate is requested. Everything is set through system properties,
+ * which the pom passes on:
+ * <ul>
+ *     <li>throughput.corpora - The directory holding the corpora.</li>
+ *     <li>throughput.report - Where to write the report.</li>
+ *     <li>throughput.baseline - The baseline to compare against. Scenarios that it does not hold are not compared.</li>
+ *     <li>throughput.threshold - How far a metric may fall behind the baseline, as a fraction of it.</li>
+ *     <li>throughput.gate - Fails the scenarios that regressed, instead of only reporting them.</li>
+ *     <li>throughput.baseline.update - Writes the baseline from this run instead of comparing against it.</li>
+ * </ul>
+ */
+public class TestThroughputRegression {
+
+    private static final String[] CORPORA = {"5k-test.txt", "10k-test.txt", "20k-test.txt", "50k-test.txt", "100k-test.txt"};
+
+    // Publishing synchronously waits for the broker after every message, whatever the size of the corpus
+    private static final String[] SYNC_CORPORA = {"5k-test.txt", "10k-test.txt"};
+
+    private static final String TOPIC = "persistent://public/default/throughput";
+    private static final String SUBSCRIPTION = "throughput";
+
+    private static final RecordSchema LINE_SCHEMA = new SimpleRecordSchema(
+            Collections.singletonList(new RecordField("line", RecordFieldType.STRING.getDataType())));
+
+    // Each scenario processes at least this many messages, and at least MIN_ROUNDS copies of its corpus
+    private static final long WARMUP_MESSAGES = Long.getLong("throughput.warmup.messages", 20_000);
+    private static final long MEASURED_MESSAGES = Long.getLong("throughput.measured.messages", 50_000);
+    private static final int MIN_ROUNDS = 3;
+
+    // Synchronous publishing is far slower, so it processes fewer messages
+    private static final long SYNC_WARMUP_MESSAGES = Long.getLong("throughput.sync.warmup.messages", 5_000);
+    private static final long SYNC_MEASURED_MESSAGES = Long.getLong("throughput.sync.measured.messages", 10_000);
+
+    // The reference is far faster, so it processes more messages to be measured as accurately as the scenarios
+    private static final long REFERENCE_MESSAGES = Long.getLong("throughput.reference.messages", 500_000);
+
+    // The measurement is repeated, and only the fastest trial is reported, so that a single slow trial does not fail the suite
+    private static final int TRIALS = Integer.getInteger("throughput.trials", 3);
+
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final ThroughputReport report = new ThroughputReport();
+    private static final Map<String, Double> referenceThroughput = new HashMap<>();
+    private static final AllocationMeter allocationMeter = new AllocationMeter();
+
+    private static File corpora;
+    private static File reportFile;
+    private static File baselineFile;
+    private static ThroughputReport baseline;
+    private static double threshold;
+    private static boolean gate;
+    private static boolean updateBaseline;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        corpora = new File(System.getProperty("throughput.corpora", "../docker-image/src/main/docker/nifi/resources"));
+        reportFile = new File(System.getProperty("throughput.report", "target/throughput-report.json"));
+        baselineFile = new File(System.getProperty("throughput.baseline", "src/test/resources/throughput-baseline.json"));
+        threshold = Double.parseDouble(System.getProperty("throughput.threshold", "0.5"));
+        gate = Boolean.getBoolean("throughput.gate");
+        updateBaseline = Boolean.getBoolean("throughput.baseline.update");
+
+        assertTrue("The test corpora were not found in " + corpora.getAbsolutePath(), corpora.isDirectory());
+        baseline = !updateBaseline && baselineFile.isFile() ? ThroughputReport.read(baselineFile) : new ThroughputReport();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        if (report.isEmpty()) {
+            return;
+        }
+
+        report.write(reportFile);
+        if (updateBaseline) {
+            report.writeBaseline(baselineFile);
+        }
+    }
+
+    @Test
+    public void publishPulsar() throws Exception {
+        assertNoRegressions(measurePublishPulsar("PublishPulsar", true));
+    }
+
+    @Test
+    public void publishPulsarSync() throws Exception {
+        assertNoRegressions(measurePublishPulsar("PublishPulsarSync", false));
+    }
+
+    @Test
+    public void publishPulsarRecord() throws Exception {
+        assertNoRegressions(measurePublishPulsarRecord("PublishPulsarRecord", true));
+    }
+
+    @Test
+    public void publishPulsarRecordSync() throws Exception {
+        assertNoRegressions(measurePublishPulsarRecord("PublishPulsarRecordSync", false));
+    }
+
+    @Test
+    public void consumePulsar() throws Exception {
+        final List<String> regressions = new ArrayList<>();
+        for (String name : CORPORA) {
+            final Corpus corpus = Corpus.read(new File(corpora, name));
+            final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+            final TestRunner runner = newRunner(ConsumePulsar.class, service);
+            runner.setProperty(AbstractPulsarConsumerProcessor.TOPICS, TOPIC);
+            runner.setProperty(AbstractPulsarConsumerProcessor.SUBSCRIPTION_NAME, SUBSCRIPTION);
+
+            regressions.addAll(measureConsume("ConsumePulsar/" + name, corpus, runner, service, ConsumePulsar.REL_SUCCESS));
+        }
+        assertNoRegressions(regressions);
+    }
+
+    @Test
+    public void consumePulsarRecord() throws Exception {
+        final List<String> regressions = new ArrayList<>();
+        for (String name : CORPORA) {
+            final Corpus corpus = Corpus.read(new File(corpora, name));
+            final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+            final TestRunner runner = newRunner(ConsumePulsarRecord.class, service);
+            addRecordServices(runner);
+            runner.setProperty(ConsumePulsarRecord.RECORD_READER, "record-reader");
+            runner.setProperty(ConsumePulsarRecord.RECORD_WRITER, "record-writer");
+            runner.setProperty(AbstractPulsarConsumerProcessor.TOPICS, TOPIC);
+            runner.setProperty(AbstractPulsarConsumerProcessor.SUBSCRIPTION_NAME, SUBSCRIPTION);
+
+            regressions.addAll(measureConsume("ConsumePulsarRecord/" + name, corpus, runner, service, ConsumePulsarRecord.REL_SUCCESS));
+        }
+        assertNoRegressions(regressions);
+    }
+
+    private static List<String> measurePublishPulsar(String processor, boolean async) throws Exception {
+        final List<String> regressions = new ArrayList<>();
+        for (String name : async ? CORPORA : SYNC_CORPORA) {
+            final Corpus corpus = Corpus.read(new File(corpora, name));
+            final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+            final TestRunner runner = newRunner(PublishPulsar.class, service);
+            runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC);
+            runner.setProperty(AbstractPulsarProducerProcessor.MESSAGE_DEMARCATOR, "\n");
+            runner.setProperty(AbstractPulsarProducerProcessor.ASYNC_ENABLED, String.valueOf(async));
+
+            regressions.addAll(measurePublish(processor + "/" + name, corpus, runner, service.getPulsar(), async));
+        }
+        return regressions;
+    }
+
+    private static List<String> measurePublishPulsarRecord(String processor, boolean async) throws Exception {
+        final List<String> regressions = new ArrayList<>();
+        for (String name : async ? CORPORA : SYNC_CORPORA) {
+            final Corpus corpus = Corpus.read(new File(corpora, name));
+            final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+            final TestRunner runner = newRunner(PublishPulsarRecord.class, service);
+            addRecordServices(runner);
+            runner.setProperty(PublishPulsarRecord.RECORD_READER, "record-reader");
+            runner.setProperty(PublishPulsarRecord.RECORD_WRITER, "record-writer");
+            runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC);
+            runner.setProperty(AbstractPulsarProducerProcessor.ASYNC_ENABLED, String.valueOf(async));
+
+            regressions.addAll(measurePublish(processor + "/" + name, corpus, runner, service.getPulsar(), async));
+        }
+        return regressions;
+    }
+
+    /**
+     * Enqueues the corpus as a single FlowFile for each round, and triggers the processor to publish it.
+     */
+    private static List<String> measurePublish(String scenario, Corpus corpus, TestRunner runner, InMemoryPulsar pulsar,
+                                               boolean async) throws Exception {
+        final long measuredMessages = async ? MEASURED_MESSAGES : SYNC_MEASURED_MESSAGES;
+
+        // Schedule the processor, so that the rounds only trigger it
+        runner.run(1, false, true);
+
+        publishRounds(new ThroughputResult(scenario), corpus, runner, async ? WARMUP_MESSAGES : SYNC_WARMUP_MESSAGES);
+
+        ThroughputResult best = null;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            final long published = pulsar.getPublishedCount();
+            final ThroughputResult result = publishRounds(new ThroughputResult(scenario), corpus, runner, measuredMessages);
+            assertEquals(scenario + " did not publish every line", result.getMessages(), pulsar.getPublishedCount() - published);
+            best = faster(best, result);
+        }
+
+        stop(runner);
+        return record(best, corpus);
+    }
+
+    private static ThroughputResult publishRounds(ThroughputResult result, Corpus corpus, TestRunner runner, long messages) {
+        for (int round = 0; round < MIN_ROUNDS || result.getMessages() < messages; round++) {
+            runner.enqueue(corpus.content);
+
+            final boolean metered = startMeter(result);
+            final long start = System.nanoTime();
+            runner.run(1, false, false);
+            final long elapsed = System.nanoTime() - start;
+            stopMeter(result, metered);
+
+            runner.assertAllFlowFilesTransferred(AbstractPulsarProducerProcessor.REL_SUCCESS, 1);
+            runner.clearTransferState();
+            runner.clearProvenanceEvents();
+
+            result.addElapsed(elapsed);
+            result.addLatency(elapsed);
+            result.addMessages(corpus.lines.size(), corpus.payloadBytes);
+        }
+        return result;
+    }
+
+    /**
+     * Publishes the corpus one line per message for each round, and triggers the processor until the subscription
+     * has acknowledged all of them.
+     */
+    private static List<String> measureConsume(String scenario, Corpus corpus, TestRunner runner,
+                                               InMemoryPulsarClientService service, Relationship success) throws Exception {
+        // Schedule the processor, which subscribes at the latest message, before anything is published
+        runner.run(1, false, true);
+        runner.clearTransferState();
+
+        try (Producer<byte[]> producer = service.getPulsarClient().newProducer().topic(TOPIC).create()) {
+            consumeRounds(new ThroughputResult(scenario), corpus, runner, service.getPulsar(), producer, success, WARMUP_MESSAGES);
+            ThroughputResult best = null;
+            for (int trial = 0; trial < TRIALS; trial++) {
+                best = faster(best, consumeRounds(new ThroughputResult(scenario), corpus, runner, service.getPulsar(),
+                        producer, success, MEASURED_MESSAGES));
+            }
+
+            stop(runner);
+            return record(best, corpus);
+        }
+    }
+
+    private static ThroughputResult consumeRounds(ThroughputResult result, Corpus corpus, TestRunner runner, InMemoryPulsar pulsar,
+                                                  Producer<byte[]> producer, Relationship success, long messages) throws Exception {
+        for (int round = 0; round < MIN_ROUNDS || result.getMessages() < messages; round++) {
+            for (byte[] line : corpus.lines) {
+                producer.sendAsync(line);
+            }
+            producer.flush();
+
+            final long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            while (pulsar.getBacklog(TOPIC, SUBSCRIPTION) > 0) {
+                if (System.nanoTime() > deadline) {
+                    fail(result.getScenario() + " did not consume every line within " + TimeUnit.NANOSECONDS.toSeconds(DRAIN_TIMEOUT_NANOS) + " seconds");
+                }
+
+                final boolean metered = startMeter(result);
+                final long start = System.nanoTime();
+                runner.run(1, false, false);
+                final long elapsed = System.nanoTime() - start;
+                stopMeter(result, metered);
+
+                // Every FlowFile written by the trigger took the whole trigger to be committed
+                final int flowFiles = runner.getFlowFilesForRelationship(success).size();
+                for (int i = 0; i < flowFiles; i++) {
+                    result.addLatency(elapsed);
+                }
+                assertEquals(result.getScenario() + " routed FlowFiles to failure", flowFiles, countTransferred(runner));
+                runner.clearTransferState();
+                runner.clearProvenanceEvents();
+
+                result.addElapsed(elapsed);
+            }
+            result.addMessages(corpus.lines.size(), corpus.payloadBytes);
+        }
+        return result;
+    }
+
+    /**
+     * @return the messages per second at which the corpus is published one line per message straight to an
+     *   in-memory broker, which is measured once per corpus, the same way as the scenarios.
+     */
+    private static double referenceThroughput(Corpus corpus) throws Exception {
+        final Double cached = referenceThroughput.get(corpus.name);
+        if (cached != null) {
+            return cached;
+        }
+
+        ThroughputResult best = null;
+        try (InMemoryPulsar pulsar = new InMemoryPulsar();
+             PulsarClient client = pulsar.newClient();
+             Producer<byte[]> producer = client.newProducer().topic(TOPIC).create()) {
+            final String scenario = "Reference/" + corpus.name;
+            referenceRounds(new ThroughputResult(scenario), corpus, producer, WARMUP_MESSAGES);
+            for (int trial = 0; trial < TRIALS; trial++) {
+                best = faster(best, referenceRounds(new ThroughputResult(scenario), corpus, producer, REFERENCE_MESSAGES));
+            }
+        }
+
+        report.add(best);
+        referenceThroughput.put(corpus.name, best.getMessagesPerSecond());
+        return best.getMessagesPerSecond();
+    }
+
+    private static ThroughputResult referenceRounds(ThroughputResult result, Corpus corpus, Producer<byte[]> producer,
+                                                    long messages) throws PulsarClientException {
+        result.allocationNotMeasured();
+        for (int round = 0; round < MIN_ROUNDS || result.getMessages() < messages; round++) {
+            final long start = System.nanoTime();
+            for (byte[] line : corpus.lines) {
+                producer.sendAsync(line);
+            }
+            producer.flush();
+            final long elapsed = System.nanoTime() - start;
+
+            result.addElapsed(elapsed);
+            result.addLatency(elapsed);
+            result.addMessages(corpus.lines.size(), corpus.payloadBytes);
+        }
+        return result;
+    }
+
+    private static ThroughputResult faster(ThroughputResult best, ThroughputResult result) {
+        return best == null || result.getMessagesPerSecond() > best.getMessagesPerSecond() ? result : best;
+    }
+
+    private static int countTransferred(TestRunner runner) {
+        int count = 0;
+        for (Relationship relationship : runner.getProcessor().getRelationships()) {
+            count += runner.getFlowFilesForRelationship(relationship).size();
+        }
+        return count;
+    }
+
+    private static boolean startMeter(ThroughputResult result) {
+        if (!allocationMeter.isSupported()) {
+            result.allocationNotMeasured();
+            return false;
+        }
+        allocationMeter.start();
+        return true;
+    }
+
+    private static void stopMeter(ThroughputResult result, boolean metered) {
+        if (metered) {
+            result.addAllocated(allocationMeter.stop());
+        }
+    }
+
+    private static List<String> record(ThroughputResult result, Corpus corpus) throws Exception {
+        result.setReferenceMessagesPerSecond(referenceThroughput(corpus));
+        report.add(result);
+        return report.findRegressions(baseline, result.getScenario(), threshold);
+    }
+
+    private static void assertNoRegressions(List<String> regressions) {
+        final String message = "Throughput regressed beyond the threshold of " + threshold + ":\n" + String.join("\n", regressions);
+        if (gate) {
+            assertTrue(message, regressions.isEmpty());
+        } else if (!regressions.isEmpty()) {
+            System.err.println(message);
+        }
+    }
+
+    private static TestRunner newRunner(Class<? extends Processor> processor, InMemoryPulsarClientService service)
+            throws InitializationException {
+        final TestRunner runner = TestRunners.newTestRunner(processor);
+        runner.addControllerService("Pulsar Client Service", service);
+        runner.enableControllerService(service);
+        runner.setProperty(AbstractPulsarProducerProcessor.PULSAR_CLIENT_SERVICE, "Pulsar Client Service");
+        return runner;
+    }
+
+    private static void addRecordServices(TestRunner runner) throws InitializationException {
+        final CsvRecordReaderFactory reader = new CsvRecordReaderFactory(LINE_SCHEMA);
+        runner.addControllerService("record-reader", reader);
+        runner.enableControllerService(reader);
+
+        final CsvRecordSetWriterFactory writer = new CsvRecordSetWriterFactory();
+        runner.addControllerService("record-writer", writer);
+        runner.enableControllerService(writer);
+    }
+
+    private static void stop(TestRunner runner) {
+        runner.run(1, true, false);
+        runner.shutdown();
+    }
+
+    /**
+     * A corpus file, and the lines that it is split into when it is published one line per message.
+     */
+    private static final class Corpus {
+        private final String name;
+        private final byte[] content;
+        private final List<byte[]> lines;
+        private final long payloadBytes;
+
+        private Corpus(String name, byte[] content, List<byte[]> lines, long payloadBytes) {
+            this.name = name;
+            this.content = content;
+            this.lines = lines;
+            this.payloadBytes = payloadBytes;
+        }
+
+        private static Corpus read(File file) throws IOException {
+            final byte[] content = Files.readAllBytes(file.toPath());
+            final List<byte[]> lines = new ArrayList<>();
+            long payloadBytes = 0;
+
+            int start = 0;
+            for (int i = 0; i <= content.length; i++) {
+                if (i == content.length || content[i] == '\n') {
+                    if (i > start) {
+                        final byte[] line = new byte[i - start];
+                        System.arraycopy(content, start, line, 0, line.length);
+                        lines.add(line);
+                        payloadBytes += line.length;
+                    }
+                    start = i + 1;
+                }
+            }
+            return new Corpus(file.getName(), content, Collections.unmodifiableList(lines), payloadBytes);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The metrics of every scenario of the throughput suite, keyed by scenario name, which are read from and written
+ * to JSON of the form {"scenario": {"metric": value, ...}, ...}.
+ *
+ * A report can be compared against a baseline. Only the metrics that the baseline holds are compared, and only
+ * those whose better direction is known: throughput is expected to stay at or above the baseline, and allocation
+ * and latency at or below it, within the given threshold.
+ */
+final class ThroughputReport {
+
+    private static final Map<String, Boolean> HIGHER_IS_BETTER;
+
+    // The metrics written to a new baseline. Absolute throughput depends on the machine, and latency varies too much
+    // from run to run, to gate a build on by default.
+    private static final List<String> BASELINE_METRICS = Collections.unmodifiableList(Arrays.asList(
+            ThroughputResult.RELATIVE_THROUGHPUT, ThroughputResult.ALLOCATED_BYTES_PER_MESSAGE));
+
+    static {
+        final Map<String, Boolean> directions = new HashMap<>();
+        directions.put(ThroughputResult.MESSAGES_PER_SECOND, true);
+        directions.put(ThroughputResult.BYTES_PER_SECOND, true);
+        directions.put(ThroughputResult.RELATIVE_THROUGHPUT, true);
+        directions.put(ThroughputResult.ALLOCATED_BYTES_PER_SECOND, false);
+        directions.put(ThroughputResult.ALLOCATED_BYTES_PER_MESSAGE, false);
+        directions.put(ThroughputResult.P50_LATENCY_MILLIS, false);
+        directions.put(ThroughputResult.P99_LATENCY_MILLIS, false);
+        HIGHER_IS_BETTER = Collections.unmodifiableMap(directions);
+    }
+
+    private final Map<String, Map<String, Double>> scenarios = new LinkedHashMap<>();
+
+    synchronized void add(ThroughputResult result) {
+        scenarios.put(result.getScenario(), result.getMetrics());
+    }
+
+    synchronized boolean isEmpty() {
+        return scenarios.isEmpty();
+    }
+
+    /**
+     * @return a description of every metric of the scenario that is worse than the baseline by more than the
+     *   threshold, which is empty if there are none or the baseline does not hold the scenario.
+     */
+    synchronized List<String> findRegressions(ThroughputReport baseline, String scenario, double threshold) {
+        final List<String> regressions = new ArrayList<>();
+        final Map<String, Double> expected = baseline.scenarios.get(scenario);
+        final Map<String, Double> actual = scenarios.get(scenario);
+        if (expected == null || actual == null) {
+            return regressions;
+        }
+
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            final String metric = entry.getKey();
+            final Boolean higherIsBetter = HIGHER_IS_BETTER.get(metric);
+            final Double value = actual.get(metric);
+            if (higherIsBetter == null || value == null) {
+                continue;
+            }
+
+            final double limit = higherIsBetter ? entry.getValue() * (1 - threshold) : entry.getValue() * (1 + threshold);
+            if (higherIsBetter ? value < limit : value > limit) {
+                regressions.add(String.format("%s %s is %.2f, against a baseline of %.2f (limit %.2f)",
+                        scenario, metric, value, entry.getValue(), limit));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Writes every metric of every scenario.
+     */
+    synchronized void write(File file) throws IOException {
+        write(file, scenarios);
+    }
+
+    /**
+     * Writes the metrics that a baseline holds by default, for the scenarios that have any of them.
+     */
+    synchronized void writeBaseline(File file) throws IOException {
+        final Map<String, Map<String, Double>> baseline = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Double>> scenario : scenarios.entrySet()) {
+            final Map<String, Double> metrics = new LinkedHashMap<>();
+            for (String metric : BASELINE_METRICS) {
+                if (scenario.getValue().containsKey(metric)) {
+                    metrics.put(metric, scenario.getValue().get(metric));
+                }
+            }
+            if (!metrics.isEmpty()) {
+                baseline.put(scenario.getKey(), metrics);
+            }
+        }
+        write(file, baseline);
+    }
+
+    static ThroughputReport read(File file) throws IOException {
+        final ThroughputReport report = new ThroughputReport();
+
+        try (JsonParser parser = new JsonFactory().createParser(file)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String scenario = parser.getCurrentName();
+                final Map<String, Double> metrics = new LinkedHashMap<>();
+
+                expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String metric = parser.getCurrentName();
+                    parser.nextToken();
+                    metrics.put(metric, parser.getDoubleValue());
+                }
+                report.scenarios.put(scenario, metrics);
+            }
+        }
+        return report;
+    }
+
+    private static void write(File file, Map<String, Map<String, Double>> scenarios) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        try (JsonGenerator generator = new JsonFactory().createGenerator(file, JsonEncoding.UTF8)) {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            for (Map.Entry<String, Map<String, Double>> scenario : scenarios.entrySet()) {
+                generator.writeObjectFieldStart(scenario.getKey());
+                for (Map.Entry<String, Double> metric : scenario.getValue().entrySet()) {
+                    generator.writeNumberField(metric.getKey(), Math.round(metric.getValue() * 100) / 100.0);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.getCurrentLocation());
+        }
+    }
+}
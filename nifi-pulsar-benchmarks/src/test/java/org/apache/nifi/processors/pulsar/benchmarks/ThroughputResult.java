@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.benchmarks;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What one scenario of the throughput suite measured. Only the time spent in the processor's onTrigger counts,
+ * not the time spent enqueueing FlowFiles or publishing the messages that are to be consumed.
+ *
+ * Throughput is also reported as a percentage of the reference throughput of the JVM the scenario ran in, which
+ * unlike the absolute figures can be compared across machines.
+ */
+final class ThroughputResult {
+
+    static final String MESSAGES_PER_SECOND = "messagesPerSecond";
+    static final String BYTES_PER_SECOND = "bytesPerSecond";
+    static final String RELATIVE_THROUGHPUT = "relativeThroughputPercent";
+    static final String ALLOCATED_BYTES_PER_SECOND = "allocatedBytesPerSecond";
+    static final String ALLOCATED_BYTES_PER_MESSAGE = "allocatedBytesPerMessage";
+    static final String P50_LATENCY_MILLIS = "p50LatencyMillis";
+    static final String P99_LATENCY_MILLIS = "p99LatencyMillis";
+
+    private final String scenario;
+
+    private long messages = 0;
+    private long bytes = 0;
+    private long elapsedNanos = 0;
+    private long allocatedBytes = 0;
+    private boolean allocationMeasured = true;
+    private double referenceMessagesPerSecond = 0;
+
+    private long[] latencies = new long[64];
+    private int latencyCount = 0;
+
+    ThroughputResult(String scenario) {
+        this.scenario = scenario;
+    }
+
+    String getScenario() {
+        return scenario;
+    }
+
+    void addMessages(long count, long size) {
+        messages += count;
+        bytes += size;
+    }
+
+    void addElapsed(long nanos) {
+        elapsedNanos += nanos;
+    }
+
+    void addAllocated(long allocated) {
+        allocatedBytes += allocated;
+    }
+
+    void allocationNotMeasured() {
+        allocationMeasured = false;
+    }
+
+    void setReferenceMessagesPerSecond(double messagesPerSecond) {
+        referenceMessagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Records how long it took to process one FlowFile, from the start of the onTrigger that processed it.
+     */
+    void addLatency(long nanos) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+
+    long getMessages() {
+        return messages;
+    }
+
+    double getMessagesPerSecond() {
+        return messages / getSeconds();
+    }
+
+    /**
+     * @return every metric, in the order they are reported. The allocation metrics are left out if the JVM could
+     *   not measure them, and the relative throughput if there is no reference throughput.
+     */
+    Map<String, Double> getMetrics() {
+        final double seconds = getSeconds();
+
+        final Map<String, Double> metrics = new LinkedHashMap<>();
+        metrics.put("messages", (double) messages);
+        metrics.put("bytes", (double) bytes);
+        metrics.put("seconds", seconds);
+        metrics.put(MESSAGES_PER_SECOND, messages / seconds);
+        metrics.put(BYTES_PER_SECOND, bytes / seconds);
+        if (referenceMessagesPerSecond > 0) {
+            metrics.put(RELATIVE_THROUGHPUT, 100 * messages / seconds / referenceMessagesPerSecond);
+        }
+        if (allocationMeasured) {
+            metrics.put(ALLOCATED_BYTES_PER_SECOND, allocatedBytes / seconds);
+            metrics.put(ALLOCATED_BYTES_PER_MESSAGE, allocatedBytes / (double) messages);
+        }
+        metrics.put(P50_LATENCY_MILLIS, percentileMillis(50));
+        metrics.put(P99_LATENCY_MILLIS, percentileMillis(99));
+        return metrics;
+    }
+
+    private double getSeconds() {
+        return elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private double percentileMillis(int percentile) {
+        if (latencyCount == 0) {
+            return 0;
+        }
+
+        final long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, thread-safe cache of Pulsar clients, such as consumers, that does not take any locks.
+ *
+ * A value is leased by {@link #acquire(Object)} or {@link #retain(Closeable)}, and every lease must be handed back
+ * with {@link #release(Closeable)}. Values are only ever closed once all of their leases have been released, so a
+ * consumer with messages in flight is never closed from underneath the thread processing them. Once the cache
+ * holds more than maxSize values, the least recently used value that is not leased is evicted. Values that have
+ * not been used for longer than the idle timeout are evicted as well.
+ *
+ * Values are closed on the given executor, so that a slow close does not hold up the thread that evicted it.
+ * They are looked up by equals when released, which for the Pulsar clients is identity.
+ */
+public class PulsarConsumerCache<K, V extends Closeable> {
+
+    public static final int DEFAULT_MAX_SIZE = 100;
+
+    private static final long EXPIRY_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private final ConcurrentMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+
+    // Every value that has not been closed yet, including the ones that were removed while they were still leased
+    private final ConcurrentMap<V, Entry<K, V>> openValues = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final Executor closeExecutor;
+    private final LongSupplier clock;
+    private final AtomicLong lastExpiry;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache without an idle timeout, which closes evicted values on the calling thread.
+     */
+    public PulsarConsumerCache(int maxSize) {
+        this(maxSize, 0, Runnable::run);
+    }
+
+    /**
+     * @param maxSize           - The maximum number of values to cache.
+     * @param idleTimeoutMillis - How long a value may go unused before it is evicted, or zero to never expire values.
+     * @param closeExecutor     - The executor that evicted values are closed on.
+     */
+    public PulsarConsumerCache(int maxSize, long idleTimeoutMillis, Executor closeExecutor) {
+        this(maxSize, idleTimeoutMillis, closeExecutor, System::currentTimeMillis);
+    }
+
+    PulsarConsumerCache(int maxSize, long idleTimeoutMillis, Executor closeExecutor, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be at least 1");
+        }
+
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.closeExecutor = closeExecutor;
+        this.clock = clock;
+        this.lastExpiry = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Leases the value cached under the given key.
+     *
+     * @return the value, or null if there is none, in which case the caller has no lease to release.
+     */
+    public V acquire(K key) {
+        expireIdle();
+
+        final Entry<K, V> entry = entries.get(key);
+        if (entry != null && entry.tryRetain()) {
+            entry.lastUsed = clock.getAsLong();
+            hits.increment();
+            return entry.value;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches the value under the given key, without leasing it. Any value that was previously cached under the
+     * key is closed once its leases have been released. If the cache is full, the least recently used value
+     * that is not leased is evicted.
+     */
+    public void put(K key, V value) {
+        final Entry<K, V> existing = entries.get(key);
+        if (existing != null && existing.value.equals(value)) {
+            existing.lastUsed = clock.getAsLong();
+            return;
+        }
+
+        final Entry<K, V> entry = new Entry<>(key, value, clock.getAsLong());
+        openValues.put(value, entry);
+
+        final Entry<K, V> previous = entries.put(key, entry);
+        if (previous != null) {
+            retire(previous);
+        }
+
+        evictOverflow(entry);
+    }
+
+    /**
+     * Takes another lease on a value that is already leased, or that is still cached.
+     *
+     * @return true if the lease was taken, false if the value is no longer cached, in which case it must not be released.
+     */
+    public boolean retain(V value) {
+        final Entry<K, V> entry = openValues.get(value);
+        return entry != null && entry.tryRetain();
+    }
+
+    /**
+     * Hands back a lease taken by {@link #acquire(Object)} or {@link #retain(Closeable)}.
+     */
+    public void release(V value) {
+        final Entry<K, V> entry = openValues.get(value);
+        if (entry == null) {
+            return;
+        }
+
+        entry.lastUsed = clock.getAsLong();
+        if (entry.release()) {
+            close(entry);
+        }
+    }
+
+    /**
+     * Removes the value cached under the given key, e.g. because it has lost its connection. The value is closed
+     * once its leases have been released.
+     */
+    public void invalidate(K key) {
+        final Entry<K, V> entry = entries.get(key);
+        if (entry != null) {
+            retire(entry);
+        }
+    }
+
+    /**
+     * Removes every value, closing each one once its leases have been released.
+     */
+    public void clear() {
+        for (Entry<K, V> entry : entries.values()) {
+            retire(entry);
+        }
+    }
+
+    /**
+     * Performs the given action on every cached value, e.g. to pause or resume all of the consumers. The values
+     * are not leased, so the action must not close them.
+     */
+    public void forEach(java.util.function.Consumer<? super V> action) {
+        for (Entry<K, V> entry : entries.values()) {
+            action.accept(entry.value);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Evicts the least recently used values until the cache is back within its maximum size. Leased values are
+     * never evicted, so the cache may briefly exceed its maximum size if all of its values are in use. Neither is
+     * the value that was just added, which may not have been leased yet.
+     */
+    private void evictOverflow(Entry<K, V> added) {
+        while (entries.size() > maxSize) {
+            Entry<K, V> eldest = null;
+            for (Entry<K, V> entry : entries.values()) {
+                if (entry != added && !entry.isLeased() && (eldest == null || entry.lastUsed < eldest.lastUsed)) {
+                    eldest = entry;
+                }
+            }
+
+            if (eldest == null) {
+                return;
+            }
+
+            if (retire(eldest)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Evicts every value that has not been used within the idle timeout. The sweep runs at most once per second,
+     * regardless of how many threads are using the cache.
+     */
+    private void expireIdle() {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+
+        final long now = clock.getAsLong();
+        final long last = lastExpiry.get();
+
+        if (now - last < EXPIRY_INTERVAL_MILLIS || !lastExpiry.compareAndSet(last, now)) {
+            return;
+        }
+
+        for (Entry<K, V> entry : entries.values()) {
+            if (!entry.isLeased() && now - entry.lastUsed > idleTimeoutMillis && retire(entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes the entry from the cache, and closes its value unless it is still leased.
+     *
+     * @return true if this call removed the entry.
+     */
+    private boolean retire(Entry<K, V> entry) {
+        entry.retired = true;
+        final boolean removed = entries.remove(entry.key, entry);
+
+        if (entry.tryClose()) {
+            close(entry);
+        }
+        return removed;
+    }
+
+    private void close(Entry<K, V> entry) {
+        openValues.remove(entry.value, entry);
+
+        try {
+            closeExecutor.execute(() -> closeQuietly(entry.value));
+        } catch (RejectedExecutionException e) {
+            closeQuietly(entry.value);
+        }
+    }
+
+    private static void closeQuietly(Closeable value) {
+        try {
+            value.close();
+        } catch (IOException | RuntimeException e) {
+            // There is nothing more to be done with a client that fails to close
+        }
+    }
+
+    private static final class Entry<K, V> {
+        private static final int CLOSED = -1;
+
+        private final K key;
+        private final V value;
+        private final AtomicInteger leases = new AtomicInteger(0);
+
+        private volatile boolean retired = false;
+        private volatile long lastUsed;
+
+        private Entry(K key, V value, long lastUsed) {
+            this.key = key;
+            this.value = value;
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * A retired entry can still be retained by a thread that already holds a lease on it, but by no one else.
+         */
+        private boolean tryRetain() {
+            for (;;) {
+                final int count = leases.get();
+                if (count == CLOSED || (count == 0 && retired)) {
+                    return false;
+                }
+                if (leases.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if this was the last lease on a retired entry, in which case the caller must close it.
+         */
+        private boolean release() {
+            for (;;) {
+                final int count = leases.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (leases.compareAndSet(count, count - 1)) {
+                    return count == 1 && retired && tryClose();
+                }
+            }
+        }
+
+        private boolean tryClose() {
+            return leases.compareAndSet(0, CLOSED);
+        }
+
+        private boolean isLeased() {
+            return leases.get() != 0;
+        }
+    }
+}
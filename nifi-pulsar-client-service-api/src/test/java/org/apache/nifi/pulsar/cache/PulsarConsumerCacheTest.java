@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SuppressWarnings("rawtypes")
+public class PulsarConsumerCacheTest {
+
+    @Mock
+    private Producer mockedPulsarProducer;
+
+    // Ticks once per call, so that every access happens at a distinct time
+    private final AtomicLong clock = new AtomicLong(0);
+
+    @Before
+    public void setUp() throws InterruptedException {
+      mockedPulsarProducer = mock(Producer.class);
+    }
+
+    /**
+     * Make sure the cache hands back what was put into it
+     */
+    @Test
+    public void simpleTest() {
+      PulsarConsumerCache<String, Producer> cache = new PulsarConsumerCache<String, Producer>(10);
+
+      for (Character i='A'; i<='E'; i++){
+         cache.put(i.toString(), mockedPulsarProducer);
+      }
+
+      assertEquals(5, cache.size());
+
+      for (Character i='A'; i<='E'; i++){
+         assertNotNull( cache.acquire(i.toString()));
+      }
+
+      assertNull(cache.acquire("F"));
+      assertEquals(5, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+     }
+
+    @Test
+    public void evictionTest() {
+
+      PulsarConsumerCache<String, Producer> cache = newCache(5, 0);
+
+      for (Character i='A'; i<='Z'; i++){
+         cache.put(i.toString(), mockedPulsarProducer);
+      }
+
+      // Make sure we only have 5 items in the cache
+      assertEquals(5, cache.size());
+      assertEquals(21, cache.getEvictionCount());
+
+      // Make sure we have the last 5 items added to the cache
+      for (Character i='V'; i<='Z'; i++){
+         assertNotNull(cache.acquire(i.toString()));
+      }
+    }
+
+    @Test
+    public void evictionLruTest() {
+
+      PulsarConsumerCache<String, Producer> cache = newCache(5, 0);
+
+      final Character A = 'A';
+
+      // Write 25 items to the cache, and the letter 'A' every other put.
+      for (Character i='B'; i<='Z'; i++){
+         cache.put(i.toString(), mockedPulsarProducer);
+         cache.put(A.toString(), mockedPulsarProducer);
+      }
+
+      // Make sure we only have 5 items in the cache
+      assertEquals(5, cache.size());
+
+      // Make sure that the letter 'A' is still in the cache due to frequent access
+      assertNotNull( cache.acquire(A.toString()) );
+
+      // Make sure we have the last 4 items added to the cache
+      for (Character i='W'; i<='Z'; i++){
+         assertNotNull( cache.acquire(i.toString()));
+      }
+    }
+
+    @Test
+    public void leasedValuesAreNotEvictedTest() throws PulsarClientException {
+      PulsarConsumerCache<String, Producer> cache = newCache(2, 0);
+      final List<Producer> producers = newProducers(3);
+
+      cache.put("A", producers.get(0));
+      assertSame(producers.get(0), cache.acquire("A"));
+
+      // 'A' is the least recently used, but it is leased, so 'B' is evicted instead
+      cache.put("B", producers.get(1));
+      cache.put("C", producers.get(2));
+
+      assertNotNull(cache.acquire("A"));
+      assertNull(cache.acquire("B"));
+      verify(producers.get(0), never()).close();
+      verify(producers.get(1)).close();
+    }
+
+    @Test
+    public void retiredValueIsClosedOnReleaseTest() throws PulsarClientException {
+      PulsarConsumerCache<String, Producer> cache = newCache(5, 0);
+      final List<Producer> producers = newProducers(2);
+
+      cache.put("A", producers.get(0));
+      assertSame(producers.get(0), cache.acquire("A"));
+      assertTrue(cache.retain(producers.get(0)));
+
+      // Replacing the value retires the old one, which stays open until its two leases are released
+      cache.put("A", producers.get(1));
+      assertTrue(cache.retain(producers.get(1)));
+      cache.release(producers.get(1));
+
+      cache.release(producers.get(0));
+      verify(producers.get(0), never()).close();
+
+      cache.release(producers.get(0));
+      verify(producers.get(0)).close();
+
+      // Released too often, or never cached at all, so there is nothing to do
+      cache.release(producers.get(0));
+      cache.release(mockedPulsarProducer);
+      verify(producers.get(0), times(1)).close();
+      assertFalse(cache.retain(producers.get(0)));
+    }
+
+    @Test
+    public void idleExpiryTest() throws PulsarClientException {
+      PulsarConsumerCache<String, Producer> cache = newCache(5, 5000);
+      final List<Producer> producers = newProducers(2);
+
+      cache.put("A", producers.get(0));
+      cache.put("B", producers.get(1));
+      assertSame(producers.get(1), cache.acquire("B"));
+
+      clock.addAndGet(10000);
+
+      // 'A' has been idle for too long, whereas 'B' is leased
+      assertNull(cache.acquire("A"));
+      assertEquals(1, cache.size());
+      assertEquals(1, cache.getEvictionCount());
+      verify(producers.get(0)).close();
+      verify(producers.get(1), never()).close();
+    }
+
+    @Test
+    public void asyncCloseTest() throws PulsarClientException {
+      final List<Runnable> closes = new ArrayList<>();
+      PulsarConsumerCache<String, Producer> cache = new PulsarConsumerCache<>(5, 0, closes::add, clock::incrementAndGet);
+
+      cache.put("A", mockedPulsarProducer);
+      cache.invalidate("A");
+
+      assertEquals(0, cache.size());
+      assertEquals(1, closes.size());
+      verify(mockedPulsarProducer, never()).close();
+
+      closes.get(0).run();
+      verify(mockedPulsarProducer).close();
+    }
+
+    @Test
+    public void clearTest() throws PulsarClientException {
+       PulsarConsumerCache<String, Producer> cache = new PulsarConsumerCache<String, Producer>(26);
+
+       for (Character i='A'; i<='Z'; i++) {
+          cache.put(i.toString(), mockedPulsarProducer);
+       }
+
+       // Make sure we only have all the items in the cache
+       assertEquals(26, cache.size());
+       cache.clear();
+
+       verify(mockedPulsarProducer, times(26)).close();
+
+       // Make sure all the items were removed
+       assertEquals(0, cache.size());
+    }
+
+    private PulsarConsumerCache<String, Producer> newCache(int maxSize, long idleTimeoutMillis) {
+       return new PulsarConsumerCache<>(maxSize, idleTimeoutMillis, Runnable::run, clock::incrementAndGet);
+    }
+
+    private static List<Producer> newProducers(int count) {
+       final List<Producer> producers = new ArrayList<>();
+       for (int i = 0; i < count; i++) {
+          producers.add(mock(Producer.class));
+       }
+       return producers;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.pulsar.client.api.ConsumerBuilder;
+import org.apache.pulsar.client.api.ProducerBuilder;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+
+/**
+ * The implementation behind the PulsarClient of an {@link InMemoryPulsar}. Each of its public methods implements
+ * the PulsarClient method with the same signature.
+ */
+final class InMemoryClient {
+
+    private final InMemoryPulsar pulsar;
+    private final Set<Closeable> resources = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    InMemoryClient(InMemoryPulsar pulsar) {
+        this.pulsar = pulsar;
+    }
+
+    public ProducerBuilder<byte[]> newProducer() {
+        return newProducer(Schema.BYTES);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> ProducerBuilder<T> newProducer(Schema<T> schema) {
+        return Proxies.builder(ProducerBuilder.class, "create", settings -> {
+            checkOpen();
+            return register(InMemoryProducer.create(pulsar, this, schema, settings));
+        });
+    }
+
+    public ConsumerBuilder<byte[]> newConsumer() {
+        return newConsumer(Schema.BYTES);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> ConsumerBuilder<T> newConsumer(Schema<T> schema) {
+        return Proxies.builder(ConsumerBuilder.class, "subscribe", settings -> {
+            checkOpen();
+            return register(InMemoryConsumer.create(pulsar, this, schema, settings));
+        });
+    }
+
+    public CompletableFuture<List<String>> getPartitionsForTopic(String topic) {
+        final List<String> partitions = new ArrayList<>();
+        for (PartitionLog log : pulsar.getTopic(topic).getPartitions()) {
+            partitions.add(log.getName());
+        }
+        return CompletableFuture.completedFuture(partitions);
+    }
+
+    public void close() {
+        closed = true;
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                // Closing an in-memory producer or consumer does not fail
+            }
+        }
+        resources.clear();
+    }
+
+    public CompletableFuture<Void> closeAsync() {
+        close();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public void shutdown() {
+        close();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void closed(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    private <C extends Closeable> C register(C resource) {
+        resources.add(resource);
+        return resource;
+    }
+
+    private void checkOpen() throws PulsarClientException {
+        if (closed) {
+            throw new PulsarClientException.AlreadyClosedException("Client already closed");
+        }
+    }
+}
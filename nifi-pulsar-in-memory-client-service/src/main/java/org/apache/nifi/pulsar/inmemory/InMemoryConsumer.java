@@ -0,0 +1,840 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.apache.pulsar.client.api.BatchReceivePolicy;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.ConsumerStats;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.MessageListener;
+import org.apache.pulsar.client.api.Messages;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.SubscriptionInitialPosition;
+import org.apache.pulsar.client.api.SubscriptionType;
+import org.apache.pulsar.client.api.transaction.Transaction;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.client.impl.schema.AutoConsumeSchema;
+
+/**
+ * A Consumer of an {@link InMemoryPulsar}. Methods that the in-memory broker has no equivalent for, such as
+ * seeking, retry letter topics, transactions and statistics, throw an UnsupportedOperationException.
+ *
+ * The consumer joins the subscription on every partition of every topic it is subscribed to. Its subscriptions
+ * dispatch messages into its receiver queue, until the queue is full, and are asked to dispatch more once the
+ * queue has drained to half of its size. A topics pattern is resolved against the topics that exist when the
+ * consumer subscribes; topics created later are not picked up.
+ */
+final class InMemoryConsumer<T> implements Consumer<T> {
+
+    private static final long DEFAULT_NEGATIVE_ACK_DELAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long MIN_ACK_TIMEOUT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_ACK_TIMEOUT_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int DEFAULT_RECEIVER_QUEUE_SIZE = 1000;
+
+    private final InMemoryPulsar pulsar;
+    private final InMemoryClient client;
+    private final List<InMemoryTopic> topics;
+
+    // The schema that values are decoded with, or null to decode them with the schema they were published with
+    private final Schema<T> schema;
+    private final String subscriptionName;
+    private final SubscriptionType subscriptionType;
+    private final String consumerName;
+    private final int priorityLevel;
+    private final int receiverQueueSize;
+    private final long ackTimeoutNanos;
+    private final long negativeAckDelayNanos;
+    private final BatchReceivePolicy batchReceivePolicy;
+
+    // The subscription on each partition, by the partition's ledger id
+    private final Map<Long, InMemorySubscription> subscriptions = new HashMap<>();
+
+    private final BlockingQueue<InMemoryMessage<?>> incoming = new LinkedBlockingQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    // Messages that have been received but not acknowledged, and when their ack timeout expires
+    private final ConcurrentMap<MessageIdImpl, Long> unacknowledged = new ConcurrentHashMap<>();
+
+    private volatile boolean blocked = false;
+    private volatile boolean paused = false;
+    private volatile boolean closed = false;
+
+    private ScheduledFuture<?> ackTimeoutTask;
+
+    private InMemoryConsumer(InMemoryPulsar pulsar, InMemoryClient client, List<InMemoryTopic> topics, Schema<T> schema,
+                             Map<String, Object> settings) throws PulsarClientException {
+        this.pulsar = pulsar;
+        this.client = client;
+        this.topics = topics;
+        this.schema = schema instanceof AutoConsumeSchema ? null : schema;
+
+        final Object subscription = settings.get("subscriptionName");
+        if (subscription == null) {
+            throw new PulsarClientException.InvalidConfigurationException("Subscription name must be set on the consumer builder");
+        }
+        this.subscriptionName = subscription.toString();
+
+        final Object type = settings.get("subscriptionType");
+        this.subscriptionType = type == null ? SubscriptionType.Exclusive : SubscriptionType.valueOf(type.toString());
+
+        final Object name = settings.get("consumerName");
+        this.consumerName = name == null ? UUID.randomUUID().toString().substring(0, 5) : name.toString();
+
+        this.priorityLevel = intSetting(settings, "priorityLevel", 0);
+        this.receiverQueueSize = Math.max(1, intSetting(settings, "receiverQueueSize", DEFAULT_RECEIVER_QUEUE_SIZE));
+        this.ackTimeoutNanos = longSetting(settings, "ackTimeout", 0L);
+        this.negativeAckDelayNanos = longSetting(settings, "negativeAckRedeliveryDelay", DEFAULT_NEGATIVE_ACK_DELAY_NANOS);
+
+        final Object policy = settings.get("batchReceivePolicy");
+        this.batchReceivePolicy = policy instanceof BatchReceivePolicy ? (BatchReceivePolicy) policy : BatchReceivePolicy.DEFAULT_POLICY;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Consumer<T> create(InMemoryPulsar pulsar, InMemoryClient client, Schema<T> schema, Map<String, Object> settings)
+            throws PulsarClientException {
+        final InMemoryConsumer<T> consumer = new InMemoryConsumer<>(pulsar, client, resolveTopics(pulsar, settings), schema, settings);
+
+        final Object listener = settings.get("messageListener");
+        if (listener != null) {
+            pulsar.getExecutor().execute(() -> consumer.listen((MessageListener<T>) listener));
+        }
+
+        final Object position = settings.get("subscriptionInitialPosition");
+        consumer.subscribe(position == null ? SubscriptionInitialPosition.Latest : SubscriptionInitialPosition.valueOf(position.toString()));
+        return consumer;
+    }
+
+    private static List<InMemoryTopic> resolveTopics(InMemoryPulsar pulsar, Map<String, Object> settings)
+            throws PulsarClientException {
+        final Set<String> names = new LinkedHashSet<>();
+        final Object topic = settings.get("topic");
+        if (topic instanceof String[]) {
+            Collections.addAll(names, (String[]) topic);
+        } else if (topic != null) {
+            names.add(topic.toString());
+        }
+        for (String key : new String[] {"topics", "topicNames"}) {
+            final Object value = settings.get(key);
+            if (value instanceof Collection) {
+                for (Object name : (Collection<?>) value) {
+                    names.add(name.toString());
+                }
+            }
+        }
+
+        final List<InMemoryTopic> topics = new ArrayList<>();
+        for (String name : names) {
+            topics.add(pulsar.getTopic(name));
+        }
+
+        final Object pattern = settings.containsKey("topicsPattern") ? settings.get("topicsPattern") : settings.get("topicsPatternString");
+        if (pattern != null) {
+            topics.addAll(pulsar.getTopics(pattern instanceof Pattern ? (Pattern) pattern : Pattern.compile(pattern.toString())));
+        }
+
+        if (names.isEmpty() && pattern == null) {
+            throw new PulsarClientException.InvalidConfigurationException("Topic name must be set on the consumer builder");
+        }
+        return topics;
+    }
+
+    private void subscribe(SubscriptionInitialPosition position) throws PulsarClientException {
+        try {
+            for (InMemoryTopic topic : topics) {
+                for (PartitionLog log : topic.getPartitions()) {
+                    final InMemorySubscription subscription = log.subscribe(subscriptionName, position);
+                    synchronized (subscriptions) {
+                        subscriptions.put(log.getLedgerId(), subscription);
+                    }
+                    subscription.addConsumer(this, subscriptionType);
+                }
+            }
+        } catch (PulsarClientException e) {
+            closed = true;
+            for (InMemorySubscription subscription : getSubscriptions()) {
+                subscription.removeConsumer(this);
+            }
+            throw e;
+        }
+
+        if (ackTimeoutNanos > 0) {
+            final long tick = Math.min(MAX_ACK_TIMEOUT_TICK_NANOS, Math.max(MIN_ACK_TIMEOUT_TICK_NANOS, ackTimeoutNanos / 10));
+            ackTimeoutTask = pulsar.getScheduler().scheduleAtFixedRate(this::redeliverExpired, tick, tick, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public String getTopic() {
+        if (topics.size() == 1) {
+            return topics.get(0).getName();
+        }
+
+        final List<String> names = new ArrayList<>(topics.size());
+        for (InMemoryTopic topic : topics) {
+            names.add(topic.getName());
+        }
+        return String.join(",", names);
+    }
+
+    @Override
+    public String getSubscription() {
+        return subscriptionName;
+    }
+
+    @Override
+    public String getConsumerName() {
+        return consumerName;
+    }
+
+    public int getPriorityLevel() {
+        return priorityLevel;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    @Override
+    public boolean hasReachedEndOfTopic() {
+        return false;
+    }
+
+
+    // Receiving
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Message<T> receive() throws PulsarClientException {
+        checkOpen();
+        try {
+            return (Message<T>) taken(incoming.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Message<T> receive(int timeout, TimeUnit unit) throws PulsarClientException {
+        checkOpen();
+        try {
+            return (Message<T>) taken(incoming.poll(timeout, unit));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public CompletableFuture<Message<T>> receiveAsync() {
+        final InMemoryMessage<?> message = taken(incoming.poll());
+        if (message != null) {
+            return CompletableFuture.completedFuture((Message<T>) message);
+        }
+        return supplyAsync(this::receive);
+    }
+
+    /**
+     * Waits until the batch receive policy's number of messages or bytes has been received, or its timeout expires,
+     * and returns whatever has been received by then.
+     */
+    @Override
+    public Messages<T> batchReceive() throws PulsarClientException {
+        checkOpen();
+
+        final int maxMessages = batchReceivePolicy.getMaxNumMessages() > 0 ? batchReceivePolicy.getMaxNumMessages() : Integer.MAX_VALUE;
+        final long maxBytes = batchReceivePolicy.getMaxNumBytes() > 0 ? batchReceivePolicy.getMaxNumBytes() : Long.MAX_VALUE;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchReceivePolicy.getTimeoutMs());
+
+        final InMemoryMessages<T> messages = new InMemoryMessages<>();
+        try {
+            while (messages.size() < maxMessages && messages.bytes < maxBytes) {
+                InMemoryMessage<?> message = incoming.poll();
+                if (message == null) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    message = incoming.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (message == null) {
+                        break;
+                    }
+                }
+                messages.add(taken(message));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(e);
+        }
+        return messages;
+    }
+
+    @Override
+    public CompletableFuture<Messages<T>> batchReceiveAsync() {
+        return supplyAsync(this::batchReceive);
+    }
+
+    /**
+     * Takes a message off of the receiver queue, and asks for more messages once the queue has drained far enough.
+     */
+    private InMemoryMessage<?> taken(InMemoryMessage<?> message) {
+        if (message == null) {
+            return null;
+        }
+
+        if (ackTimeoutNanos > 0) {
+            unacknowledged.put((MessageIdImpl) message.getMessageId(), System.nanoTime() + ackTimeoutNanos);
+        }
+
+        // A subscription sets the flag before it checks for permits, and we take the permit before checking the flag,
+        // so that one of us always sees the other
+        if (queued.decrementAndGet() <= receiverQueueSize / 2 && blocked) {
+            blocked = false;
+            dispatch();
+        }
+        return message;
+    }
+
+    private void listen(MessageListener<T> listener) {
+        while (!closed) {
+            try {
+                final InMemoryMessage<?> message = taken(incoming.poll(100, TimeUnit.MILLISECONDS));
+                if (message != null) {
+                    listen(listener, message);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void listen(MessageListener<T> listener, InMemoryMessage<?> message) {
+        try {
+            listener.received(this, (Message<T>) message);
+        } catch (RuntimeException e) {
+            // The real client logs and carries on when a listener fails
+        }
+    }
+
+    // Dispatching, called by the subscriptions
+
+    boolean hasPermits() {
+        return !closed && !paused && queued.get() < receiverQueueSize;
+    }
+
+    /**
+     * Records that a subscription is waiting for room in the receiver queue.
+     *
+     * @return true if there turned out to be room after all, in which case the subscription may dispatch now.
+     */
+    boolean block() {
+        blocked = true;
+        return hasPermits();
+    }
+
+    void deliver(InMemoryMessage<?> message) {
+        queued.incrementAndGet();
+        incoming.add(schema == null ? message : message.decodedWith(schema));
+    }
+
+    private void dispatch() {
+        for (InMemorySubscription subscription : getSubscriptions()) {
+            subscription.dispatch();
+        }
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        dispatch();
+    }
+
+    // Acknowledging
+
+    @Override
+    public void acknowledge(Message<?> message) throws PulsarClientException {
+        await(acknowledgeAsync(message));
+    }
+
+    @Override
+    public void acknowledge(MessageId messageId) throws PulsarClientException {
+        await(acknowledgeAsync(messageId));
+    }
+
+    @Override
+    public void acknowledge(List<MessageId> messageIds) throws PulsarClientException {
+        await(acknowledgeAsync(messageIds));
+    }
+
+    @Override
+    public void acknowledge(Messages<?> messages) throws PulsarClientException {
+        await(acknowledgeAsync(messages));
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(Message<?> message) {
+        return acknowledgeAsync(message.getMessageId());
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(MessageId messageId) {
+        return acknowledge(Collections.singletonList(messageId), false);
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(List<MessageId> messageIds) {
+        return acknowledge(messageIds, false);
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(Messages<?> messages) {
+        final List<MessageId> messageIds = new ArrayList<>(messages.size());
+        for (Message<?> message : messages) {
+            messageIds.add(message.getMessageId());
+        }
+        return acknowledge(messageIds, false);
+    }
+
+    @Override
+    public void acknowledgeCumulative(Message<?> message) throws PulsarClientException {
+        await(acknowledgeCumulativeAsync(message));
+    }
+
+    @Override
+    public void acknowledgeCumulative(MessageId messageId) throws PulsarClientException {
+        await(acknowledgeCumulativeAsync(messageId));
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeCumulativeAsync(Message<?> message) {
+        return acknowledgeCumulativeAsync(message.getMessageId());
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeCumulativeAsync(MessageId messageId) {
+        if (subscriptionType == SubscriptionType.Shared || subscriptionType == SubscriptionType.Key_Shared) {
+            return failed(new PulsarClientException.InvalidConfigurationException(
+                    "Cannot use cumulative acks on a non-exclusive/non-failover subscription"));
+        }
+        return acknowledge(Collections.singletonList(messageId), true);
+    }
+
+    private CompletableFuture<Void> acknowledge(List<MessageId> messageIds, boolean cumulative) {
+        if (closed) {
+            return failed(new PulsarClientException.AlreadyClosedException("Consumer already closed"));
+        }
+
+        final List<MessageIdImpl> ids = new ArrayList<>(messageIds.size());
+        for (MessageId messageId : messageIds) {
+            final MessageIdImpl id = (MessageIdImpl) messageId;
+            ids.add(id);
+            if (cumulative) {
+                unacknowledged.keySet().removeIf(pending -> pending.getLedgerId() == id.getLedgerId() && pending.getEntryId() <= id.getEntryId());
+            } else {
+                unacknowledged.remove(id);
+            }
+        }
+
+        return pulsar.acknowledge(() -> {
+            final Set<PartitionLog> logs = new LinkedHashSet<>();
+            for (MessageIdImpl id : ids) {
+                final InMemorySubscription subscription = getSubscription(id.getLedgerId());
+                if (subscription == null) {
+                    continue;
+                }
+                if (cumulative) {
+                    subscription.acknowledgeCumulative(id.getEntryId());
+                } else {
+                    subscription.acknowledge(id.getEntryId());
+                }
+                logs.add(subscription.getLog());
+            }
+            for (PartitionLog log : logs) {
+                log.trim();
+            }
+        }, ids.size());
+    }
+
+    // Redelivering
+
+    @Override
+    public void negativeAcknowledge(Message<?> message) {
+        negativeAcknowledge(message.getMessageId());
+    }
+
+    @Override
+    public void negativeAcknowledge(MessageId messageId) {
+        negativeAcknowledge(Collections.singletonList(messageId));
+    }
+
+    @Override
+    public void negativeAcknowledge(Messages<?> messages) {
+        final List<MessageId> messageIds = new ArrayList<>(messages.size());
+        for (Message<?> message : messages) {
+            messageIds.add(message.getMessageId());
+        }
+        negativeAcknowledge(messageIds);
+    }
+
+    private void negativeAcknowledge(List<MessageId> messageIds) {
+        final List<MessageIdImpl> ids = new ArrayList<>(messageIds.size());
+        for (MessageId messageId : messageIds) {
+            ids.add((MessageIdImpl) messageId);
+            unacknowledged.remove(messageId);
+        }
+        pulsar.getScheduler().schedule(() -> redeliver(ids), negativeAckDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void redeliverUnacknowledgedMessages() {
+        unacknowledged.clear();
+
+        // The real client clears its receiver queue as well, since every message in it is about to be delivered again
+        final List<InMemoryMessage<?>> drained = new ArrayList<>();
+        incoming.drainTo(drained);
+        queued.addAndGet(-drained.size());
+
+        int count = 0;
+        final List<InMemorySubscription> subscriptions = getSubscriptions();
+        for (InMemorySubscription subscription : subscriptions) {
+            count += subscription.redeliverAll(this);
+        }
+        pulsar.redelivered(count);
+
+        for (InMemorySubscription subscription : subscriptions) {
+            subscription.dispatch();
+        }
+    }
+
+    private void redeliverExpired() {
+        final long now = System.nanoTime();
+        final List<MessageIdImpl> expired = new ArrayList<>();
+
+        final Iterator<Map.Entry<MessageIdImpl, Long>> entries = unacknowledged.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<MessageIdImpl, Long> entry = entries.next();
+            if (entry.getValue() - now <= 0) {
+                expired.add(entry.getKey());
+                entries.remove();
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            redeliver(expired);
+        }
+    }
+
+    private void redeliver(List<MessageIdImpl> ids) {
+        if (closed) {
+            return;
+        }
+
+        final Map<InMemorySubscription, List<Long>> entryIds = new HashMap<>();
+        for (MessageIdImpl id : ids) {
+            final InMemorySubscription subscription = getSubscription(id.getLedgerId());
+            if (subscription != null) {
+                entryIds.computeIfAbsent(subscription, s -> new ArrayList<>()).add(id.getEntryId());
+            }
+        }
+
+        int count = 0;
+        for (Map.Entry<InMemorySubscription, List<Long>> entry : entryIds.entrySet()) {
+            count += entry.getKey().redeliver(entry.getValue(), this);
+        }
+        pulsar.redelivered(count);
+
+        for (InMemorySubscription subscription : entryIds.keySet()) {
+            subscription.dispatch();
+        }
+    }
+
+    // Closing
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        if (ackTimeoutTask != null) {
+            ackTimeoutTask.cancel(false);
+        }
+
+        incoming.clear();
+        queued.set(0);
+        unacknowledged.clear();
+
+        for (InMemorySubscription subscription : getSubscriptions()) {
+            subscription.removeConsumer(this);
+        }
+        client.closed(this);
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        close();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void unsubscribe() {
+        close();
+        for (InMemorySubscription subscription : getSubscriptions()) {
+            subscription.getLog().unsubscribe(subscriptionName);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> unsubscribeAsync() {
+        unsubscribe();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Unsupported
+
+    @Override
+    public void reconsumeLater(Message<?> message, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLater");
+    }
+
+    @Override
+    public void reconsumeLater(Messages<?> messages, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLater");
+    }
+
+    @Override
+    public void reconsumeLaterCumulative(Message<?> message, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLaterCumulative");
+    }
+
+    @Override
+    public CompletableFuture<Void> reconsumeLaterAsync(Message<?> message, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLaterAsync");
+    }
+
+    @Override
+    public CompletableFuture<Void> reconsumeLaterAsync(Messages<?> messages, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLaterAsync");
+    }
+
+    @Override
+    public CompletableFuture<Void> reconsumeLaterCumulativeAsync(Message<?> message, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLaterCumulativeAsync");
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(MessageId messageId, Transaction txn) {
+        throw unsupported("acknowledgeAsync(MessageId, Transaction)");
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeCumulativeAsync(MessageId messageId, Transaction txn) {
+        throw unsupported("acknowledgeCumulativeAsync(MessageId, Transaction)");
+    }
+
+    @Override
+    public void seek(MessageId messageId) {
+        throw unsupported("seek");
+    }
+
+    @Override
+    public void seek(long timestamp) {
+        throw unsupported("seek");
+    }
+
+    @Override
+    public CompletableFuture<Void> seekAsync(MessageId messageId) {
+        throw unsupported("seekAsync");
+    }
+
+    @Override
+    public CompletableFuture<Void> seekAsync(long timestamp) {
+        throw unsupported("seekAsync");
+    }
+
+    @Override
+    public MessageId getLastMessageId() {
+        throw unsupported("getLastMessageId");
+    }
+
+    @Override
+    public CompletableFuture<MessageId> getLastMessageIdAsync() {
+        throw unsupported("getLastMessageIdAsync");
+    }
+
+    @Override
+    public ConsumerStats getStats() {
+        throw unsupported("getStats");
+    }
+
+    // Not every supported Pulsar release declares the following methods, so they are not marked as overrides
+
+    public long getLastDisconnectedTimestamp() {
+        return 0L;
+    }
+
+    public void seek(Function<String, Object> function) {
+        throw unsupported("seek");
+    }
+
+    public CompletableFuture<Void> seekAsync(Function<String, Object> function) {
+        throw unsupported("seekAsync");
+    }
+
+    public void reconsumeLater(Message<?> message, Map<String, String> customProperties, long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLater");
+    }
+
+    public CompletableFuture<Void> reconsumeLaterAsync(Message<?> message, Map<String, String> customProperties,
+                                                       long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLaterAsync");
+    }
+
+    public CompletableFuture<Void> reconsumeLaterCumulativeAsync(Message<?> message, Map<String, String> customProperties,
+                                                                 long delayTime, TimeUnit unit) {
+        throw unsupported("reconsumeLaterCumulativeAsync");
+    }
+
+    private static UnsupportedOperationException unsupported(String method) {
+        return new UnsupportedOperationException("Consumer." + method + " is not supported by the in-memory Pulsar client");
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryConsumer[" + consumerName + " on " + subscriptionName + "]";
+    }
+
+    private InMemorySubscription getSubscription(long ledgerId) {
+        synchronized (subscriptions) {
+            return subscriptions.get(ledgerId);
+        }
+    }
+
+    private List<InMemorySubscription> getSubscriptions() {
+        synchronized (subscriptions) {
+            return new ArrayList<>(subscriptions.values());
+        }
+    }
+
+    private void checkOpen() throws PulsarClientException {
+        if (closed) {
+            throw new PulsarClientException.AlreadyClosedException("Consumer already closed");
+        }
+    }
+
+    private <V> CompletableFuture<V> supplyAsync(Receive<V> receive) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        pulsar.getExecutor().execute(() -> {
+            try {
+                future.complete(receive.get());
+            } catch (PulsarClientException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static <V> CompletableFuture<V> failed(Throwable failure) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private static void await(CompletableFuture<?> future) throws PulsarClientException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(e);
+        } catch (ExecutionException e) {
+            throw PulsarClientException.unwrap(e.getCause());
+        }
+    }
+
+    private static int intSetting(Map<String, Object> settings, String name, int defaultValue) {
+        final Object value = settings.get(name);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    private static long longSetting(Map<String, Object> settings, String name, long defaultValue) {
+        final Object value = settings.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    @FunctionalInterface
+    private interface Receive<V> {
+        V get() throws PulsarClientException;
+    }
+
+    /**
+     * The messages returned by a batch receive.
+     */
+    private static final class InMemoryMessages<T> implements Messages<T> {
+        private final List<Message<T>> messages = new ArrayList<>();
+        private long bytes = 0;
+
+        @SuppressWarnings("unchecked")
+        private void add(InMemoryMessage<?> message) {
+            messages.add((Message<T>) message);
+            bytes += message.size();
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+
+        @Override
+        public Iterator<Message<T>> iterator() {
+            return messages.iterator();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.Map;
+
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+
+/**
+ * A message held by an in-memory topic. It is a MessageImpl, like the messages of the real client, so that code
+ * which reads the payload straight from the message's buffer behaves the same against both. The value is decoded
+ * with the schema of the consumer that receives the message, or with the schema that the message was published with
+ * for consumers that use AUTO_CONSUME.
+ */
+class InMemoryMessage<T> extends MessageImpl<T> {
+
+    private final MessageIdImpl messageId;
+    private final Schema<T> schema;
+    private final MessageMetadata metadata;
+    private final int redeliveryCount;
+
+    InMemoryMessage(String topic, MessageIdImpl messageId, Map<String, String> properties, ByteBuf payload,
+                    Schema<T> schema, MessageMetadata metadata, int redeliveryCount) {
+        super(topic, messageId.getLedgerId() + ":" + messageId.getEntryId(), properties, payload, schema, metadata);
+        this.messageId = messageId;
+        this.schema = schema;
+        this.metadata = metadata;
+        this.redeliveryCount = redeliveryCount;
+    }
+
+    /**
+     * @return a copy of this message that shares its payload, as it is delivered again for the given time.
+     */
+    InMemoryMessage<T> redelivered(int count) {
+        return new InMemoryMessage<>(getTopicName(), messageId, getProperties(), getDataBuffer(), schema, metadata, count);
+    }
+
+    /**
+     * @return a copy of this message that shares its payload, whose value is decoded with the given schema.
+     */
+    <V> InMemoryMessage<V> decodedWith(Schema<V> valueSchema) {
+        return new InMemoryMessage<>(getTopicName(), messageId, getProperties(), getDataBuffer(), valueSchema, metadata, redeliveryCount);
+    }
+
+    long getEntryId() {
+        return messageId.getEntryId();
+    }
+
+    @Override
+    public MessageId getMessageId() {
+        return messageId;
+    }
+
+    @Override
+    public int getRedeliveryCount() {
+        return redeliveryCount;
+    }
+}
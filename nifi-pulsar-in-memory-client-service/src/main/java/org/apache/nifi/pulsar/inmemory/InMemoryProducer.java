@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.MessageRoutingMode;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerStats;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.apache.pulsar.client.api.transaction.Transaction;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+
+/**
+ * A Producer of an {@link InMemoryPulsar}. Methods that the in-memory broker has no equivalent for, such as
+ * transactions and statistics, throw an UnsupportedOperationException.
+ *
+ * Messages with a key are routed to the partition chosen by the hash of their key. Other messages are routed to
+ * each partition in turn, or to a single partition chosen when the producer is created, depending on the
+ * message routing mode. The hash is not the one that Pulsar uses, so keys may land on different partitions.
+ */
+final class InMemoryProducer<T> implements Producer<T> {
+
+    private static final AtomicLong PRODUCER_IDS = new AtomicLong(0);
+
+    private final InMemoryPulsar pulsar;
+    private final InMemoryClient client;
+    private final InMemoryTopic topic;
+    private final Schema<T> schema;
+    private final String producerName;
+    private final MessageRoutingMode routingMode;
+    private final int singlePartition;
+
+    private final AtomicInteger nextPartition = new AtomicInteger(0);
+    private final AtomicLong nextSequenceId = new AtomicLong(0);
+
+    private volatile CompletableFuture<?> lastSend = CompletableFuture.completedFuture(null);
+    private volatile boolean closed = false;
+
+    private InMemoryProducer(InMemoryPulsar pulsar, InMemoryClient client, InMemoryTopic topic, Schema<T> schema,
+                             String producerName, MessageRoutingMode routingMode) {
+        this.pulsar = pulsar;
+        this.client = client;
+        this.topic = topic;
+        this.schema = schema;
+        this.producerName = producerName;
+        this.routingMode = routingMode;
+        this.singlePartition = ThreadLocalRandom.current().nextInt(topic.getPartitions().size());
+    }
+
+    static <T> Producer<T> create(InMemoryPulsar pulsar, InMemoryClient client, Schema<T> schema, Map<String, Object> settings)
+            throws PulsarClientException {
+        final Object topicName = settings.containsKey("topic") ? settings.get("topic") : settings.get("topicName");
+        if (topicName == null) {
+            throw new PulsarClientException.InvalidConfigurationException("Topic name must be set on the producer builder");
+        }
+
+        final Object producerName = settings.get("producerName");
+        final Object routingMode = settings.get("messageRoutingMode");
+
+        return new InMemoryProducer<>(pulsar, client, pulsar.getTopic(topicName.toString()), schema,
+                producerName == null ? "in-memory-" + PRODUCER_IDS.getAndIncrement() : producerName.toString(),
+                routingMode == null ? MessageRoutingMode.RoundRobinPartition : MessageRoutingMode.valueOf(routingMode.toString()));
+    }
+
+    @Override
+    public String getTopic() {
+        return topic.getName();
+    }
+
+    @Override
+    public String getProducerName() {
+        return producerName;
+    }
+
+    @Override
+    public TypedMessageBuilder<T> newMessage() {
+        return newMessage(schema);
+    }
+
+    @Override
+    public <V> TypedMessageBuilder<V> newMessage(Schema<V> messageSchema) {
+        return new MessageBuilder<>(messageSchema);
+    }
+
+    @Override
+    public TypedMessageBuilder<T> newMessage(Transaction txn) {
+        throw unsupported("Producer.newMessage(Transaction)");
+    }
+
+    @Override
+    public MessageId send(T value) throws PulsarClientException {
+        return newMessage().value(value).send();
+    }
+
+    @Override
+    public CompletableFuture<MessageId> sendAsync(T value) {
+        return newMessage().value(value).sendAsync();
+    }
+
+    @Override
+    public long getLastSequenceId() {
+        return nextSequenceId.get() - 1;
+    }
+
+    @Override
+    public void flush() throws PulsarClientException {
+        await(flushAsync());
+    }
+
+    /**
+     * Messages are appended in the order they were sent, so every message has been appended once the last one has.
+     */
+    @Override
+    public CompletableFuture<Void> flushAsync() {
+        return lastSend.handle((result, failure) -> null);
+    }
+
+    @Override
+    public void close() throws PulsarClientException {
+        await(closeAsync());
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        closed = true;
+        client.closed(this);
+        return flushAsync();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    @Override
+    public ProducerStats getStats() {
+        throw unsupported("Producer.getStats");
+    }
+
+    // Not every supported Pulsar release declares the following methods, so they are not marked as overrides
+
+    public long getLastDisconnectedTimestamp() {
+        return 0L;
+    }
+
+    public int getNumOfPartitions() {
+        return topic.getPartitionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryProducer[" + producerName + " on " + topic.getName() + "]";
+    }
+
+    private <V> CompletableFuture<MessageId> send(MessageBuilder<V> message, Schema<V> messageSchema) {
+        if (closed) {
+            final CompletableFuture<MessageId> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new PulsarClientException.AlreadyClosedException("Producer already closed"));
+            return failed;
+        }
+
+        final MessageMetadata metadata = new MessageMetadata()
+                .setProducerName(producerName)
+                .setSequenceId(message.sequenceId >= 0 ? message.sequenceId : nextSequenceId.getAndIncrement())
+                .setPublishTime(System.currentTimeMillis());
+        if (message.key != null) {
+            metadata.setPartitionKey(message.key);
+        }
+        if (message.orderingKey != null) {
+            metadata.setOrderingKey(message.orderingKey);
+        }
+        if (message.eventTime > 0) {
+            metadata.setEventTime(message.eventTime);
+        }
+        if (message.value == null) {
+            metadata.setNullValue(true);
+        }
+
+        final byte[] payload = message.value == null ? new byte[0] : messageSchema.encode(message.value);
+        final Map<String, String> properties = message.properties.isEmpty()
+                ? Collections.emptyMap() : Collections.unmodifiableMap(message.properties);
+        final PartitionLog log = route(message.key);
+
+        final CompletableFuture<MessageId> future = pulsar.publish(log, entryId -> new InMemoryMessage<>(log.getName(),
+                new MessageIdImpl(log.getLedgerId(), entryId, log.getPartitionIndex()), properties, Unpooled.wrappedBuffer(payload),
+                messageSchema, metadata, 0)).thenApply(Message::getMessageId);
+        lastSend = future;
+        return future;
+    }
+
+    private PartitionLog route(String key) {
+        final List<PartitionLog> partitions = topic.getPartitions();
+        if (partitions.size() == 1) {
+            return partitions.get(0);
+        }
+
+        if (key != null) {
+            return partitions.get((key.hashCode() & Integer.MAX_VALUE) % partitions.size());
+        }
+        if (routingMode == MessageRoutingMode.SinglePartition) {
+            return partitions.get(singlePartition);
+        }
+        return partitions.get((nextPartition.getAndIncrement() & Integer.MAX_VALUE) % partitions.size());
+    }
+
+    private static UnsupportedOperationException unsupported(String method) {
+        return new UnsupportedOperationException(method + " is not supported by the in-memory Pulsar client");
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws PulsarClientException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PulsarClientException(e);
+        } catch (ExecutionException e) {
+            throw PulsarClientException.unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * The producer's TypedMessageBuilder.
+     */
+    final class MessageBuilder<V> implements TypedMessageBuilder<V> {
+        private static final long serialVersionUID = 1L;
+
+        private final Schema<V> messageSchema;
+        private final Map<String, String> properties = new HashMap<>();
+
+        private V value;
+        private String key;
+        private byte[] orderingKey;
+        private long eventTime = 0;
+        private long sequenceId = -1;
+
+        private MessageBuilder(Schema<V> messageSchema) {
+            this.messageSchema = messageSchema;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> value(V value) {
+            this.value = value;
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> key(String key) {
+            this.key = key;
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> keyBytes(byte[] key) {
+            this.key = java.util.Base64.getEncoder().encodeToString(key);
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> orderingKey(byte[] orderingKey) {
+            this.orderingKey = orderingKey;
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> property(String name, String value) {
+            properties.put(name, value);
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> properties(Map<String, String> properties) {
+            this.properties.putAll(properties);
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> eventTime(long timestamp) {
+            this.eventTime = timestamp;
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> sequenceId(long sequenceId) {
+            this.sequenceId = sequenceId;
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> disableReplication() {
+            return this;
+        }
+
+        @Override
+        public MessageId send() throws PulsarClientException {
+            return await(sendAsync());
+        }
+
+        @Override
+        public CompletableFuture<MessageId> sendAsync() {
+            return InMemoryProducer.this.send(this, messageSchema);
+        }
+
+        @Override
+        public TypedMessageBuilder<V> replicationClusters(List<String> clusters) {
+            return this;
+        }
+
+        @Override
+        public TypedMessageBuilder<V> deliverAt(long timestamp) {
+            throw unsupported("TypedMessageBuilder.deliverAt");
+        }
+
+        @Override
+        public TypedMessageBuilder<V> deliverAfter(long delay, TimeUnit unit) {
+            throw unsupported("TypedMessageBuilder.deliverAfter");
+        }
+
+        @Override
+        public TypedMessageBuilder<V> loadConf(Map<String, Object> config) {
+            throw unsupported("TypedMessageBuilder.loadConf");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+import java.util.regex.Pattern;
+
+import org.apache.pulsar.client.api.PulsarClient;
+
+/**
+ * A Pulsar broker that keeps its topics in memory, within the JVM of its clients. It models the parts of Pulsar
+ * that decide how fast, and in what order, messages flow through a processor: partitioned topics, every
+ * subscription type, receiver queues, individual and cumulative acknowledgements, and the redelivery of messages
+ * that are negatively acknowledged or not acknowledged within the ack timeout. Latency can be injected into
+ * publishing and acknowledging, to see how a processor copes with a slower broker.
+ *
+ * It does not model persistence, retention, schemas beyond encoding and decoding values, transactions, dead letter
+ * topics or delayed delivery. Clients obtained from {@link #newClient()} fail with an UnsupportedOperationException
+ * when one of those is used.
+ */
+public class InMemoryPulsar implements Closeable {
+
+    private final ConcurrentMap<String, InMemoryTopic> topics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, PartitionLog> logs = new ConcurrentHashMap<>();
+    private final AtomicLong nextLedgerId = new AtomicLong(0);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("in-memory-pulsar-timer"));
+    private final ExecutorService executor = Executors.newCachedThreadPool(daemonThreads("in-memory-pulsar"));
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+
+    private volatile int defaultPartitions = 0;
+    private volatile long publishLatencyNanos = 0;
+    private volatile long acknowledgementLatencyNanos = 0;
+
+    /**
+     * @return a new client of this broker. Closing the client closes its producers and consumers, but leaves the
+     *   broker's topics and subscriptions in place.
+     */
+    public PulsarClient newClient() {
+        return Proxies.forward(PulsarClient.class, new InMemoryClient(this));
+    }
+
+    /**
+     * Creates a topic with the given number of partitions, or a non-partitioned topic if the number is zero.
+     * Topics that do not exist are otherwise created when they are first used, with the default number of partitions.
+     *
+     * @throws IllegalStateException if the topic already exists with a different number of partitions.
+     */
+    public void createTopic(String topic, int partitions) {
+        final InMemoryTopic created = topics.computeIfAbsent(InMemoryTopic.normalize(topic), name -> new InMemoryTopic(name, partitions, this));
+        if (created.getPartitionCount() != partitions) {
+            throw new IllegalStateException(topic + " already exists with " + created.getPartitionCount() + " partitions");
+        }
+    }
+
+    /**
+     * @return the names of every topic, without their partitions.
+     */
+    public List<String> getTopics() {
+        return new ArrayList<>(topics.keySet());
+    }
+
+    /**
+     * @return the number of partitions of the topic, which is zero if it is not partitioned.
+     */
+    public int getPartitionCount(String topic) {
+        return getTopic(topic).getPartitionCount();
+    }
+
+    /**
+     * @return the number of messages that the subscription has not acknowledged, across all partitions.
+     */
+    public long getBacklog(String topic, String subscription) {
+        long backlog = 0;
+        for (PartitionLog log : getTopic(topic).getPartitions()) {
+            final InMemorySubscription sub = log.getSubscription(subscription);
+            backlog += sub == null ? 0 : sub.getBacklog();
+        }
+        return backlog;
+    }
+
+    /**
+     * @return the number of messages that have been dispatched to the subscription's consumers, but not acknowledged.
+     */
+    public long getUnacknowledgedCount(String topic, String subscription) {
+        long unacknowledged = 0;
+        for (PartitionLog log : getTopic(topic).getPartitions()) {
+            final InMemorySubscription sub = log.getSubscription(subscription);
+            unacknowledged += sub == null ? 0 : sub.getUnacknowledgedCount();
+        }
+        return unacknowledged;
+    }
+
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledged.sum();
+    }
+
+    /**
+     * @return the number of messages that have been redelivered because they were negatively acknowledged, their
+     *   ack timeout expired, or their consumer asked for its unacknowledged messages again.
+     */
+    public long getRedeliveredCount() {
+        return redelivered.sum();
+    }
+
+    /**
+     * Sets the number of partitions that topics get when they are created on first use.
+     */
+    public void setDefaultPartitions(int partitions) {
+        this.defaultPartitions = partitions;
+    }
+
+    /**
+     * Sets how long the broker takes to persist a message, during which it is neither acknowledged to the producer
+     * nor dispatched to consumers.
+     */
+    public void setPublishLatency(long latency, TimeUnit unit) {
+        this.publishLatencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Sets how long the broker takes to process an acknowledgement, before the future of an asynchronous
+     * acknowledgement completes, or a synchronous one returns.
+     */
+    public void setAcknowledgementLatency(long latency, TimeUnit unit) {
+        this.acknowledgementLatencyNanos = unit.toNanos(latency);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    InMemoryTopic getTopic(String topic) {
+        return topics.computeIfAbsent(InMemoryTopic.normalize(topic), name -> new InMemoryTopic(name, defaultPartitions, this));
+    }
+
+    List<InMemoryTopic> getTopics(Pattern pattern) {
+        final List<InMemoryTopic> matches = new ArrayList<>();
+        for (InMemoryTopic topic : topics.values()) {
+            if (pattern.matcher(topic.getName()).matches()) {
+                matches.add(topic);
+            }
+        }
+        return matches;
+    }
+
+    PartitionLog createLog(String name, int partitionIndex) {
+        final PartitionLog log = new PartitionLog(name, partitionIndex, nextLedgerId.getAndIncrement());
+        logs.put(log.getLedgerId(), log);
+        return log;
+    }
+
+    PartitionLog getLog(long ledgerId) {
+        return logs.get(ledgerId);
+    }
+
+    /**
+     * Appends the message created by the factory to the log once the publish latency has elapsed.
+     *
+     * @return a future that completes with the message once it has been appended.
+     */
+    CompletableFuture<InMemoryMessage<?>> publish(PartitionLog log, LongFunction<InMemoryMessage<?>> factory) {
+        final long latency = publishLatencyNanos;
+        if (latency <= 0) {
+            published.increment();
+            return CompletableFuture.completedFuture(log.append(factory));
+        }
+
+        // The timer runs tasks with the same delay in the order they were scheduled, which keeps the producer's order
+        final CompletableFuture<InMemoryMessage<?>> future = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            published.increment();
+            future.complete(log.append(factory));
+        }, latency, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    /**
+     * Runs the acknowledgement once the acknowledgement latency has elapsed.
+     *
+     * @param count - The number of messages being acknowledged.
+     */
+    CompletableFuture<Void> acknowledge(Runnable acknowledgement, int count) {
+        final long latency = acknowledgementLatencyNanos;
+        if (latency <= 0) {
+            acknowledgement.run();
+            acknowledged.add(count);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            try {
+                acknowledgement.run();
+                acknowledged.add(count);
+                future.complete(null);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }, latency, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    void redelivered(int count) {
+        redelivered.add(count);
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        final AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
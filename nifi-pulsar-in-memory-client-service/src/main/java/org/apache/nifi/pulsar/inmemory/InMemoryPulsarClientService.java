@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.annotation.lifecycle.OnShutdown;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.pulsar.PulsarClientService;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+
+@Tags({"Pulsar", "client", "test", "in-memory"})
+@CapabilityDescription("Implementation of the PulsarClientService that keeps its topics in memory rather than connecting "
+        + "to a Pulsar cluster. Intended for load tests and benchmarks of the Pulsar processors, where it takes the "
+        + "broker and the network out of the measurements. Every client of the service shares the same in-memory broker.")
+public class InMemoryPulsarClientService extends AbstractControllerService implements PulsarClientService {
+
+    public static final String BROKER_URL = "pulsar://localhost:6650";
+
+    public static final PropertyDescriptor DEFAULT_PARTITIONS = new PropertyDescriptor.Builder()
+            .name("DEFAULT_PARTITIONS")
+            .displayName("Default Partitions")
+            .description("The number of partitions that a topic is created with when it is first used. "
+                    + "Zero creates non-partitioned topics.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .build();
+
+    public static final PropertyDescriptor PUBLISH_LATENCY = new PropertyDescriptor.Builder()
+            .name("PUBLISH_LATENCY")
+            .displayName("Publish Latency")
+            .description("How long the broker takes to persist a published message, before it is acknowledged to "
+                    + "the producer and dispatched to consumers.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("0 ms")
+            .build();
+
+    public static final PropertyDescriptor ACKNOWLEDGEMENT_LATENCY = new PropertyDescriptor.Builder()
+            .name("ACKNOWLEDGEMENT_LATENCY")
+            .displayName("Acknowledgement Latency")
+            .description("How long the broker takes to process an acknowledgement from a consumer.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("0 ms")
+            .build();
+
+    private static final List<PropertyDescriptor> properties;
+
+    static {
+        final List<PropertyDescriptor> props = new ArrayList<>();
+        props.add(DEFAULT_PARTITIONS);
+        props.add(PUBLISH_LATENCY);
+        props.add(ACKNOWLEDGEMENT_LATENCY);
+        properties = Collections.unmodifiableList(props);
+    }
+
+    private final InMemoryPulsar pulsar = new InMemoryPulsar();
+    private volatile PulsarClient client;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        pulsar.setDefaultPartitions(context.getProperty(DEFAULT_PARTITIONS).asInteger());
+        pulsar.setPublishLatency(context.getProperty(PUBLISH_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        pulsar.setAcknowledgementLatency(context.getProperty(ACKNOWLEDGEMENT_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        client = pulsar.newClient();
+    }
+
+    @OnDisabled
+    @OnShutdown
+    public void cleanup() throws PulsarClientException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    @Override
+    public PulsarClient getPulsarClient() {
+        return client;
+    }
+
+    @Override
+    public String getPulsarBrokerRootURL() {
+        return BROKER_URL;
+    }
+
+    /**
+     * @return the broker behind the service's clients, to create topics on, inject latency into, or inspect the
+     *   backlog of a subscription. Its topics outlive the service being disabled and enabled again.
+     */
+    public InMemoryPulsar getPulsar() {
+        return pulsar;
+    }
+}
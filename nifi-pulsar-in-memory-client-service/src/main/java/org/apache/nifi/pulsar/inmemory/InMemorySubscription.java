@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.SubscriptionType;
+
+/**
+ * A durable subscription on one partition. It keeps a cursor over the partition's messages, hands them to its
+ * consumers according to the subscription type, and tracks which of them have been acknowledged.
+ *
+ * <ul>
+ *     <li>Exclusive subscriptions only admit a single consumer.</li>
+ *     <li>Failover subscriptions deliver to one active consumer, chosen by priority level and then by name. On a
+ *     partitioned topic, the partitions are spread across the consumers in that order.</li>
+ *     <li>Shared subscriptions deliver to each consumer in turn, skipping consumers whose receiver queue is full.</li>
+ *     <li>Key_Shared subscriptions deliver all of the messages with the same key to the same consumer.</li>
+ * </ul>
+ *
+ * Each consumer has a receiver queue, and dispatching stops once the queue of the consumer that is due the next
+ * message is full. It resumes when that consumer has taken enough messages off of its queue. Messages that are
+ * negatively acknowledged, whose ack timeout expires, or whose consumer goes away, are delivered again before any
+ * new messages.
+ */
+final class InMemorySubscription {
+
+    private static final Comparator<InMemoryConsumer<?>> FAILOVER_ORDER =
+            Comparator.<InMemoryConsumer<?>>comparingInt(InMemoryConsumer::getPriorityLevel).thenComparing(InMemoryConsumer::getConsumerName);
+
+    private final PartitionLog log;
+    private final String name;
+
+    private final List<InMemoryConsumer<?>> consumers = new ArrayList<>();
+    private SubscriptionType type;
+
+    // The id of the next message that has not been dispatched yet
+    private long readPosition;
+
+    // Every message before this one has been acknowledged
+    private volatile long acknowledgedPosition;
+
+    // Messages after the acknowledged position that have been acknowledged individually
+    private final NavigableSet<Long> acknowledged = new TreeSet<>();
+
+    // Messages that have been dispatched, but not acknowledged, and the consumer that they were dispatched to
+    private final NavigableMap<Long, InMemoryConsumer<?>> pending = new TreeMap<>();
+
+    // Messages that are to be dispatched again, and how many times they have been delivered before
+    private final NavigableMap<Long, Integer> redeliveries = new TreeMap<>();
+
+    private int nextShared = 0;
+
+    InMemorySubscription(PartitionLog log, String name, long position) {
+        this.log = log;
+        this.name = name;
+        this.readPosition = position;
+        this.acknowledgedPosition = position;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    PartitionLog getLog() {
+        return log;
+    }
+
+    long getAcknowledgedPosition() {
+        return acknowledgedPosition;
+    }
+
+    synchronized SubscriptionType getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of messages that have not been acknowledged yet.
+     */
+    synchronized long getBacklog() {
+        return Math.max(0, log.size() - acknowledgedPosition - acknowledged.size());
+    }
+
+    /**
+     * @return the number of messages that have been dispatched to consumers, but not acknowledged yet.
+     */
+    synchronized int getUnacknowledgedCount() {
+        return pending.size();
+    }
+
+    synchronized void addConsumer(InMemoryConsumer<?> consumer, SubscriptionType subscriptionType) throws PulsarClientException {
+        if (!consumers.isEmpty()) {
+            if (type != subscriptionType) {
+                throw new PulsarClientException.ConsumerBusyException("Subscription " + name + " is of type " + type
+                        + " and cannot be joined by a " + subscriptionType + " consumer");
+            }
+            if (type == SubscriptionType.Exclusive) {
+                throw new PulsarClientException.ConsumerBusyException("Exclusive consumer is already connected to " + name);
+            }
+        }
+
+        final InMemoryConsumer<?> active = getActiveConsumer();
+
+        type = subscriptionType;
+        consumers.add(consumer);
+        if (type == SubscriptionType.Failover) {
+            consumers.sort(FAILOVER_ORDER);
+        }
+
+        // The new consumer may have taken over from the active one, which would no longer get its pending messages
+        if (active != null && active != getActiveConsumer()) {
+            redeliverAll(active);
+        }
+        dispatch();
+    }
+
+    /**
+     * @return the only consumer that messages are dispatched to, or null if they are spread across all of them.
+     */
+    private InMemoryConsumer<?> getActiveConsumer() {
+        if (consumers.isEmpty() || type == SubscriptionType.Shared || type == SubscriptionType.Key_Shared) {
+            return null;
+        }
+        return type == SubscriptionType.Failover ? consumers.get(Math.max(0, log.getPartitionIndex()) % consumers.size()) : consumers.get(0);
+    }
+
+    /**
+     * Removes the consumer, and dispatches the messages that it has not acknowledged to the remaining consumers.
+     */
+    synchronized void removeConsumer(InMemoryConsumer<?> consumer) {
+        if (consumers.remove(consumer)) {
+            redeliverAll(consumer);
+            dispatch();
+        }
+    }
+
+    /**
+     * Dispatches as many messages as the consumers have room for.
+     */
+    synchronized void dispatch() {
+        while (!consumers.isEmpty()) {
+            final Map.Entry<Long, Integer> redelivery = redeliveries.firstEntry();
+            final long entryId;
+            if (redelivery != null) {
+                entryId = redelivery.getKey();
+            } else if (readPosition < log.size()) {
+                entryId = readPosition;
+            } else {
+                return;
+            }
+
+            final InMemoryMessage<?> message = log.get(entryId);
+            if (message == null || entryId < acknowledgedPosition || acknowledged.contains(entryId)) {
+                // The message has been acknowledged since it was due to be redelivered, or was never kept
+                skip(entryId, redelivery != null);
+                continue;
+            }
+
+            final InMemoryConsumer<?> consumer = select(message);
+            if (consumer == null) {
+                return;
+            }
+
+            skip(entryId, redelivery != null);
+            pending.put(entryId, consumer);
+            consumer.deliver(redelivery == null ? message : message.redelivered(redelivery.getValue()));
+        }
+    }
+
+    private void skip(long entryId, boolean redelivery) {
+        if (redelivery) {
+            redeliveries.remove(entryId);
+        } else {
+            readPosition = entryId + 1;
+        }
+    }
+
+    /**
+     * @return the consumer that the message is due to, or null if it has no room for it.
+     */
+    private InMemoryConsumer<?> select(InMemoryMessage<?> message) {
+        final int count = consumers.size();
+
+        switch (type) {
+            case Shared:
+                for (int i = 0; i < count; i++) {
+                    final InMemoryConsumer<?> consumer = consumers.get((nextShared + i) % count);
+                    if (consumer.hasPermits()) {
+                        nextShared = (nextShared + i + 1) % count;
+                        return consumer;
+                    }
+                }
+                for (InMemoryConsumer<?> consumer : consumers) {
+                    if (consumer.block()) {
+                        // The consumer made room for more while we were looking
+                        return consumer;
+                    }
+                }
+                return null;
+            case Key_Shared:
+                final String key = message.hasKey() ? message.getKey() : "";
+                return withPermits(consumers.get((key.hashCode() & Integer.MAX_VALUE) % count));
+            default:
+                return withPermits(getActiveConsumer());
+        }
+    }
+
+    private static InMemoryConsumer<?> withPermits(InMemoryConsumer<?> consumer) {
+        return consumer.hasPermits() || consumer.block() ? consumer : null;
+    }
+
+    synchronized void acknowledge(long entryId) {
+        if (entryId < acknowledgedPosition) {
+            return;
+        }
+
+        pending.remove(entryId);
+        redeliveries.remove(entryId);
+        acknowledged.add(entryId);
+        advance();
+    }
+
+    /**
+     * Acknowledges the message and every message before it.
+     */
+    synchronized void acknowledgeCumulative(long entryId) {
+        if (entryId < acknowledgedPosition) {
+            return;
+        }
+
+        pending.headMap(entryId, true).clear();
+        redeliveries.headMap(entryId, true).clear();
+        acknowledged.headSet(entryId, true).clear();
+        acknowledgedPosition = entryId + 1;
+        readPosition = Math.max(readPosition, acknowledgedPosition);
+        advance();
+    }
+
+    private void advance() {
+        long position = acknowledgedPosition;
+        while (acknowledged.remove(position)) {
+            position++;
+        }
+        acknowledgedPosition = position;
+    }
+
+    /**
+     * Marks the given messages to be dispatched again, if they are still pending on the given consumer. They are
+     * dispatched on the next call to {@link #dispatch()}.
+     *
+     * @return the number of messages that will be redelivered.
+     */
+    synchronized int redeliver(Collection<Long> entryIds, InMemoryConsumer<?> consumer) {
+        int count = 0;
+        for (Long entryId : entryIds) {
+            if (pending.get(entryId) == consumer) {
+                pending.remove(entryId);
+                redeliveries.merge(entryId, 1, Integer::sum);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks every message that is pending on the given consumer to be dispatched again, or every pending message
+     * if the consumer is null. They are dispatched on the next call to {@link #dispatch()}.
+     *
+     * @return the number of messages that will be redelivered.
+     */
+    synchronized int redeliverAll(InMemoryConsumer<?> consumer) {
+        int count = 0;
+        final Iterator<Map.Entry<Long, InMemoryConsumer<?>>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Long, InMemoryConsumer<?>> entry = entries.next();
+            if (consumer == null || entry.getValue() == consumer) {
+                entries.remove();
+                redeliveries.merge(entry.getKey(), 1, Integer::sum);
+                count++;
+            }
+        }
+        return count;
+    }
+}
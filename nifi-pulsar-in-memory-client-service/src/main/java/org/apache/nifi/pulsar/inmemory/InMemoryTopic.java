@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A topic, which is made up of a single log when it is not partitioned, and of one log per partition otherwise.
+ */
+final class InMemoryTopic {
+
+    static final String PARTITION_SUFFIX = "-partition-";
+
+    private final String name;
+    private final boolean partitioned;
+    private final List<PartitionLog> partitions;
+
+    InMemoryTopic(String name, int partitions, InMemoryPulsar pulsar) {
+        this.name = name;
+        this.partitioned = partitions > 0;
+
+        final List<PartitionLog> logs = new ArrayList<>();
+        if (partitioned) {
+            for (int i = 0; i < partitions; i++) {
+                logs.add(pulsar.createLog(name + PARTITION_SUFFIX + i, i));
+            }
+        } else {
+            logs.add(pulsar.createLog(name, -1));
+        }
+        this.partitions = Collections.unmodifiableList(logs);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * @return the number of partitions, which is zero if the topic is not partitioned.
+     */
+    int getPartitionCount() {
+        return partitioned ? partitions.size() : 0;
+    }
+
+    List<PartitionLog> getPartitions() {
+        return partitions;
+    }
+
+    PartitionLog getPartition(int index) {
+        return partitions.get(index);
+    }
+
+    /**
+     * Resolves a topic name the way the broker does, so that "my-topic" and "persistent://public/default/my-topic"
+     * refer to the same topic.
+     */
+    static String normalize(String topic) {
+        final String name = topic.trim();
+        if (name.contains("://")) {
+            return name;
+        }
+
+        final String[] parts = name.split("/");
+        if (parts.length == 3) {
+            return "persistent://" + name;
+        }
+        return "persistent://public/default/" + name;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongFunction;
+
+import org.apache.pulsar.client.api.SubscriptionInitialPosition;
+
+/**
+ * The messages of a non-partitioned topic, or of one partition of a partitioned topic, along with its subscriptions.
+ *
+ * Messages are appended under the log's lock, and read without it. They are held in fixed-size chunks, which are
+ * dropped once every subscription has acknowledged all of their messages. As there is no retention, messages that
+ * are published while the log has no subscriptions are not kept at all, just as the broker's default would.
+ */
+final class PartitionLog {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final String name;
+    private final int partitionIndex;
+    private final long ledgerId;
+
+    private final ConcurrentMap<Long, InMemoryMessage<?>[]> chunks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, InMemorySubscription> subscriptions = new ConcurrentHashMap<>();
+
+    // The id of the next message, which is written only while holding the lock
+    private volatile long size = 0;
+
+    // Messages before this one have been dropped, which is written only while holding the lock
+    private volatile long firstRetained = 0;
+
+    PartitionLog(String name, int partitionIndex, long ledgerId) {
+        this.name = name;
+        this.partitionIndex = partitionIndex;
+        this.ledgerId = ledgerId;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the index of the partition, or -1 if the topic is not partitioned.
+     */
+    int getPartitionIndex() {
+        return partitionIndex;
+    }
+
+    long getLedgerId() {
+        return ledgerId;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Appends the message created for the next entry id, and hands it to the subscriptions' consumers.
+     *
+     * @return the message, which is created even if there are no subscriptions to keep it for.
+     */
+    InMemoryMessage<?> append(LongFunction<InMemoryMessage<?>> factory) {
+        final InMemoryMessage<?> message;
+
+        synchronized (this) {
+            final long entryId = size;
+            message = factory.apply(entryId);
+
+            if (!subscriptions.isEmpty()) {
+                final int offset = (int) (entryId & CHUNK_MASK);
+                InMemoryMessage<?>[] chunk = chunks.get(entryId >>> CHUNK_SHIFT);
+                if (chunk == null) {
+                    chunk = new InMemoryMessage<?>[CHUNK_SIZE];
+                    chunks.put(entryId >>> CHUNK_SHIFT, chunk);
+                }
+                chunk[offset] = message;
+            } else {
+                firstRetained = entryId + 1;
+            }
+
+            size = entryId + 1;
+        }
+
+        for (InMemorySubscription subscription : subscriptions.values()) {
+            subscription.dispatch();
+        }
+        return message;
+    }
+
+    /**
+     * @return the message with the given id, or null if it has been dropped or was never kept.
+     */
+    InMemoryMessage<?> get(long entryId) {
+        if (entryId >= size) {
+            return null;
+        }
+        final InMemoryMessage<?>[] chunk = chunks.get(entryId >>> CHUNK_SHIFT);
+        return chunk == null ? null : chunk[(int) (entryId & CHUNK_MASK)];
+    }
+
+    /**
+     * @return the subscription with the given name, which is created at the initial position if it does not exist.
+     */
+    InMemorySubscription subscribe(String subscriptionName, SubscriptionInitialPosition initialPosition) {
+        synchronized (this) {
+            return subscriptions.computeIfAbsent(subscriptionName, s -> new InMemorySubscription(this, s,
+                    initialPosition == SubscriptionInitialPosition.Earliest ? firstRetained : size));
+        }
+    }
+
+    InMemorySubscription getSubscription(String subscriptionName) {
+        return subscriptions.get(subscriptionName);
+    }
+
+    Collection<InMemorySubscription> getSubscriptions() {
+        return subscriptions.values();
+    }
+
+    void unsubscribe(String subscriptionName) {
+        subscriptions.remove(subscriptionName);
+        trim();
+    }
+
+    /**
+     * Drops every chunk whose messages have all been acknowledged by every subscription.
+     */
+    void trim() {
+        long acknowledged = size;
+        for (InMemorySubscription subscription : subscriptions.values()) {
+            acknowledged = Math.min(acknowledged, subscription.getAcknowledgedPosition());
+        }
+
+        final long firstChunk = acknowledged >>> CHUNK_SHIFT;
+        if (firstChunk <= firstRetained >>> CHUNK_SHIFT) {
+            return;
+        }
+
+        synchronized (this) {
+            for (long chunk = firstRetained >>> CHUNK_SHIFT; chunk < firstChunk; chunk++) {
+                chunks.remove(chunk);
+            }
+            firstRetained = Math.max(firstRetained, firstChunk << CHUNK_SHIFT);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pulsar.client.api.PulsarClientException;
+
+/**
+ * Builds the implementations of the PulsarClient interface and of the producer and consumer builders. These
+ * interfaces gain many methods from one Pulsar release to the next, so rather than implementing them directly,
+ * each one is a proxy that forwards every call to the public method of the same signature on a plain object, or
+ * records the settings of a builder. Calls to methods that the object does not have fail with an
+ * UnsupportedOperationException. Proxies are only used for objects that are created once per producer or consumer;
+ * the Producer, Consumer and TypedMessageBuilder, which are called for every message, are implemented directly.
+ */
+final class Proxies {
+
+    private static final ConcurrentMap<Method, Optional<Method>> TARGETS = new ConcurrentHashMap<>();
+
+    private Proxies() {
+    }
+
+    /**
+     * @return a proxy of the given interface that forwards to the target. Proxies are equal only to themselves.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T forward(Class<T> type, Object target) {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    if (method.getParameterCount() == 1) {
+                        return proxy == args[0];
+                    }
+                    break;
+                case "hashCode":
+                    if (method.getParameterCount() == 0) {
+                        return System.identityHashCode(proxy);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            final Method targetMethod = findTarget(method, target.getClass());
+            if (targetMethod == null) {
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName()
+                        + " is not supported by the in-memory Pulsar client");
+            }
+
+            try {
+                return targetMethod.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+
+        return (T) Proxy.newProxyInstance(Proxies.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * @return a proxy of the given builder interface, whose configuration methods record their arguments and
+     *   return the builder itself. The recorded settings, keyed by method name, are handed to the given
+     *   function when the builder's build method is called, whose result is then returned. The asynchronous
+     *   form of the build method is supported as well. Settings passed to loadConf are recorded under their keys,
+     *   in the same map.
+     */
+    static <T> T builder(Class<T> type, String buildMethod, Build build) {
+        return builder(type, buildMethod, build, new HashMap<>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T builder(Class<T> type, String buildMethod, Build build,
+                                 Map<String, Object> settings) {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            final String name = method.getName();
+
+            if (name.equals(buildMethod)) {
+                return build.apply(new HashMap<>(settings));
+            }
+            if (name.equals(buildMethod + "Async")) {
+                final CompletableFuture<Object> future = new CompletableFuture<>();
+                try {
+                    future.complete(build.apply(new HashMap<>(settings)));
+                } catch (PulsarClientException e) {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + settings;
+                case "clone":
+                    return builder(type, buildMethod, build, new HashMap<>(settings));
+                case "loadConf":
+                    settings.putAll((Map<String, Object>) args[0]);
+                    return proxy;
+                default:
+                    break;
+            }
+
+            if (!method.getReturnType().isAssignableFrom(type)) {
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + name
+                        + " is not supported by the in-memory Pulsar client");
+            }
+
+            // Methods that take a value and its unit, such as ackTimeout, are recorded in nanoseconds
+            if (args != null && args.length == 2 && args[1] instanceof TimeUnit) {
+                settings.put(name, ((TimeUnit) args[1]).toNanos(((Number) args[0]).longValue()));
+            } else if (args != null && args.length == 1) {
+                settings.put(name, args[0]);
+            } else {
+                settings.put(name, args);
+            }
+            return proxy;
+        };
+
+        return (T) Proxy.newProxyInstance(Proxies.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Builds the client from the settings of a builder.
+     */
+    @FunctionalInterface
+    interface Build {
+        Object apply(Map<String, Object> settings) throws PulsarClientException;
+    }
+
+    private static Method findTarget(Method method, Class<?> targetType) {
+        return TARGETS.computeIfAbsent(method, m -> {
+            try {
+                final Method target = targetType.getMethod(m.getName(), m.getParameterTypes());
+                target.setAccessible(true);
+                return Optional.of(target);
+            } catch (NoSuchMethodException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pulsar.client.api.BatchReceivePolicy;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.SubscriptionInitialPosition;
+import org.apache.pulsar.client.api.SubscriptionType;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInMemoryPulsar {
+
+    private static final String TOPIC = "persistent://public/default/test";
+
+    private InMemoryPulsar pulsar;
+    private PulsarClient client;
+
+    @Before
+    public void setUp() {
+        pulsar = new InMemoryPulsar();
+        client = pulsar.newClient();
+    }
+
+    @After
+    public void tearDown() throws PulsarClientException {
+        client.close();
+        pulsar.close();
+    }
+
+    @Test
+    public void publishedMessagesAreConsumed() throws PulsarClientException {
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Exclusive);
+        final Producer<String> producer = client.newProducer(Schema.STRING).topic("test").create();
+
+        producer.newMessage().key("k").property("a", "b").value("hello").send();
+
+        final Message<String> msg = consumer.receive(1, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        assertEquals("hello", msg.getValue());
+        assertEquals("k", msg.getKey());
+        assertEquals("b", msg.getProperty("a"));
+        assertEquals(TOPIC, msg.getTopicName());
+        assertEquals(1, pulsar.getBacklog(TOPIC, "sub"));
+
+        consumer.acknowledge(msg);
+        assertEquals(0, pulsar.getBacklog(TOPIC, "sub"));
+        assertEquals(1, pulsar.getPublishedCount());
+        assertEquals(1, pulsar.getAcknowledgedCount());
+    }
+
+    @Test
+    public void valuesAreDecodedWithTheConsumerSchema() throws PulsarClientException {
+        final Consumer<ByteBuffer> consumer = client.newConsumer(Schema.BYTEBUFFER).topic(TOPIC).subscriptionName("sub").subscribe();
+        publish(1);
+
+        final Message<ByteBuffer> msg = consumer.receive(1, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        assertEquals(ByteBuffer.wrap("0".getBytes(StandardCharsets.UTF_8)), msg.getValue());
+    }
+
+    @Test
+    public void messagesAreNotRetainedWithoutSubscriptions() throws PulsarClientException {
+        final Producer<String> producer = client.newProducer(Schema.STRING).topic(TOPIC).create();
+        producer.send("dropped");
+
+        final Consumer<String> consumer = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .subscriptionInitialPosition(SubscriptionInitialPosition.Earliest).subscribe();
+        producer.send("kept");
+
+        assertEquals("kept", consumer.receive(1, TimeUnit.SECONDS).getValue());
+        assertNull(consumer.receive(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void keyedMessagesStayOnOnePartition() throws PulsarClientException {
+        pulsar.createTopic(TOPIC, 4);
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Exclusive);
+        final Producer<String> producer = client.newProducer(Schema.STRING).topic(TOPIC).create();
+        assertEquals(4, client.getPartitionsForTopic(TOPIC).join().size());
+
+        for (int i = 0; i < 8; i++) {
+            producer.newMessage().key("same").value("keyed").send();
+            producer.send("unkeyed");
+        }
+
+        final Set<Integer> keyedPartitions = new HashSet<>();
+        final Set<Integer> unkeyedPartitions = new HashSet<>();
+        for (int i = 0; i < 16; i++) {
+            final Message<String> msg = consumer.receive(1, TimeUnit.SECONDS);
+            final int partition = ((MessageIdImpl) msg.getMessageId()).getPartitionIndex();
+            (msg.hasKey() ? keyedPartitions : unkeyedPartitions).add(partition);
+            assertTrue(msg.getTopicName().endsWith("-partition-" + partition));
+        }
+
+        assertEquals(1, keyedPartitions.size());
+        assertEquals(4, unkeyedPartitions.size());
+    }
+
+    @Test
+    public void sharedSubscriptionSpreadsMessages() throws PulsarClientException {
+        final Consumer<String> first = subscribe("sub", SubscriptionType.Shared);
+        final Consumer<String> second = subscribe("sub", SubscriptionType.Shared);
+        publish(20);
+
+        assertEquals(10, drain(first).size());
+        assertEquals(10, drain(second).size());
+    }
+
+    @Test
+    public void exclusiveSubscriptionAdmitsOneConsumer() throws PulsarClientException {
+        subscribe("sub", SubscriptionType.Exclusive);
+        try {
+            subscribe("sub", SubscriptionType.Exclusive);
+            fail("A second exclusive consumer must be rejected");
+        } catch (PulsarClientException.ConsumerBusyException e) {
+            // expected
+        }
+
+        try {
+            subscribe("sub", SubscriptionType.Shared);
+            fail("A consumer of another subscription type must be rejected");
+        } catch (PulsarClientException.ConsumerBusyException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failoverSubscriptionSwitchesToStandby() throws PulsarClientException {
+        final Consumer<String> active = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .subscriptionType(SubscriptionType.Failover).consumerName("a").subscribe();
+        final Consumer<String> standby = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .subscriptionType(SubscriptionType.Failover).consumerName("b").subscribe();
+        publish(5);
+
+        assertNull(standby.receive(10, TimeUnit.MILLISECONDS));
+        final Message<String> msg = active.receive(1, TimeUnit.SECONDS);
+        active.acknowledge(msg);
+        active.close();
+
+        // The messages that the active consumer did not acknowledge are delivered to the standby
+        final List<Message<String>> messages = drain(standby);
+        assertEquals(4, messages.size());
+        assertEquals("1", messages.get(0).getValue());
+    }
+
+    @Test
+    public void keySharedSubscriptionKeepsKeysTogether() throws PulsarClientException {
+        final Consumer<String> first = subscribe("sub", SubscriptionType.Key_Shared);
+        final Consumer<String> second = subscribe("sub", SubscriptionType.Key_Shared);
+        final Producer<String> producer = client.newProducer(Schema.STRING).topic(TOPIC).create();
+        for (int i = 0; i < 40; i++) {
+            producer.newMessage().key("key-" + (i % 8)).value(String.valueOf(i)).send();
+        }
+
+        final Set<String> firstKeys = keys(drain(first));
+        final Set<String> secondKeys = keys(drain(second));
+        assertEquals(8, firstKeys.size() + secondKeys.size());
+        firstKeys.retainAll(secondKeys);
+        assertTrue(firstKeys.isEmpty());
+    }
+
+    @Test
+    public void cumulativeAcknowledgementAcknowledgesEarlierMessages() throws PulsarClientException {
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Exclusive);
+        publish(10);
+
+        final List<Message<String>> messages = drain(consumer);
+        consumer.acknowledgeCumulative(messages.get(6));
+        assertEquals(3, pulsar.getBacklog(TOPIC, "sub"));
+        assertEquals(3, pulsar.getUnacknowledgedCount(TOPIC, "sub"));
+    }
+
+    @Test
+    public void cumulativeAcknowledgementIsRejectedOnSharedSubscriptions() throws PulsarClientException {
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Shared);
+        publish(1);
+
+        final Message<String> msg = consumer.receive(1, TimeUnit.SECONDS);
+        try {
+            consumer.acknowledgeCumulativeAsync(msg.getMessageId()).get();
+            fail("Cumulative acknowledgements must be rejected");
+        } catch (InterruptedException | ExecutionException e) {
+            assertTrue(e.getCause() instanceof PulsarClientException.InvalidConfigurationException);
+        }
+    }
+
+    @Test
+    public void unacknowledgedMessagesAreRedeliveredAfterAckTimeout() throws PulsarClientException {
+        final Consumer<String> consumer = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .ackTimeout(50, TimeUnit.MILLISECONDS).subscribe();
+        publish(1);
+
+        final Message<String> first = consumer.receive(1, TimeUnit.SECONDS);
+        assertEquals(0, first.getRedeliveryCount());
+
+        final Message<String> second = consumer.receive(2, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertEquals(first.getMessageId(), second.getMessageId());
+        assertEquals(1, second.getRedeliveryCount());
+        assertEquals(1, pulsar.getRedeliveredCount());
+
+        consumer.acknowledge(second);
+        assertNull(consumer.receive(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void negativelyAcknowledgedMessagesAreRedelivered() throws PulsarClientException {
+        final Consumer<String> consumer = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .negativeAckRedeliveryDelay(10, TimeUnit.MILLISECONDS).subscribe();
+        publish(1);
+
+        final Message<String> msg = consumer.receive(1, TimeUnit.SECONDS);
+        consumer.negativeAcknowledge(msg);
+
+        final Message<String> redelivered = consumer.receive(1, TimeUnit.SECONDS);
+        assertNotNull(redelivered);
+        assertEquals(msg.getValue(), redelivered.getValue());
+        assertEquals(1, redelivered.getRedeliveryCount());
+    }
+
+    @Test
+    public void receiverQueueBoundsDispatch() throws PulsarClientException {
+        final Consumer<String> consumer = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .receiverQueueSize(5).subscribe();
+        publish(20);
+
+        assertEquals(5, pulsar.getUnacknowledgedCount(TOPIC, "sub"));
+        assertEquals(20, drain(consumer).size());
+    }
+
+    @Test
+    public void pausedConsumersReceiveNoNewMessages() throws PulsarClientException {
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Exclusive);
+        consumer.pause();
+        publish(3);
+
+        assertNull(consumer.receive(10, TimeUnit.MILLISECONDS));
+        consumer.resume();
+        assertEquals(3, drain(consumer).size());
+    }
+
+    @Test
+    public void batchReceiveHonoursPolicy() throws PulsarClientException {
+        final Consumer<String> consumer = client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName("sub")
+                .batchReceivePolicy(BatchReceivePolicy.builder().maxNumMessages(4).timeout(10, TimeUnit.MILLISECONDS).build())
+                .subscribe();
+        publish(6);
+
+        final Messages<String> full = consumer.batchReceive();
+        assertEquals(4, full.size());
+        final Messages<String> partial = consumer.batchReceive();
+        assertEquals(2, partial.size());
+        assertEquals(0, consumer.batchReceive().size());
+
+        consumer.acknowledge(full);
+        consumer.acknowledge(partial);
+        assertEquals(0, pulsar.getBacklog(TOPIC, "sub"));
+    }
+
+    @Test
+    public void publishLatencyDelaysSends() throws Exception {
+        pulsar.setPublishLatency(100, TimeUnit.MILLISECONDS);
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Exclusive);
+        final Producer<String> producer = client.newProducer(Schema.STRING).topic(TOPIC).create();
+
+        final CompletableFuture<MessageId> sent = producer.sendAsync("late");
+        assertFalse(sent.isDone());
+        assertNull(consumer.receive(10, TimeUnit.MILLISECONDS));
+
+        producer.flush();
+        assertTrue(sent.isDone());
+        assertEquals("late", consumer.receive(1, TimeUnit.SECONDS).getValue());
+    }
+
+    @Test
+    public void closedClientClosesItsConsumers() throws PulsarClientException {
+        final Consumer<String> consumer = subscribe("sub", SubscriptionType.Exclusive);
+        client.close();
+
+        assertFalse(consumer.isConnected());
+        assertTrue(client.isClosed());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unsupportedMethodsFail() throws PulsarClientException {
+        subscribe("sub", SubscriptionType.Exclusive).seek(MessageId.earliest);
+    }
+
+    private Consumer<String> subscribe(String subscription, SubscriptionType type) throws PulsarClientException {
+        return client.newConsumer(Schema.STRING).topic(TOPIC).subscriptionName(subscription).subscriptionType(type).subscribe();
+    }
+
+    private void publish(int count) throws PulsarClientException {
+        final Producer<String> producer = client.newProducer(Schema.STRING).topic(TOPIC).create();
+        for (int i = 0; i < count; i++) {
+            producer.send(String.valueOf(i));
+        }
+        producer.close();
+    }
+
+    private static List<Message<String>> drain(Consumer<String> consumer) throws PulsarClientException {
+        final List<Message<String>> messages = new ArrayList<>();
+        Message<String> msg;
+        while ((msg = consumer.receive(50, TimeUnit.MILLISECONDS)) != null) {
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    private static Set<String> keys(List<Message<String>> messages) {
+        final Map<String, Integer> counts = new HashMap<>();
+        for (Message<String> msg : messages) {
+            counts.merge(msg.getKey(), 1, Integer::sum);
+        }
+        return new HashSet<>(counts.keySet());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.pulsar.inmemory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.NoOpProcessor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.junit.Test;
+
+public class TestInMemoryPulsarClientService {
+
+    @Test
+    public void validServiceTest() throws InitializationException, PulsarClientException {
+        final TestRunner runner = TestRunners.newTestRunner(NoOpProcessor.class);
+        final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+        runner.addControllerService("in-memory", service);
+
+        runner.setProperty(service, InMemoryPulsarClientService.DEFAULT_PARTITIONS, "3");
+        runner.setProperty(service, InMemoryPulsarClientService.ACKNOWLEDGEMENT_LATENCY, "1 ms");
+        runner.enableControllerService(service);
+        runner.assertValid(service);
+
+        final PulsarClient client = service.getPulsarClient();
+        final Consumer<byte[]> consumer = client.newConsumer().topic("my-topic").subscriptionName("sub").subscribe();
+        client.newProducer().topic("my-topic").create().send("hello".getBytes());
+
+        assertEquals(3, service.getPulsar().getPartitionCount("my-topic"));
+        consumer.acknowledge(consumer.receive(1, TimeUnit.SECONDS));
+        assertEquals(0, service.getPulsar().getBacklog("my-topic", "sub"));
+
+        runner.disableControllerService(service);
+    }
+
+    @Test
+    public void invalidLatencyTest() throws InitializationException {
+        final TestRunner runner = TestRunners.newTestRunner(NoOpProcessor.class);
+        final InMemoryPulsarClientService service = new InMemoryPulsarClientService();
+        runner.addControllerService("in-memory", service);
+
+        runner.setProperty(service, InMemoryPulsarClientService.PUBLISH_LATENCY, "soon");
+        runner.assertNotValid(service);
+    }
+}
@@ -17,14 +17,19 @@
 package org.apache.nifi.processors.pulsar;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
@@ -36,22 +41,26 @@ import org.apache.nifi.components.Validator;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.processors.pulsar.utils.MessageHandoffQueue;
 import org.apache.nifi.processors.pulsar.utils.PropertyMappingUtils;
 import org.apache.nifi.pulsar.PulsarClientService;
-import org.apache.nifi.pulsar.cache.PulsarConsumerLRUCache;
+import org.apache.nifi.pulsar.cache.PulsarConsumerCache;
+import org.apache.pulsar.client.api.BatchReceivePolicy;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.ConsumerBuilder;
 import org.apache.pulsar.client.api.ConsumerCryptoFailureAction;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.client.api.SubscriptionInitialPosition;
 import org.apache.pulsar.client.api.SubscriptionType;
-import org.apache.pulsar.client.api.schema.GenericRecord;
 
 public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcessor {
     protected static final String PULSAR_MESSAGE_KEY = "__KEY__";
@@ -133,17 +142,52 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
             .name("ASYNC_ENABLED")
             .displayName("Async Enabled")
             .description("Control whether the messages will be consumed asynchronously or not. Messages consumed"
-                    + " synchronously will be acknowledged immediately before processing the next message, while"
-                    + " asynchronous messages will be acknowledged after the Pulsar broker responds. \n"
-                    + "Enabling asynchronous message consumption introduces the possibility of duplicate data "
-                    + "consumption in the case where the Processor is stopped before it has time to send an "
-                    + "acknowledgement back to the Broker. In this scenario, the Broker would assume that the "
-                    + "un-acknowledged message was not successfully processed and re-send it when the Processor restarted.")
+                    + " synchronously are received on the thread that triggered the processor, while asynchronous"
+                    + " messages are received by up to 'Maximum Async Requests' background requests. \n"
+                    + "In both modes, messages are only acknowledged once the session holding their FlowFiles has been "
+                    + "committed. If the Processor is stopped, or the commit fails, before the acknowledgement reaches "
+                    + "the Broker, the Broker assumes that the un-acknowledged messages were not successfully processed "
+                    + "and re-delivers them, so the same data may be consumed more than once.")
             .required(true)
             .allowableValues("true", "false")
             .defaultValue("false")
             .build();
 
+    public static final PropertyDescriptor MESSAGE_LISTENER_ENABLED = new PropertyDescriptor.Builder()
+            .name("MESSAGE_LISTENER_ENABLED")
+            .displayName("Message Listener Enabled")
+            .description("If true, messages are pushed by the Pulsar client's listener threads into a bounded queue, "
+                    + "and the processor only drains that queue into FlowFiles. The consumer is paused whenever the queue "
+                    + "is full, and resumed once it has been drained. The number of listener threads is configured on the "
+                    + "Pulsar Client Service. This mode cannot be combined with 'Async Enabled'.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor LISTENER_QUEUE_SIZE = new PropertyDescriptor.Builder()
+            .name("LISTENER_QUEUE_SIZE")
+            .displayName("Listener Queue Size")
+            .description("The number of messages that may be waiting to be written to FlowFiles before the consumer "
+                    + "is paused. Only used when 'Message Listener Enabled' is true.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .build();
+
+    public static final PropertyDescriptor PAUSE_AFTER_IDLE = new PropertyDescriptor.Builder()
+            .name("PAUSE_AFTER_IDLE")
+            .displayName("Pause After Idle")
+            .description("If the processor has not been triggered for this long while it is running, e.g. because its "
+                    + "outbound connections are applying back pressure, its consumers are paused so that they stop fetching "
+                    + "messages from the broker until the processor is triggered again. If not set, the consumers are never "
+                    + "paused. This must be well above the Run Schedule, otherwise the consumers are paused and resumed "
+                    + "between every two runs. Not used when 'Message Listener Enabled' is true, since the consumer is then "
+                    + "paused once 'Listener Queue Size' messages are waiting.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
     public static final PropertyDescriptor AUTO_UPDATE_PARTITIONS = new PropertyDescriptor.Builder()
             .name("AUTO_UPDATE_PARTITIONS")
             .displayName("Auto update partitions")
@@ -253,6 +297,28 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
             .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
             .build();
 
+    public static final PropertyDescriptor CONSUMER_BATCH_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("CONSUMER_BATCH_MAX_SIZE")
+            .displayName("Consumer Batch Max Size")
+            .description("Set the maximum total size of the messages that are received from Pulsar in a single batch. "
+                    + "A batch is complete once it holds 'Consumer Message Batch Size' messages, reaches this size, "
+                    + "or the 'Consumer Batch Timeout' elapses, whichever happens first.")
+            .required(true)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .defaultValue("10 MB")
+            .build();
+
+    public static final PropertyDescriptor CONSUMER_BATCH_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("CONSUMER_BATCH_TIMEOUT")
+            .displayName("Consumer Batch Timeout")
+            .description("Set the maximum amount of time to wait for a batch of messages to fill up. Whatever has been "
+                    + "received when the timeout elapses is processed, so a quiet topic is polled at most once per timeout "
+                    + "rather than continuously.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("100 ms")
+            .build();
+
     public static final PropertyDescriptor MAPPED_FLOWFILE_ATTRIBUTES = new PropertyDescriptor.Builder()
             .name("MAPPED_FLOWFILE_ATTRIBUTES")
             .displayName("Mapped FlowFile Attributes")
@@ -276,6 +342,26 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
             .defaultValue("false")
             .build();
 
+    public static final PropertyDescriptor MAX_CACHED_CONSUMERS = new PropertyDescriptor.Builder()
+            .name("MAX_CACHED_CONSUMERS")
+            .displayName("Max Cached Consumers")
+            .description("The maximum number of consumers that are kept open for re-use, e.g. when the topics are "
+                    + "resolved through the Expression Language. Once the cache is full, the least recently used "
+                    + "consumer is closed, though never while it still has messages in flight.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(PulsarConsumerCache.DEFAULT_MAX_SIZE))
+            .build();
+
+    public static final PropertyDescriptor CONSUMER_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("CONSUMER_IDLE_TIMEOUT")
+            .displayName("Consumer Idle Timeout")
+            .description("The amount of time a cached consumer may remain unused before it is closed.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+
     protected static final List<PropertyDescriptor> PROPERTIES;
     protected static final Set<Relationship> RELATIONSHIPS;
 
@@ -289,6 +375,9 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         descriptorList.add(CONSUMER_NAME);
         descriptorList.add(ASYNC_ENABLED);
         descriptorList.add(MAX_ASYNC_REQUESTS);
+        descriptorList.add(MESSAGE_LISTENER_ENABLED);
+        descriptorList.add(LISTENER_QUEUE_SIZE);
+        descriptorList.add(PAUSE_AFTER_IDLE);
         descriptorList.add(ACK_TIMEOUT);
         descriptorList.add(AUTO_UPDATE_PARTITIONS);
         descriptorList.add(AUTO_UPDATE_PARTITION_INTERVAL);
@@ -296,9 +385,13 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         descriptorList.add(RECEIVER_QUEUE_SIZE);
         descriptorList.add(SUBSCRIPTION_TYPE);
         descriptorList.add(CONSUMER_BATCH_SIZE);
+        descriptorList.add(CONSUMER_BATCH_MAX_SIZE);
+        descriptorList.add(CONSUMER_BATCH_TIMEOUT);
         descriptorList.add(MESSAGE_DEMARCATOR);
         descriptorList.add(MAPPED_FLOWFILE_ATTRIBUTES);
         descriptorList.add(REPLICATE_SUBSCRIPTION_STATE);
+        descriptorList.add(MAX_CACHED_CONSUMERS);
+        descriptorList.add(CONSUMER_IDLE_TIMEOUT);
 
         PROPERTIES = Collections.unmodifiableList(descriptorList);
 
@@ -308,12 +401,33 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
 
     }
 
-    private PulsarClientService pulsarClientService;
-    private PulsarConsumerLRUCache<String, Consumer<GenericRecord>> consumers;
-    private ExecutorService consumerPool;
-    private ExecutorCompletionService<List<Message<GenericRecord>>> consumerService;
-    private ExecutorService ackPool;
-    private ExecutorCompletionService<Object> ackService;
+    // These are read on every trigger, so they are volatile rather than guarded by the processor's monitor
+    private volatile PulsarClientService pulsarClientService;
+    private volatile PulsarConsumerCache<String, Consumer<T>> consumers;
+    private volatile ExecutorService consumerCloser;
+    private volatile ExecutorService consumerPool;
+    private volatile ExecutorCompletionService<List<Message<T>>> consumerService;
+    private final AtomicInteger outstandingAcks = new AtomicInteger(0);
+    private final Object ackLock = new Object();
+    private volatile MessageHandoffQueue<T> handoffQueue;
+
+    /*
+     * The idle consumers of a Shared or Key_Shared subscription. Each task borrows a consumer for the duration of
+     * onTrigger, so that concurrent tasks receive in parallel on separate consumers. Pooling is disabled when
+     * maxPooledConsumers is zero, in which case every task shares the cached consumer.
+     */
+    private final Queue<Consumer<T>> idleConsumers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledConsumers = new AtomicInteger(0);
+    private volatile int maxPooledConsumers = 0;
+
+    /*
+     * A processor is not triggered while its outbound connections are applying back pressure, so it cannot tell
+     * that the flow has stalled. Instead, the idle monitor pauses the consumers once the processor has not been
+     * triggered for a while, and the next trigger resumes them.
+     */
+    private volatile ScheduledExecutorService idleMonitor;
+    private volatile long lastTriggeredNanos = System.nanoTime();
+    private final AtomicBoolean consumersPaused = new AtomicBoolean(false);
 
     @Override
     public Set<Relationship> getRelationships() {
@@ -344,6 +458,12 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
                "Acknowledgment Timeout needs to be greater than 10 seconds.").build());
         }
 
+        if (validationContext.getProperty(MESSAGE_LISTENER_ENABLED).asBoolean()
+                && validationContext.getProperty(ASYNC_ENABLED).asBoolean()) {
+            results.add(new ValidationResult.Builder().valid(false).explanation(
+                    "Only one of 'Message Listener Enabled' and 'Async Enabled' can be true.").build());
+        }
+
         return results;
     }
 
@@ -352,10 +472,44 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         if (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean()) {
             setConsumerPool(Executors.newFixedThreadPool(context.getProperty(MAX_ASYNC_REQUESTS).asInteger()));
             setConsumerService(new ExecutorCompletionService<>(getConsumerPool()));
-            setAckPool(Executors.newFixedThreadPool(context.getProperty(MAX_ASYNC_REQUESTS).asInteger() + 1));
-            setAckService(new ExecutorCompletionService<>(getAckPool()));
         }
 
+
+        /*
+         * Only the consumers of a Shared or Key_Shared subscription can be pooled, since an Exclusive or Failover
+         * subscription only delivers to one consumer. The messages of an async or listener batch may come from any
+         * consumer, yet are acknowledged on the one that the task holds, so those modes keep a single consumer.
+         */
+        if (isSharedSubscription(context) && !context.getProperty(ASYNC_ENABLED).asBoolean()
+                && !context.getProperty(MESSAGE_LISTENER_ENABLED).asBoolean()) {
+            maxPooledConsumers = context.getMaxConcurrentTasks();
+        } else {
+            maxPooledConsumers = 0;
+        }
+
+        if (context.getProperty(MESSAGE_LISTENER_ENABLED).asBoolean()) {
+            final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
+                    .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
+            setHandoffQueue(new MessageHandoffQueue<>(context.getProperty(LISTENER_QUEUE_SIZE).asInteger(), maxMessages));
+        }
+
+        stopIdleMonitor();
+        consumersPaused.set(false);
+        lastTriggeredNanos = System.nanoTime();
+        if (context.getProperty(PAUSE_AFTER_IDLE).isSet() && !context.getProperty(MESSAGE_LISTENER_ENABLED).asBoolean()) {
+            final long pauseAfterNanos = context.getProperty(PAUSE_AFTER_IDLE).asTimePeriod(TimeUnit.NANOSECONDS);
+            idleMonitor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                    .namingPattern("PulsarConsumerIdleMonitor-" + getIdentifier()).daemon(true).build());
+            idleMonitor.scheduleWithFixedDelay(() -> pauseIfIdle(pauseAfterNanos),
+                    Math.max(pauseAfterNanos / 2, 1), Math.max(pauseAfterNanos / 2, 1), TimeUnit.NANOSECONDS);
+        }
+
+        // Evicted consumers are closed in the background, so that a slow close does not hold up the task
+        setConsumerCloser(Executors.newSingleThreadExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("PulsarConsumerCloser-" + getIdentifier()).daemon(true).build()));
+        setConsumers(new PulsarConsumerCache<>(context.getProperty(MAX_CACHED_CONSUMERS).asInteger(),
+                context.getProperty(CONSUMER_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), getConsumerCloser()));
+
         setPulsarClientService(context.getProperty(PULSAR_CLIENT_SERVICE).asControllerService(PulsarClientService.class));
     }
 
@@ -363,29 +517,80 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
     public void shutDown(final ProcessContext context) {
         /*
          * If we are running in asynchronous mode, then we need to stop all the consumer threads that
-         * are running in the ConsumerPool. After, we have stopped them, we need to wait a bit
-         * to ensure that all the messages are properly acked, in order to prevent re-processing the
-         * same messages in the event of a shutdown and restart of the processor since the un-acked
-         * messages would be replayed on startup.
+         * are running in the ConsumerPool.
          */
         if (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean()) {
             try {
                 getConsumerPool().shutdown();
-                getAckPool().shutdown();
-
-                // Allow some time for the acks to be sent back to the Broker.
                 getConsumerPool().awaitTermination(10, TimeUnit.SECONDS);
-                getAckPool().awaitTermination(10, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 getLogger().error("Unable to stop all the Pulsar Consumers", e);
             }
         }
+
+        /*
+         * Wait for the acks that are still in flight to reach the Broker, in order to prevent re-processing the
+         * same messages in the event of a shutdown and restart of the processor since the un-acked messages
+         * would be replayed on startup. There is no point in waiting longer than the ack timeout, since the
+         * Broker re-delivers the messages after that anyway.
+         */
+        try {
+            if (!awaitOutstandingAcks(context.getProperty(ACK_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS))) {
+                getLogger().warn("{} Pulsar acknowledgements were still outstanding at shutdown, those messages will be re-delivered",
+                        new Object[] {getOutstandingAcks()});
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLogger().error("Interrupted while waiting for the outstanding Pulsar acknowledgements", e);
+        }
+    }
+
+    /**
+     * Waits until every acknowledgement that has been sent has completed.
+     *
+     * @param timeoutMillis - The maximum amount of time to wait.
+     * @return true if there are no outstanding acknowledgements, false if the timeout elapsed first.
+     */
+    protected boolean awaitOutstandingAcks(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (ackLock) {
+            long remaining = timeoutMillis;
+            while (outstandingAcks.get() > 0 && remaining > 0) {
+                ackLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return outstandingAcks.get() == 0;
+        }
+    }
+
+    protected int getOutstandingAcks() {
+        return outstandingAcks.get();
     }
 
     @OnStopped
     public void cleanUp(final ProcessContext context) {
         shutDown(context);
-        getConsumers().clear();
+        stopIdleMonitor();
+        closePooledConsumers();
+
+        final PulsarConsumerCache<String, Consumer<T>> cache = getConsumers();
+        if (cache != null) {
+            getLogger().debug("Consumer cache had {} hits, {} misses and {} evictions",
+                    new Object[] {cache.getHitCount(), cache.getMissCount(), cache.getEvictionCount()});
+            cache.clear();
+        }
+
+        // Let the consumers that are already queued up for closing finish, without waiting on them
+        if (getConsumerCloser() != null) {
+            getConsumerCloser().shutdown();
+        }
+
+        // The consumers are closed, so any messages that were still queued will be re-delivered.
+        if (getHandoffQueue() != null) {
+            getHandoffQueue().clear();
+            setHandoffQueue(null);
+        }
     }
 
     /**
@@ -417,57 +622,306 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
         return sb.toString();
     }
 
-    protected void consumeAsync(final Consumer<GenericRecord> consumer, 
+    protected void consumeAsync(final Consumer<T> consumer, 
     	ProcessContext context, ProcessSession session) throws PulsarClientException {
+        final boolean retained = retainConsumer(consumer);
         try {
-            final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
-                    .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
-
             getConsumerService().submit(() -> {
-                List<Message<GenericRecord>> messages = new LinkedList<Message<GenericRecord>>();
-                Message<GenericRecord> msg = null;
-                AtomicInteger msgCount = new AtomicInteger(0);
-
-                while (msgCount.get() < maxMessages && (msg = consumer.receive(0, TimeUnit.SECONDS)) != null) {
-                    messages.add(msg);
-                    msgCount.incrementAndGet();
+                try {
+                    return receiveMessages(consumer);
+                } finally {
+                    if (retained) {
+                        getConsumers().release(consumer);
+                    }
                 }
-
-                return messages;
             });
         } catch (final RejectedExecutionException ex) {
+            if (retained) {
+                getConsumers().release(consumer);
+            }
             getLogger().error("Unable to consume any more Pulsar messages", ex);
             context.yield();
         }
     }
 
-    protected synchronized Consumer<GenericRecord> getConsumer(ProcessContext context, String topic) throws PulsarClientException {
+    /**
+     * Receives the next batch of messages from the consumer. The size of the batch is bounded by the consumer's
+     * BatchReceivePolicy, and the call returns as soon as the batch is full or the batch timeout elapses, so the
+     * number of messages returned follows the rate at which they arrive. When the message listener is enabled,
+     * the batch is instead taken from the messages that the listener has already queued.
+     *
+     * @param consumer - The Pulsar consumer.
+     * @return A List of Messages, which is empty if none arrived before the batch timeout.
+     * @throws PulsarClientException in the event we cannot communicate with the Pulsar broker.
+     */
+    protected List<Message<T>> receiveMessages(final Consumer<T> consumer) throws PulsarClientException {
+        // In listener mode the messages have already been received, so just take the next batch off of the queue.
+        final MessageHandoffQueue<T> queue = getHandoffQueue();
+        if (queue != null) {
+            return queue.poll();
+        }
+
+        final Messages<T> batch = consumer.batchReceive();
+
+        if (batch == null || batch.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        final List<Message<T>> messages = new ArrayList<>(batch.size());
+        for (Message<T> msg : batch) {
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    /**
+     * Commits the session, and acknowledges the given messages only once the commit has succeeded, so that a
+     * message is never acknowledged before the FlowFile holding it has been persisted. If the commit fails, the
+     * messages are negatively acknowledged so that Pulsar re-delivers them.
+     *
+     * The messages are acknowledged individually, with a single call, on every subscription type. Sessions commit
+     * asynchronously and several tasks, or the message listener, can have batches from the same consumer in flight,
+     * so a later batch may commit first, and a cumulative acknowledgement would then also acknowledge the messages
+     * of an earlier batch that could still fail to commit.
+     *
+     * @param session  - The session holding the FlowFiles created from the messages.
+     * @param consumer - The Pulsar consumer the messages were received from.
+     * @param messages - The messages, in the order they were received.
+     */
+    protected void commitAndAcknowledge(final ProcessSession session, final Consumer<T> consumer,
+                                        final List<Message<T>> messages) {
+        if (messages == null || messages.isEmpty()) {
+            session.commitAsync();
+            return;
+        }
+
+        final List<MessageId> messageIds = new ArrayList<>(messages.size());
+        for (Message<T> msg : messages) {
+            messageIds.add(msg.getMessageId());
+        }
+
+        // Keep the consumer from being evicted until the messages have been acknowledged
+        final boolean retained = retainConsumer(consumer);
+
+        session.commitAsync(() -> acknowledge(consumer, messageIds).whenComplete((result, failure) -> {
+            if (retained) {
+                getConsumers().release(consumer);
+            }
+        }), failure -> {
+            getLogger().error("Failed to commit the session, so {} Pulsar messages will be re-delivered",
+                    new Object[] {messageIds.size()}, failure);
+            negativeAcknowledge(consumer, messageIds);
+            if (retained) {
+                getConsumers().release(consumer);
+            }
+        });
+    }
+
+    /**
+     * Negatively acknowledges the messages so that Pulsar re-delivers them, e.g. after the session was rolled back.
+     */
+    protected void negativeAcknowledge(final Consumer<T> consumer, final List<MessageId> messageIds) {
+        for (MessageId messageId : messageIds) {
+            consumer.negativeAcknowledge(messageId);
+        }
+    }
+
+    private CompletableFuture<Void> acknowledge(final Consumer<T> consumer, final List<MessageId> messageIds) {
+        outstandingAcks.incrementAndGet();
+        return consumer.acknowledgeAsync(messageIds).whenComplete(this::onAcknowledgementComplete);
+    }
+
+    private void onAcknowledgementComplete(final Void result, final Throwable failure) {
+        if (failure != null) {
+            getLogger().warn("Unable to acknowledge Pulsar messages, they will be re-delivered", failure);
+        }
+
+        if (outstandingAcks.decrementAndGet() == 0) {
+            synchronized (ackLock) {
+                ackLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Obtains the consumer for the current task. On a Shared or Key_Shared subscription each task gets a consumer
+     * of its own, which must be handed back with {@link #releaseConsumer(Consumer)} once the task is done with it.
+     *
+     * @return the consumer, or null if we are unable to connect to Pulsar.
+     */
+    protected Consumer<T> borrowConsumer(ProcessContext context, ProcessSession session) throws PulsarClientException {
+        lastTriggeredNanos = System.nanoTime();
+        if (consumersPaused.get() && consumersPaused.compareAndSet(true, false)) {
+            getLogger().debug("Resuming the Pulsar consumers");
+            setConsumersPaused(false);
+        }
+
+        if (maxPooledConsumers == 0) {
+            return getConsumer(context, getConsumerId(context, session.get()));
+        }
+
+        Consumer<T> consumer;
+        while ((consumer = idleConsumers.poll()) != null) {
+            if (consumer.isConnected()) {
+                return consumer;
+            }
+
+            // The consumer lost its connection while sitting in the pool, so discard it.
+            pooledConsumers.decrementAndGet();
+            closeQuietly(consumer);
+        }
+
+        // NiFi never runs more tasks than this, but guard against it all the same
+        if (pooledConsumers.incrementAndGet() > maxPooledConsumers) {
+            pooledConsumers.decrementAndGet();
+            return null;
+        }
+
+        consumer = null;
+        try {
+            consumer = getConsumerBuilder(context).subscribe();
+        } finally {
+            if (consumer == null || !consumer.isConnected()) {
+                pooledConsumers.decrementAndGet();
+                closeQuietly(consumer);
+                consumer = null;
+            }
+        }
+
+        return consumer;
+    }
+
+    /**
+     * Hands a consumer obtained from {@link #borrowConsumer(ProcessContext, ProcessSession)} back to the pool.
+     */
+    protected void releaseConsumer(Consumer<T> consumer) {
+        if (consumer == null) {
+            return;
+        }
+
+        if (maxPooledConsumers > 0) {
+            idleConsumers.offer(consumer);
+        } else if (getConsumers() != null) {
+            getConsumers().release(consumer);
+        }
+    }
+
+    /**
+     * Takes another lease on a cached consumer, so that it is not closed while its messages are still in flight.
+     *
+     * @return false if the consumer is not cached, e.g. because it was borrowed from the pool, in which case
+     *   there is no lease to release.
+     */
+    private boolean retainConsumer(Consumer<T> consumer) {
+        return maxPooledConsumers == 0 && getConsumers() != null && getConsumers().retain(consumer);
+    }
+
+    private void stopIdleMonitor() {
+        if (idleMonitor != null) {
+            idleMonitor.shutdownNow();
+            idleMonitor = null;
+        }
+    }
+
+    private void pauseIfIdle(final long pauseAfterNanos) {
+        if (System.nanoTime() - lastTriggeredNanos > pauseAfterNanos && consumersPaused.compareAndSet(false, true)) {
+            getLogger().debug("Pausing the Pulsar consumers, since the processor has not been triggered recently");
+            setConsumersPaused(true);
+
+            // A trigger may have resumed the consumers while we were pausing them, so make sure they are not left paused.
+            if (!consumersPaused.get()) {
+                setConsumersPaused(false);
+            }
+        }
+    }
+
+    private void setConsumersPaused(final boolean paused) {
+        final java.util.function.Consumer<Consumer<T>> action = paused ? Consumer::pause : Consumer::resume;
+
+        if (getConsumers() != null) {
+            getConsumers().forEach(action);
+        }
+        idleConsumers.forEach(action);
+    }
+
+    private void closePooledConsumers() {
+        Consumer<T> consumer;
+        while ((consumer = idleConsumers.poll()) != null) {
+            closeQuietly(consumer);
+        }
+        pooledConsumers.set(0);
+    }
+
+    private void closeQuietly(Consumer<T> consumer) {
+        if (consumer == null) {
+            return;
+        }
+
+        try {
+            consumer.close();
+        } catch (PulsarClientException e) {
+            getLogger().warn("Unable to close the Pulsar consumer", e);
+        }
+    }
+
+    /**
+     * Leases the cached consumer for the given topic, creating it if need be. The lease must be handed back with
+     * {@link #releaseConsumer(Consumer)}.
+     *
+     * @return the consumer, or null if we are unable to connect to Pulsar.
+     */
+    protected Consumer<T> getConsumer(ProcessContext context, String topic) throws PulsarClientException {
 
         /* Avoid creating producers for non-existent topics */
         if (StringUtils.isBlank(topic)) {
             return null;
         }
 
-        Consumer<GenericRecord> consumer = getConsumers().get(topic);
-
+        Consumer<T> consumer = acquireCachedConsumer(topic);
         if (consumer != null) {
-            if (consumer.isConnected()) return consumer;
-            consumer.close();
+            return consumer;
         }
 
-        // Create a new consumer and validate that it is connected before returning it.
-        consumer = getConsumerBuilder(context).subscribe();
-        if (consumer != null && consumer.isConnected()) {
+        // Only one consumer may be created at a time, as an Exclusive subscription would reject the second one.
+        synchronized (this) {
+            consumer = acquireCachedConsumer(topic);
+            if (consumer != null) {
+                return consumer;
+            }
+
+            // Create a new consumer and validate that it is connected before returning it.
+            consumer = getConsumerBuilder(context).subscribe();
+            if (consumer == null || !consumer.isConnected()) {
+                closeQuietly(consumer);
+                return null;
+            }
+
             getConsumers().put(topic, consumer);
+            return getConsumers().retain(consumer) ? consumer : null;
+        }
+    }
+
+    private Consumer<T> acquireCachedConsumer(String topic) {
+        final Consumer<T> consumer = getConsumers().acquire(topic);
+        if (consumer == null || consumer.isConnected()) {
+            return consumer;
         }
 
-        return (consumer != null && consumer.isConnected()) ? consumer : null;
+        // The consumer lost its connection, so it is closed once we hand back our lease.
+        getConsumers().invalidate(topic);
+        getConsumers().release(consumer);
+        return null;
     }
 
-	protected synchronized ConsumerBuilder<GenericRecord> getConsumerBuilder(ProcessContext context) throws PulsarClientException {
+    /**
+     * @return the schema that the consumers decode the message values with.
+     */
+    protected abstract Schema<T> getConsumerSchema();
+
+	protected ConsumerBuilder<T> getConsumerBuilder(ProcessContext context) throws PulsarClientException {
     	
-		ConsumerBuilder<GenericRecord> builder = 
-			getPulsarClientService().getPulsarClient().newConsumer(Schema.AUTO_CONSUME());
+		ConsumerBuilder<T> builder = 
+			getPulsarClientService().getPulsarClient().newConsumer(getConsumerSchema());
 
         if (context.getProperty(TOPICS).isSet()) {
         	String[] topics = Arrays.stream(context.getProperty(TOPICS).evaluateAttributeExpressions().getValue().split("[, ]"))
@@ -483,6 +937,19 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
             builder = builder.consumerName(context.getProperty(CONSUMER_NAME).getValue());
         }
 
+        if (getHandoffQueue() != null) {
+            builder = builder.messageListener(getHandoffQueue());
+        }
+
+        final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
+                .evaluateAttributeExpressions().asInteger() : -1;
+
+        builder = builder.batchReceivePolicy(BatchReceivePolicy.builder()
+                .maxNumMessages(maxMessages)
+                .maxNumBytes(context.getProperty(CONSUMER_BATCH_MAX_SIZE).asDataSize(DataUnit.B).intValue())
+                .timeout(context.getProperty(CONSUMER_BATCH_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(), TimeUnit.MILLISECONDS)
+                .build());
+
         return builder.subscriptionName(context.getProperty(SUBSCRIPTION_NAME).getValue())
                 .subscriptionInitialPosition(SubscriptionInitialPosition.valueOf(context.getProperty(SUBSCRIPTION_INITIAL_POSITION).getValue()))
                 .autoUpdatePartitions(context.getProperty(AUTO_UPDATE_PARTITIONS).asBoolean())
@@ -495,58 +962,55 @@ public abstract class AbstractPulsarConsumerProcessor<T> extends AbstractProcess
                 .replicateSubscriptionState(context.getProperty(REPLICATE_SUBSCRIPTION_STATE).asBoolean());
     }
 
-	protected synchronized ExecutorService getConsumerPool() {
+	protected ExecutorService getConsumerPool() {
         return consumerPool;
     }
 
-    protected synchronized void setConsumerPool(ExecutorService pool) {
+    protected void setConsumerPool(ExecutorService pool) {
         this.consumerPool = pool;
     }
 
-    protected synchronized ExecutorCompletionService<List<Message<GenericRecord>>> getConsumerService() {
+    protected ExecutorCompletionService<List<Message<T>>> getConsumerService() {
         return consumerService;
     }
 
-    protected synchronized void setConsumerService(ExecutorCompletionService<List<Message<GenericRecord>>> service) {
+    protected void setConsumerService(ExecutorCompletionService<List<Message<T>>> service) {
         this.consumerService = service;
     }
 
-    protected synchronized ExecutorService getAckPool() {
-       return ackPool;
-    }
-
-    protected synchronized void setAckPool(ExecutorService pool) {
-       this.ackPool = pool;
-    }
-
-    protected synchronized ExecutorCompletionService<Object> getAckService() {
-       return ackService;
+    protected MessageHandoffQueue<T> getHandoffQueue() {
+        return handoffQueue;
     }
 
-    protected synchronized void setAckService(ExecutorCompletionService<Object> ackService) {
-       this.ackService = ackService;
+    protected void setHandoffQueue(MessageHandoffQueue<T> queue) {
+        this.handoffQueue = queue;
     }
 
-    protected synchronized PulsarClientService getPulsarClientService() {
+    protected PulsarClientService getPulsarClientService() {
        return pulsarClientService;
     }
 
-    protected synchronized void setPulsarClientService(PulsarClientService pulsarClientService) {
+    protected void setPulsarClientService(PulsarClientService pulsarClientService) {
        this.pulsarClientService = pulsarClientService;
     }
 
-    protected synchronized PulsarConsumerLRUCache<String, Consumer<GenericRecord>> getConsumers() {
-        if (consumers == null) {
-           consumers = new PulsarConsumerLRUCache<String, Consumer<GenericRecord>>(20);
-        }
+    protected PulsarConsumerCache<String, Consumer<T>> getConsumers() {
         return consumers;
     }
 
-    protected void setConsumers(PulsarConsumerLRUCache<String, Consumer<GenericRecord>> consumers) {
+    protected void setConsumers(PulsarConsumerCache<String, Consumer<T>> consumers) {
         this.consumers = consumers;
     }
 
-    protected Map<String, String> getMappedFlowFileAttributes(ProcessContext context, final Message<GenericRecord> msg) {
+    protected ExecutorService getConsumerCloser() {
+        return consumerCloser;
+    }
+
+    protected void setConsumerCloser(ExecutorService closer) {
+        this.consumerCloser = closer;
+    }
+
+    protected Map<String, String> getMappedFlowFileAttributes(ProcessContext context, final Message<T> msg) {
         String mappings = context.getProperty(MAPPED_FLOWFILE_ATTRIBUTES).getValue();
 
         return PropertyMappingUtils.getMappedValues(mappings,
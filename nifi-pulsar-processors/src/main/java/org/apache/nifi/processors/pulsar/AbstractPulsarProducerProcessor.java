@@ -16,13 +16,22 @@
  */
 package org.apache.nifi.processors.pulsar;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
@@ -30,11 +39,14 @@ import org.apache.nifi.components.Validator;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.processors.pulsar.utils.FlowFilePoller;
 import org.apache.nifi.processors.pulsar.utils.PropertyMappingUtils;
+import org.apache.nifi.processors.pulsar.utils.PublishPulsarUtils;
+import org.apache.nifi.processors.pulsar.utils.PublisherLease;
 import org.apache.nifi.processors.pulsar.utils.PublisherPool;
 import org.apache.nifi.pulsar.PulsarClientService;
-import org.apache.nifi.pulsar.cache.PulsarConsumerLRUCache;
 import org.apache.pulsar.client.api.CompressionType;
 import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.MessageRoutingMode;
@@ -43,7 +55,7 @@ import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.TypedMessageBuilder;
 
-public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcessor {
+public abstract class AbstractPulsarProducerProcessor<T> extends AbstractSessionFactoryProcessor {
 
     public static final String MSG_COUNT = "msg.count";
     public static final String TOPIC_NAME = "topic.name";
@@ -97,6 +109,43 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
             .defaultValue("false")
             .build();
 
+    public static final PropertyDescriptor ASYNC_COMMIT_ENABLED = new PropertyDescriptor.Builder()
+            .name("ASYNC_COMMIT_ENABLED")
+            .displayName("Async Commit Enabled")
+            .description("If true, the processor does not wait for the broker to acknowledge the messages it has sent. "
+                    + "The FlowFiles are routed, and the session is committed, once the broker has responded to all of "
+                    + "them, so that a few threads can keep many messages in flight. Messages are always sent "
+                    + "asynchronously in this mode. Since a run no longer waits for the previous one, the FlowFiles "
+                    + "of different runs may be sent on different producers, and so are not guaranteed to be "
+                    + "published to a topic in the order in which they were queued. FlowFiles that are published "
+                    + "with a Pulsar schema are always committed synchronously.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor MAX_PENDING_COMMITS = new PropertyDescriptor.Builder()
+            .name("MAX_PENDING_COMMITS")
+            .displayName("Max Pending Commits")
+            .description("The maximum number of sessions that may be awaiting a response from the broker when 'Async "
+                    + "Commit Enabled' is true. Once this limit is reached, a run waits up to 'Max Poll Duration' for one "
+                    + "of them to be committed before it takes more FlowFiles from the queue.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .build();
+
+    public static final PropertyDescriptor PENDING_COMMIT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("PENDING_COMMIT_TIMEOUT")
+            .displayName("Pending Commit Timeout")
+            .description("How long stopping the processor waits for the broker to respond to the sessions that are still "
+                    + "pending when 'Async Commit Enabled' is true. The sessions that are still pending after this time "
+                    + "are rolled back, so their FlowFiles return to the queue and may be published again.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+
     public static final PropertyDescriptor AUTO_UPDATE_PARTITIONS = new PropertyDescriptor.Builder()
             .name("AUTO_UPDATE_PARTITIONS")
             .displayName("Auto update partitions")
@@ -177,6 +226,17 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
             .defaultValue("false")
             .build();
 
+    public static final PropertyDescriptor CHUNKING_ENABLED = new PropertyDescriptor.Builder()
+            .name("CHUNKING_ENABLED")
+            .displayName("Chunking Enabled")
+            .description("Control whether the producer splits messages that are larger than the broker's maximum "
+                    + "message size into chunks, which are re-assembled by the consumer. Chunking cannot be combined "
+                    + "with batching, so batching is disabled when this is set to true.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
     public static final PropertyDescriptor COMPRESSION_TYPE = new PropertyDescriptor.Builder()
             .name("COMPRESSION_TYPE")
             .displayName("Compression Type")
@@ -198,6 +258,21 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
                 + "To enter special character such as 'new line' use CTRL+Enter or Shift+Enter, depending on your OS.")
             .build();
 
+    public static final PropertyDescriptor MESSAGE_SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("MESSAGE_SEGMENT_SIZE")
+            .displayName("Message Segment Size")
+            .required(false)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .description("If specified, and no Message Demarcator is set, the contents of the FlowFile are streamed to Pulsar "
+                + "as a sequence of messages of at most this size, rather than being read into memory and sent as a single "
+                + "message. Each message carries the fragment.identifier, fragment.index and fragment.count properties, "
+                + "which can be used to re-assemble the original content. Unless a Message Key is configured, the messages "
+                + "are keyed by the fragment.identifier, so that all of the segments of a FlowFile are routed to the same "
+                + "partition of a partitioned topic. The segments are sent in order, one at a time if 'Async Enabled' is "
+                + "false, so they reach that partition in order. This allows FlowFiles of any size to be "
+                + "published using a constant amount of memory.")
+            .build();
+
     public static final PropertyDescriptor MESSAGE_ROUTING_MODE = new PropertyDescriptor.Builder()
             .name("MESSAGE_ROUTING_MODE")
             .displayName("Message Routing Mode")
@@ -238,6 +313,80 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
             .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
 
+    public static final PropertyDescriptor MAX_CACHED_PRODUCERS = new PropertyDescriptor.Builder()
+            .name("MAX_CACHED_PRODUCERS")
+            .displayName("Max Cached Producers")
+            .description("The maximum number of idle producers that are kept open for re-use across all of the topics "
+                    + "this processor publishes to. Producers are created on demand, and any producer that is released "
+                    + "while the cache is full will be closed.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(PublisherPool.DEFAULT_MAX_IDLE_PRODUCERS))
+            .build();
+
+    public static final PropertyDescriptor PRODUCER_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("PRODUCER_IDLE_TIMEOUT")
+            .displayName("Producer Idle Timeout")
+            .description("The amount of time a cached producer may remain unused before it is closed.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT_MESSAGES = new PropertyDescriptor.Builder()
+            .name("MAX_IN_FLIGHT_MESSAGES")
+            .displayName("Max In-Flight Messages")
+            .description("The maximum number of messages from a single FlowFile that may be awaiting a response from "
+                    + "the broker at any given time. Once this limit is reached, the processor waits for outstanding "
+                    + "messages to be acknowledged before sending more.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue(String.valueOf(PublisherLease.DEFAULT_MAX_IN_FLIGHT_MESSAGES))
+            .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_IN_FLIGHT_SIZE")
+            .displayName("Max In-Flight Size")
+            .description("The maximum total size of the messages from a single FlowFile that may be awaiting a response "
+                    + "from the broker at any given time. This bounds the amount of heap held by outstanding messages "
+                    + "when publishing large demarcated FlowFiles.")
+            .required(true)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .defaultValue("32 MB")
+            .build();
+
+    public static final PropertyDescriptor MAX_POLL_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_POLL_SIZE")
+            .displayName("Max Poll Size")
+            .description("The maximum total size of the FlowFiles that are taken from the queue by a single run of the "
+                    + "processor. A FlowFile that is larger than this is still published, on its own.")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("32 MB")
+            .build();
+
+    public static final PropertyDescriptor MAX_POLL_FLOWFILES = new PropertyDescriptor.Builder()
+            .name("MAX_POLL_FLOWFILES")
+            .displayName("Max Poll FlowFiles")
+            .description("The maximum number of FlowFiles that are taken from the queue by a single run of the processor.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .build();
+
+    public static final PropertyDescriptor MAX_POLL_DURATION = new PropertyDescriptor.Builder()
+            .name("MAX_POLL_DURATION")
+            .displayName("Max Poll Duration")
+            .description("The maximum amount of time a single run of the processor keeps taking FlowFiles from the queue. "
+                    + "FlowFiles are published as they are taken, and once this time has passed, the run waits for the "
+                    + "broker to acknowledge what it has sent and commits, rather than taking more. Together with the "
+                    + "'Max Poll Size' and 'Max Poll FlowFiles' this bounds the size of each session, and so how long "
+                    + "it takes to commit.")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 sec")
+            .build();
+
     protected static final List<PropertyDescriptor> PROPERTIES;
     protected static final Set<Relationship> RELATIONSHIPS;
 
@@ -246,6 +395,9 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
         descriptorList.add(PULSAR_CLIENT_SERVICE);
         descriptorList.add(TOPIC);
         descriptorList.add(ASYNC_ENABLED);
+        descriptorList.add(ASYNC_COMMIT_ENABLED);
+        descriptorList.add(MAX_PENDING_COMMITS);
+        descriptorList.add(PENDING_COMMIT_TIMEOUT);
         descriptorList.add(AUTO_UPDATE_PARTITIONS);
         descriptorList.add(AUTO_UPDATE_PARTITION_INTERVAL);
         descriptorList.add(BATCHING_ENABLED);
@@ -253,12 +405,21 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
         descriptorList.add(BATCHING_MAX_MESSAGES);
         descriptorList.add(BATCH_INTERVAL);
         descriptorList.add(BLOCK_IF_QUEUE_FULL);
+        descriptorList.add(CHUNKING_ENABLED);
         descriptorList.add(COMPRESSION_TYPE);
         descriptorList.add(MESSAGE_ROUTING_MODE);
         descriptorList.add(MESSAGE_DEMARCATOR);
+        descriptorList.add(MESSAGE_SEGMENT_SIZE);
         descriptorList.add(PENDING_MAX_MESSAGES);
         descriptorList.add(MAPPED_MESSAGE_PROPERTIES);
         descriptorList.add(MESSAGE_KEY);
+        descriptorList.add(MAX_CACHED_PRODUCERS);
+        descriptorList.add(PRODUCER_IDLE_TIMEOUT);
+        descriptorList.add(MAX_IN_FLIGHT_MESSAGES);
+        descriptorList.add(MAX_IN_FLIGHT_SIZE);
+        descriptorList.add(MAX_POLL_SIZE);
+        descriptorList.add(MAX_POLL_FLOWFILES);
+        descriptorList.add(MAX_POLL_DURATION);
 
         PROPERTIES = Collections.unmodifiableList(descriptorList);
 
@@ -282,14 +443,99 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
 
     private PublisherPool publisherPool;
 
+    private final Set<ProcessSession> deferredSessions = ConcurrentHashMap.newKeySet();
+    // The sessions awaiting the broker, by the completion of their commit. Whoever removes a session owns it.
+    private final ConcurrentMap<CompletableFuture<Void>, PendingCommit> pendingCommits = new ConcurrentHashMap<>();
+    private volatile ExecutorService commitExecutor;
+
+    @Override
+    public final void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            onTrigger(context, session);
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+
+        // Sessions that publishByTopic left to be committed once the broker has responded are not committed here.
+        if (!deferredSessions.remove(session)) {
+            session.commitAsync();
+        }
+    }
+
+    public abstract void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException;
+
     @OnScheduled
     public void init(ProcessContext context) {
         setPulsarClientService(context.getProperty(PULSAR_CLIENT_SERVICE).asControllerService(PulsarClientService.class));
         setPublisherPool(createPublisherPool(context));
+
+        // Pending sessions are committed on threads of our own rather than on the Pulsar client's I/O threads
+        if (isAsyncCommit(context)) {
+            commitExecutor = Executors.newFixedThreadPool(context.getProperty(MAX_PENDING_COMMITS).asInteger(),
+                    new BasicThreadFactory.Builder().namingPattern("PulsarCommit-" + getIdentifier() + "-%d").daemon(true).build());
+        }
+    }
+
+    @OnStopped
+    public void cleanUp(final ProcessContext context) {
+        rollbackPendingCommits(context.getProperty(PENDING_COMMIT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS));
+
+        if (commitExecutor != null) {
+            commitExecutor.shutdown();
+            commitExecutor = null;
+        }
+
+        final PublisherPool pool = getPublisherPool();
+
+        if (pool != null) {
+            pool.close();
+            setPublisherPool(null);
+        }
+    }
+
+    /**
+     * Waits up to the given time for the broker to respond to the pending sessions, and rolls back those that are
+     * still pending after that, so that a broker that never responds can not keep the processor from stopping.
+     */
+    private void rollbackPendingCommits(final long timeoutMillis) {
+        if (pendingCommits.isEmpty()) {
+            return;
+        }
+
+        try {
+            CompletableFuture.allOf(pendingCommits.keySet().toArray(new CompletableFuture<?>[0])).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return;
+        } catch (final TimeoutException e) {
+            // Roll back whatever is still pending below
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            // Pending commits never complete exceptionally, commitSettled handles every failure
+        }
+
+        int rolledBack = 0;
+        for (CompletableFuture<Void> commit : pendingCommits.keySet()) {
+            final PendingCommit pending = pendingCommits.remove(commit);
+            if (pending != null) {
+                pending.rollback();
+                rolledBack++;
+            }
+        }
+
+        if (rolledBack > 0) {
+            getLogger().warn("The broker did not respond to {} pending sessions in time, so they were rolled back and their "
+                    + "FlowFiles may be published again", new Object[] {rolledBack});
+        }
     }
 
     protected PublisherPool createPublisherPool(final ProcessContext context) {
-        return new PublisherPool(getLogger(), getPulsarProducerConfiguration(context), this.getPulsarClientService().getPulsarClient());
+        return new PublisherPool(getLogger(), getPulsarProducerConfiguration(context), this.getPulsarClientService().getPulsarClient(),
+                context.getProperty(MAX_CACHED_PRODUCERS).asInteger(),
+                context.getProperty(PRODUCER_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(MAX_IN_FLIGHT_MESSAGES).asInteger(),
+                context.getProperty(MAX_IN_FLIGHT_SIZE).asDataSize(DataUnit.B).intValue());
     }
 
     protected Map<String, Object> getPulsarProducerConfiguration(ProcessContext ctx) {
@@ -301,7 +547,10 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
         config.put("blockIfQueueFull", ctx.getProperty(BLOCK_IF_QUEUE_FULL).asBoolean());
         config.put("compressionType", CompressionType.valueOf(ctx.getProperty(COMPRESSION_TYPE).getValue()));
 
-        if (ctx.getProperty(BATCHING_ENABLED).asBoolean()) {
+        if (ctx.getProperty(CHUNKING_ENABLED).asBoolean()) {
+            config.put("chunkingEnabled", Boolean.TRUE);
+            config.put("enableBatching", Boolean.FALSE);
+        } else if (ctx.getProperty(BATCHING_ENABLED).asBoolean()) {
             config.put("enableBatching", Boolean.TRUE);
             config.put("batchingMaxBytes", ctx.getProperty(BATCHING_MAX_BYTES).asDataSize(DataUnit.B).intValue());
             config.put("batchingMaxMessages", ctx.getProperty(BATCHING_MAX_MESSAGES).evaluateAttributeExpressions().asInteger());
@@ -335,6 +584,11 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
                 .evaluateAttributeExpressions(flowFile).getValue().getBytes(StandardCharsets.UTF_8) : null;
     }
 
+    protected int getSegmentSize(ProcessContext context) {
+        return context.getProperty(MESSAGE_SEGMENT_SIZE).isSet() ? context.getProperty(MESSAGE_SEGMENT_SIZE)
+                .asDataSize(DataUnit.B).intValue() : 0;
+    }
+
     protected String getMessageKey(ProcessContext context, final FlowFile flowFile) {
         String key = context.getProperty(MESSAGE_KEY).evaluateAttributeExpressions(flowFile).getValue();
 
@@ -350,4 +604,306 @@ public abstract class AbstractPulsarProducerProcessor<T> extends AbstractProcess
         return PropertyMappingUtils.getMappedValues(mappings, (a) -> flowFile.getAttribute(a));
     }
 
+    protected boolean isAsync(ProcessContext context) {
+        return (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean()) || isAsyncCommit(context);
+    }
+
+    protected boolean isAsyncCommit(ProcessContext context) {
+        return context.getProperty(ASYNC_COMMIT_ENABLED).asBoolean();
+    }
+
+    /**
+     * Publishes the content of a single FlowFile on a lease for its topic.
+     */
+    protected interface FlowFilePublisher {
+
+        /**
+         * @return the number of messages that were sent for the FlowFile
+         */
+        long publish(PublisherLease lease, FlowFile flowFile) throws Exception;
+    }
+
+    /**
+     * Creates a poller that takes no more FlowFiles from the queue than the poll budget of a single run allows.
+     */
+    protected FlowFilePoller createPoller(final ProcessContext context, final ProcessSession session) {
+        return new FlowFilePoller(session,
+                context.getProperty(MAX_POLL_SIZE).asDataSize(DataUnit.B).longValue(),
+                context.getProperty(MAX_POLL_FLOWFILES).asInteger(),
+                context.getProperty(MAX_POLL_DURATION).asTimePeriod(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Polls FlowFiles within the poll budget, and publishes them grouped by topic, each topic on a single lease that
+     * only waits for the broker once all of that topic's FlowFiles have been sent. Each chunk of FlowFiles is sent as
+     * soon as it is polled, so the broker works on one chunk while the next is being polled, and the round trips for
+     * different topics overlap rather than add up.
+     * <p>
+     * If async commit is enabled, this returns as soon as everything has been sent, and the FlowFiles are transferred
+     * and the session committed once the broker has responded to every message.
+     *
+     * @return false if there were no FlowFiles to publish, in which case the caller should yield. The processor is
+     *   busy rather than idle while it waits for pending commits, so that does not count as having nothing to publish.
+     */
+    protected boolean publishByTopic(final ProcessContext context, final ProcessSession session, final FlowFilePublisher publisher) {
+        final boolean asyncCommit = isAsyncCommit(context);
+        if (asyncCommit && !awaitPendingCommits(context)) {
+            return true;
+        }
+
+        final FlowFilePoller poller = createPoller(context, session);
+        final Map<String, TopicBatch> batches = new LinkedHashMap<>();
+
+        List<FlowFile> flowFiles;
+        while (!(flowFiles = poller.poll()).isEmpty()) {
+            final Map<String, List<FlowFile>> flowFilesByTopic = PublishPulsarUtils.groupByTopic(flowFiles,
+                    flowFile -> context.getProperty(TOPIC).evaluateAttributeExpressions(flowFile).getValue());
+
+            for (Map.Entry<String, List<FlowFile>> entry : flowFilesByTopic.entrySet()) {
+                final TopicBatch batch = batches.computeIfAbsent(entry.getKey(), topicName -> new TopicBatch(session, topicName));
+                for (FlowFile flowFile : entry.getValue()) {
+                    batch.publish(flowFile, publisher);
+                }
+            }
+        }
+
+        final List<CompletableFuture<List<Throwable>>> results = new ArrayList<>();
+        for (TopicBatch batch : batches.values()) {
+            batch.end();
+            results.addAll(batch.getResults());
+        }
+
+        if (!asyncCommit) {
+            for (TopicBatch batch : batches.values()) {
+                batch.settle();
+            }
+            return poller.getPolledFlowFiles() > 0;
+        }
+
+        if (poller.getPolledFlowFiles() == 0) {
+            return false;
+        }
+
+        // The session now belongs to the completion below, which runs on the commit executor once this thread no
+        // longer touches the session.
+        deferredSessions.add(session);
+        final CompletableFuture<Void> commit = new CompletableFuture<>();
+        pendingCommits.put(commit, new PendingCommit(session, batches.values()));
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((ignored, throwable) -> {
+            try {
+                // The commit no longer counts as pending by the time it completes, for the sake of awaitPendingCommits.
+                // It is no longer pending at all if the processor was stopped, and rolled it back, in the meantime.
+                if (pendingCommits.remove(commit) != null) {
+                    commitSettled(session, batches.values());
+                }
+            } finally {
+                commit.complete(null);
+            }
+        }, commitExecutor);
+        return true;
+    }
+
+    /**
+     * Each pending session holds on to its FlowFiles and producers, so once there are 'Max Pending Commits' of them,
+     * waits for one to complete. The broker usually responds within milliseconds, so waiting is much cheaper than
+     * yielding, but no longer than 'Max Poll Duration', which bounds how long a run holds on to its thread anyway.
+     *
+     * @return true if there is room for another pending session
+     */
+    private boolean awaitPendingCommits(final ProcessContext context) {
+        final int maxPendingCommits = context.getProperty(MAX_PENDING_COMMITS).asInteger();
+        final long deadline = System.nanoTime() + context.getProperty(MAX_POLL_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+
+        while (pendingCommits.size() >= maxPendingCommits) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            // The commits may all have completed since the size was checked, and anyOf() of none never completes
+            final CompletableFuture<?>[] pending = pendingCommits.keySet().toArray(new CompletableFuture<?>[0]);
+            if (pending.length == 0) {
+                continue;
+            }
+
+            try {
+                CompletableFuture.anyOf(pending).get(remaining, TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                return false;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (final ExecutionException e) {
+                // Pending commits never complete exceptionally, commitSettled handles every failure
+            }
+        }
+        return true;
+    }
+
+    private void commitSettled(final ProcessSession session, final Collection<TopicBatch> batches) {
+        try {
+            for (TopicBatch batch : batches) {
+                batch.settle();
+            }
+            session.commitAsync(() -> { }, failure -> getLogger().error("Failed to commit the session of published FlowFiles, "
+                    + "which may be published again", failure));
+        } catch (final Throwable t) {
+            getLogger().error("Failed to route published FlowFiles, which may be published again", t);
+            session.rollback(true);
+        }
+    }
+
+    /**
+     * Routes a FlowFile whose messages have all been sent to Pulsar.
+     */
+    protected void transferSuccess(final ProcessSession session, final FlowFile flowFile, final String topicName,
+                                   final long messagesSent) {
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    /**
+     * The FlowFiles of one topic that have been sent on one lease, and the future outcome of each of them.
+     */
+    private static final class SentBatch {
+        private final PublisherLease lease;
+        private final List<FlowFile> flowFiles;
+        private final List<Long> messagesSent;
+        private final CompletableFuture<List<Throwable>> results;
+
+        private SentBatch(final PublisherLease lease, final List<FlowFile> flowFiles, final List<Long> messagesSent) {
+            this.lease = lease;
+            this.flowFiles = flowFiles;
+            this.messagesSent = messagesSent;
+            this.results = lease.endBatchAsync();
+        }
+    }
+
+    /**
+     * A session that awaits the broker's response to the FlowFiles it has sent before it can be committed.
+     */
+    private final class PendingCommit {
+        private final ProcessSession session;
+        private final Collection<TopicBatch> batches;
+
+        private PendingCommit(final ProcessSession session, final Collection<TopicBatch> batches) {
+            this.session = session;
+            this.batches = batches;
+        }
+
+        private void rollback() {
+            for (TopicBatch batch : batches) {
+                batch.abandon();
+            }
+            session.rollback();
+        }
+    }
+
+    /**
+     * The FlowFiles of one topic that have been sent, but not yet acknowledged by the broker.
+     */
+    private final class TopicBatch {
+        private final ProcessSession session;
+        private final String topicName;
+        private final List<SentBatch> sent = new ArrayList<>();
+
+        private PublisherLease lease;
+        private List<FlowFile> published = new ArrayList<>();
+        private List<Long> messagesSent = new ArrayList<>();
+
+        private TopicBatch(final ProcessSession session, final String topicName) {
+            this.session = session;
+            this.topicName = topicName;
+        }
+
+        private void publish(final FlowFile flowFile, final FlowFilePublisher publisher) {
+            if (lease == null) {
+                lease = getPublisherPool().obtainPublisher(topicName);
+
+                if (lease == null) {
+                    getLogger().error("Unable to publish to topic {}", new Object[] {topicName});
+                    session.transfer(flowFile, REL_FAILURE);
+                    return;
+                }
+                lease.beginBatch();
+            }
+
+            try {
+                messagesSent.add(publisher.publish(lease, flowFile));
+                published.add(flowFile);
+            } catch (final Exception ex) {
+                getLogger().error("Unable to process session due to ", ex);
+                session.transfer(flowFile, REL_FAILURE);
+
+                // The producer may no longer be usable, so end the batch already sent on it, and send the rest on another.
+                lease.poison();
+                end();
+            }
+        }
+
+        /**
+         * Ends the batch of the current lease, without waiting for the broker.
+         */
+        private void end() {
+            if (lease != null) {
+                sent.add(new SentBatch(lease, published, messagesSent));
+                lease = null;
+                published = new ArrayList<>();
+                messagesSent = new ArrayList<>();
+            }
+        }
+
+        private List<CompletableFuture<List<Throwable>>> getResults() {
+            final List<CompletableFuture<List<Throwable>>> results = new ArrayList<>(sent.size());
+            for (SentBatch batch : sent) {
+                results.add(batch.results);
+            }
+            return results;
+        }
+
+        /**
+         * Waits for the outcome of every FlowFile that was sent, and routes it accordingly.
+         */
+        private void settle() {
+            for (SentBatch batch : sent) {
+                try {
+                    final List<Throwable> failures = batch.results.get();
+
+                    for (int i = 0; i < batch.flowFiles.size(); i++) {
+                        final Throwable failure = failures.get(i);
+                        if (failure == null) {
+                            transferSuccess(session, batch.flowFiles.get(i), topicName, batch.messagesSent.get(i));
+                        } else {
+                            getLogger().error("Unable to publish {} to topic {}", new Object[] {batch.flowFiles.get(i), topicName, failure});
+                            batch.lease.poison();
+                            session.transfer(batch.flowFiles.get(i), REL_FAILURE);
+                        }
+                    }
+                } catch (final InterruptedException | ExecutionException ex) {
+                    if (ex instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    getLogger().error("Unable to process session due to ", ex);
+                    batch.lease.poison();
+                    session.transfer(batch.flowFiles, REL_FAILURE);
+                } finally {
+                    // Return the producer to the pool so it can be re-used for the next FlowFile.
+                    batch.lease.close();
+                }
+            }
+            sent.clear();
+        }
+
+        /**
+         * Closes the producers of a batch whose session is rolled back before the broker has responded, without
+         * waiting for it to respond.
+         */
+        private void abandon() {
+            for (SentBatch batch : sent) {
+                batch.lease.abandon();
+            }
+            sent.clear();
+        }
+    }
+
 }
@@ -18,14 +18,17 @@ package org.apache.nifi.processors.pulsar.pubsub;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.nifi.annotation.behavior.InputRequirement;
@@ -34,15 +37,19 @@ import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarConsumerProcessor;
+import org.apache.nifi.processors.pulsar.utils.MessagePayloadUtils;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.PulsarClientException;
-import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.Schema;
 import org.apache.commons.io.IOUtils;
 
 @SeeAlso({PublishPulsar.class, ConsumePulsarRecord.class, PublishPulsarRecord.class})
@@ -52,14 +59,60 @@ import org.apache.commons.io.IOUtils;
 @WritesAttributes({
     @WritesAttribute(attribute = "message.count", description = "The number of messages received from Pulsar")
 })
-public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
+public class ConsumePulsar extends AbstractPulsarConsumerProcessor<ByteBuffer> {
 
     public static final String MSG_COUNT = "message.count";
 
+    public static final PropertyDescriptor MAX_FLOWFILE_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_FLOWFILE_SIZE")
+            .displayName("Max FlowFile Size")
+            .description("The maximum size of the content of a single FlowFile. Once the next message would take a FlowFile "
+                    + "past this size, a new FlowFile is started, so a FlowFile only exceeds it when it holds a single message "
+                    + "that is larger. If not set, FlowFiles are only bounded by the 'Consumer Message Batch Size'.")
+            .required(false)
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Long.MAX_VALUE))
+            .build();
+
+    public static final PropertyDescriptor MAX_BUNDLE_LATENCY = new PropertyDescriptor.Builder()
+            .name("MAX_BUNDLE_LATENCY")
+            .displayName("Max Bundle Latency")
+            .description("The maximum amount of time to keep adding messages to the same FlowFiles. Once a message has been "
+                    + "received, batches continue to be received until 'Consumer Message Batch Size' messages or 'Max FlowFile "
+                    + "Size' bytes have been received, or this much time has elapsed, whichever happens first. A batch that is "
+                    + "already being received may extend this by up to the 'Consumer Batch Timeout'. If not set, each FlowFile "
+                    + "holds the messages of a single batch. Does not apply when 'Async Enabled' is true.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    private static final List<PropertyDescriptor> PROPERTIES;
+
+    static {
+        final List<PropertyDescriptor> properties = new ArrayList<>(AbstractPulsarConsumerProcessor.PROPERTIES);
+        properties.add(MAX_FLOWFILE_SIZE);
+        properties.add(MAX_BUNDLE_LATENCY);
+        PROPERTIES = Collections.unmodifiableList(properties);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    /**
+     * The message contents are written to the FlowFiles as they are, so the messages are consumed as ByteBuffers,
+     * whatever the schema of the topic, and each value is written out from the buffer that Pulsar decoded it into.
+     */
+    @Override
+    protected Schema<ByteBuffer> getConsumerSchema() {
+        return Schema.BYTEBUFFER;
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        Consumer<ByteBuffer> consumer = null;
         try {
-            Consumer<GenericRecord> consumer = getConsumer(context, getConsumerId(context, session.get()));
+            consumer = borrowConsumer(context, session);
 
             if (consumer == null) {
                 context.yield();
@@ -76,115 +129,20 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
             getLogger().error("Unable to consume from Pulsar Topic ", e);
             context.yield();
             throw new ProcessException(e);
+        } finally {
+            releaseConsumer(consumer);
         }
     }
 
-    private void handleAsync(final Consumer<GenericRecord> consumer, ProcessContext context, ProcessSession session) {
+    private void handleAsync(final Consumer<ByteBuffer> consumer, ProcessContext context, ProcessSession session) {
         try {
-            Future<List<Message<GenericRecord>>> done = getConsumerService().poll(5, TimeUnit.SECONDS);
+            Future<List<Message<ByteBuffer>>> done = getConsumerService().poll(5, TimeUnit.SECONDS);
 
             if (done != null) {
-
-                final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
-                    .evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8) : null;
-
-                // Cumulative acks are NOT permitted on Shared subscriptions.
-                final boolean shared = isSharedSubscription(context);
-                
-                List<Message<GenericRecord>> messages = done.get();
+                List<Message<ByteBuffer>> messages = done.get();
 
                 if (CollectionUtils.isNotEmpty(messages)) {
-                    FlowFile flowFile = null;
-                    OutputStream out = null;
-                    AtomicInteger msgCount = new AtomicInteger(0);
-
-                    Map<String, String> lastAttributes = null;
-                    Message<GenericRecord> lastMessage = null;
-                    Map<String, String> currentAttributes = null;
-
-                    for (Message<GenericRecord> msg : messages) {
-                        currentAttributes = getMappedFlowFileAttributes(context, msg);
-
-                       if (lastAttributes != null && !lastAttributes.equals(currentAttributes)) {
-                            // mapped attributes changed, write the current flowfile and start a new one
-                            IOUtils.closeQuietly(out);
-
-                            flowFile = session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
-                            session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                            session.transfer(flowFile, REL_SUCCESS);
-                            session.commitAsync();
-
-                            if (!shared) {
-	                            final Message<GenericRecord> finalMessage = lastMessage;
-	                            // Cumulatively acknowledge consuming the messages for non-shared subs
-	                            
-	                            getAckService().submit(new Callable<Object>() {
-	                                @Override
-	                                public Object call() throws Exception {
-	                                    return consumer.acknowledgeCumulativeAsync(finalMessage).get();
-	                                }
-	                            });
-                            }
-
-                            lastAttributes = null;
-                            lastMessage = null;
-                        }
-
-                        if (lastAttributes == null) {
-                            flowFile = session.create();
-                            flowFile = session.putAllAttributes(flowFile, currentAttributes);
-
-                            out = session.write(flowFile);
-                            msgCount.set(0);
-                        }
-
-                        lastAttributes = currentAttributes;
-                        lastMessage = msg;
- 
-                        if (shared) {
-                        	// acknowledge each message individually for shared subs
-                        	getAckService().submit(new Callable<Object>() {
-                        		@Override
-                        		public Object call() throws Exception {
-                        			return consumer.acknowledgeAsync(msg).get();
-                        		}
-                        	});
-                        }
-                        
-                        try {
-                        	//only write demarcators between messages
-                        	if (msgCount.get() > 0) {
-                        		out.write(demarcatorBytes);
-                        	}
-                        	
-                        	 byte[] data = msg.getData();
-                             
-                             if (data != null && data.length > 0) {
-                               out.write(data);
-                               msgCount.getAndIncrement();
-                             }
-                             
-                        } catch (final IOException ioEx) {
-                            session.rollback();
-                            return;
-                        }
-                    }
-
-                    IOUtils.closeQuietly(out);
-
-                    flowFile = session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
-                    session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                    session.transfer(flowFile, REL_SUCCESS);
-                    session.commitAsync();
-                }
-                // Cumulatively acknowledge consuming the message for non-shared subs
-                if (!shared) {
-	                getAckService().submit(new Callable<Object>() {
-	                    @Override
-	                    public Object call() throws Exception {
-	                       return consumer.acknowledgeCumulativeAsync(messages.get(messages.size() - 1)).get();
-	                    }
-	                });
+                    writeMessages(consumer, context, session, messages);
                 }
             }
         } catch (InterruptedException | ExecutionException e) {
@@ -192,116 +150,155 @@ public class ConsumePulsar extends AbstractPulsarConsumerProcessor<byte[]> {
         }
     }
 
-    private void consume(Consumer<GenericRecord> consumer, ProcessContext context, ProcessSession session) throws PulsarClientException {
- 
+    private void consume(Consumer<ByteBuffer> consumer, ProcessContext context, ProcessSession session) throws PulsarClientException {
         try {
-            final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
-                    .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
+            final List<Message<ByteBuffer>> messages = receiveBundle(consumer, context);
 
-            final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
-                    .evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8) : null;
-            
-            // Cumulative acks are NOT permitted on Shared subscriptions.
-            final boolean shared = isSharedSubscription(context);
+            if (messages.isEmpty()) {
+                context.yield();
+                return;
+            }
 
-            FlowFile flowFile = null;
-            OutputStream out = null;
-            Message<GenericRecord> msg = null;
-            Message<GenericRecord> lastMsg = null;
-            AtomicInteger msgCount = new AtomicInteger(0);
-            AtomicInteger loopCounter = new AtomicInteger(0);
+            writeMessages(consumer, context, session, messages);
 
-            Map<String, String> lastAttributes = null;
-            Map<String, String> currentAttributes = null;
+        } catch (PulsarClientException e) {
+            getLogger().error("Error communicating with Apache Pulsar", e);
+            context.yield();
+            session.rollback();
+        }
+    }
 
-            while (loopCounter.get() < maxMessages && (msg = consumer.receive(0, TimeUnit.SECONDS)) != null) {
-                currentAttributes = getMappedFlowFileAttributes(context, msg);
+    /**
+     * Receives the messages for the next set of FlowFiles. Without a Max Bundle Latency this is a single batch,
+     * otherwise batches are received until the bundle is full, or the latency has elapsed since its first message.
+     */
+    private List<Message<ByteBuffer>> receiveBundle(Consumer<ByteBuffer> consumer, ProcessContext context) throws PulsarClientException {
+        final List<Message<ByteBuffer>> batch = receiveMessages(consumer);
 
-                if (lastMsg != null && !lastAttributes.equals(currentAttributes)) {
-                    IOUtils.closeQuietly(out);
+        if (batch.isEmpty() || !context.getProperty(MAX_BUNDLE_LATENCY).isSet()) {
+            return batch;
+        }
 
-                    if (!shared)  {
-                        consumer.acknowledgeCumulative(lastMsg);
-                    }
+        final long deadline = System.nanoTime() + context.getProperty(MAX_BUNDLE_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS);
+        final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
+                .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
+        final long maxBytes = context.getProperty(MAX_FLOWFILE_SIZE).isSet()
+                ? context.getProperty(MAX_FLOWFILE_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
 
-                    if (msgCount.get() < 1) {
-                        session.remove(flowFile);
-                        session.commitAsync();
-                    } else {
-                        flowFile = session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
-                        session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                        session.transfer(flowFile, REL_SUCCESS);
-                        getLogger().debug("Created {} from {} messages received from Pulsar Server and transferred to 'success'",
-                            new Object[]{flowFile, msgCount.toString()});
-                    }
+        final List<Message<ByteBuffer>> messages = new ArrayList<>(batch);
+        long bytes = sizeOf(batch);
 
-                    lastAttributes = null;
-                    lastMsg = null;
-                }
+        while (messages.size() < maxMessages && bytes < maxBytes && System.nanoTime() < deadline) {
+            final List<Message<ByteBuffer>> next = receiveMessages(consumer);
 
-                if (lastMsg == null) {
-                    flowFile = session.create();
-                    flowFile = session.putAllAttributes(flowFile, currentAttributes);
+            // The listener's queue does not wait for messages to arrive, so stop rather than spin on it.
+            if (next.isEmpty() && getHandoffQueue() != null) {
+                break;
+            }
 
-                    out = session.write(flowFile);
-                    msgCount.set(0);
-                }
+            messages.addAll(next);
+            bytes += sizeOf(next);
+        }
 
-                try {
-                    lastMsg = msg;
-                    lastAttributes = currentAttributes;
-                    loopCounter.incrementAndGet();
-                    
-                    if (shared) {
-                    	consumer.acknowledge(msg);
-                    }
-                    
-                    // only write demarcators between messages
-                    if (msgCount.get() > 0) {
-                    	out.write(demarcatorBytes);
-                    }
-                    
-                    byte[] data = msg.getData();
-                    
-                    if (data != null && data.length > 0) {
-                      out.write(data);
-                      msgCount.getAndIncrement();
-                    }
-                    
-                } catch (final IOException ioEx) {
-                    getLogger().error("Unable to create flow file ", ioEx);
-                    session.rollback();
-                    if (!shared) {
-                        consumer.acknowledgeCumulative(lastMsg);
-                    }
-  
-                    return;
-                }
+        return messages;
+    }
+
+    private static long sizeOf(final List<Message<ByteBuffer>> messages) {
+        long bytes = 0;
+        for (Message<ByteBuffer> msg : messages) {
+            bytes += msg.size();
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the messages to FlowFiles, starting a new FlowFile whenever the mapped attributes change or the
+     * current FlowFile is full, and acknowledges the messages once the session has been committed.
+     */
+    private void writeMessages(final Consumer<ByteBuffer> consumer, ProcessContext context, ProcessSession session,
+                               final List<Message<ByteBuffer>> messages) {
+
+        final byte[] demarcatorBytes = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
+                .evaluateAttributeExpressions().getValue().getBytes(StandardCharsets.UTF_8) : null;
+
+        final long maxFlowFileSize = context.getProperty(MAX_FLOWFILE_SIZE).isSet()
+                ? context.getProperty(MAX_FLOWFILE_SIZE).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
+        final int demarcatorLength = demarcatorBytes == null ? 0 : demarcatorBytes.length;
+
+        FlowFile flowFile = null;
+        OutputStream out = null;
+        AtomicInteger msgCount = new AtomicInteger(0);
+        long flowFileSize = 0;
+
+        Map<String, String> lastAttributes = null;
+        Map<String, String> currentAttributes = null;
+
+        for (Message<ByteBuffer> msg : messages) {
+            currentAttributes = getMappedFlowFileAttributes(context, msg);
+            final ByteBuffer payload = MessagePayloadUtils.getPayload(msg);
+            final int size = payload.remaining();
+
+            final boolean full = size > 0 && msgCount.get() > 0 && flowFileSize + demarcatorLength + size > maxFlowFileSize;
+
+            if (lastAttributes != null && (full || !lastAttributes.equals(currentAttributes))) {
+                // mapped attributes changed or the flowfile is full, write the current flowfile and start a new one
+                IOUtils.closeQuietly(out);
+                transferOrRemove(consumer, session, flowFile, msgCount);
+                lastAttributes = null;
             }
-            
-            IOUtils.closeQuietly(out);
 
-            if (!shared && lastMsg != null)  {
-                consumer.acknowledgeCumulative(lastMsg);
+            if (lastAttributes == null) {
+                flowFile = session.create();
+                flowFile = session.putAllAttributes(flowFile, currentAttributes);
+
+                out = session.write(flowFile);
+                msgCount.set(0);
+                flowFileSize = 0;
             }
 
-            if (msgCount.get() < 1) {
-                if (flowFile != null) {
-                    session.remove(flowFile);
-                    session.commitAsync();
+            lastAttributes = currentAttributes;
+
+            try {
+                if (size > 0) {
+                    // only write demarcators between messages
+                    if (msgCount.get() > 0 && demarcatorBytes != null) {
+                        out.write(demarcatorBytes);
+                        flowFileSize += demarcatorLength;
+                    }
+
+                    // Write straight from the message's buffer rather than copying it into a byte array first
+                    MessagePayloadUtils.writePayload(payload, out);
+                    flowFileSize += size;
+                    msgCount.getAndIncrement();
                 }
-            } else {
-                flowFile = session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
-                session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                session.transfer(flowFile, REL_SUCCESS);
-                getLogger().debug("Created {} from {} messages received from Pulsar Server and transferred to 'success'",
-                   new Object[]{flowFile, msgCount.toString()});
+
+            } catch (final IOException ioEx) {
+                getLogger().error("Unable to create flow file ", ioEx);
+                IOUtils.closeQuietly(out);
+                session.rollback();
+
+                // None of the messages have been written, so have Pulsar re-deliver all of them.
+                negativeAcknowledge(consumer, messages.stream().map(Message::getMessageId).collect(Collectors.toList()));
+                return;
             }
+        }
 
-        } catch (PulsarClientException e) {
-            getLogger().error("Error communicating with Apache Pulsar", e);
-            context.yield();
-            session.rollback();
+        IOUtils.closeQuietly(out);
+        transferOrRemove(consumer, session, flowFile, msgCount);
+
+        commitAndAcknowledge(session, consumer, messages);
+    }
+
+    private void transferOrRemove(final Consumer<ByteBuffer> consumer, final ProcessSession session, FlowFile flowFile,
+                                  final AtomicInteger msgCount) {
+        if (msgCount.get() < 1) {
+            session.remove(flowFile);
+        } else {
+            flowFile = session.putAttribute(flowFile, MSG_COUNT, msgCount.toString());
+            session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
+            session.transfer(flowFile, REL_SUCCESS);
+            getLogger().debug("Created {} from {} messages received from Pulsar Server and transferred to 'success'",
+               new Object[]{flowFile, msgCount.toString()});
         }
     }
 }
@@ -19,17 +19,16 @@ package org.apache.nifi.processors.pulsar.pubsub;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.IOUtils;
@@ -39,7 +38,11 @@ import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessContext;
@@ -48,6 +51,7 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarConsumerProcessor;
+import org.apache.nifi.processors.pulsar.utils.PulsarSchemaUtils;
 import org.apache.nifi.schema.access.SchemaNotFoundException;
 import org.apache.nifi.serialization.*;
 import org.apache.nifi.serialization.record.Record;
@@ -56,7 +60,10 @@ import org.apache.nifi.serialization.record.SchemaIdentifier;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.SchemaSerializationException;
 import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.common.schema.SchemaInfo;
 import org.apache.pulsar.common.schema.SchemaType;
 
 @CapabilityDescription("Consumes messages from Apache Pulsar. "
@@ -69,21 +76,27 @@ import org.apache.pulsar.common.schema.SchemaType;
         + "FlowFile. No two Pulsar messages will be placed into the same FlowFile if they have different schemas.")
 @Tags({"Pulsar", "Get", "Record", "csv", "avro", "json", "Ingest", "Ingress", "Topic", "PubSub", "Consume"})
 @WritesAttributes({
-        @WritesAttribute(attribute = "record.count", description = "The number of records received")
+        @WritesAttribute(attribute = "record.count", description = "The number of records received"),
+        @WritesAttribute(attribute = "avro.schema", description = "The Pulsar AVRO schema of the records, unless the "
+                + "'Schema Attribute' property is set to write the schema version instead"),
+        @WritesAttribute(attribute = "pulsar.schema.version", description = "The version of the Pulsar schema of the records, "
+                + "if the 'Schema Attribute' property is set to write it")
 })
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
 @SeeAlso({PublishPulsar.class, ConsumePulsar.class, PublishPulsarRecord.class})
 public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<GenericRecord> {
 
     public static final String MSG_COUNT = "record.count";
+    public static final String AVRO_SCHEMA = "avro.schema";
+    public static final String SCHEMA_VERSION = "pulsar.schema.version";
     private static final String RECORD_SEPARATOR = "\n";
 
     public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
             .name("Record Reader")
             .displayName("Record Reader")
-            .description("The Record Reader to use for incoming FlowFiles")
+            .description("The Record Reader to use for incoming FlowFiles. Only required if 'Use Pulsar Schema' is false.")
             .identifiesControllerService(RecordReaderFactory.class)
-            .required(true)
+            .required(false)
             .build();
 
     public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
@@ -94,6 +107,36 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
             .required(true)
             .build();
 
+    public static final PropertyDescriptor USE_PULSAR_SCHEMA = new PropertyDescriptor.Builder()
+            .name("USE_PULSAR_SCHEMA")
+            .displayName("Use Pulsar Schema")
+            .description("If true, messages on topics with a Pulsar AVRO or JSON schema are converted into records directly from "
+                    + "the GenericRecords that Pulsar has already decoded, using a record schema that is derived from the Pulsar "
+                    + "schema once per schema version, and the Record Reader is not used. Messages without such a schema are "
+                    + "still parsed by the Record Reader, or routed to 'parse_failure' if there is none. If false, every message "
+                    + "is parsed by the Record Reader.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    static final AllowableValue SCHEMA_ATTRIBUTE_TEXT = new AllowableValue("Schema Text", "Schema Text",
+            "The full definition of each Pulsar AVRO schema is written to the '" + AVRO_SCHEMA + "' attribute.");
+    static final AllowableValue SCHEMA_ATTRIBUTE_VERSION = new AllowableValue("Schema Version", "Schema Version",
+            "The version of the Pulsar schema is written to the '" + SCHEMA_VERSION + "' attribute, for messages of any "
+                    + "schema type. The schema itself can be looked up in the Pulsar schema registry by topic and version.");
+
+    public static final PropertyDescriptor SCHEMA_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("SCHEMA_ATTRIBUTE")
+            .displayName("Schema Attribute")
+            .description("Specifies how the Pulsar schema of the records is recorded on each FlowFile. Messages are only "
+                    + "placed into the same FlowFile if this attribute is the same for both. Writing the schema version "
+                    + "keeps large schemas out of the FlowFile attributes.")
+            .required(true)
+            .allowableValues(SCHEMA_ATTRIBUTE_TEXT, SCHEMA_ATTRIBUTE_VERSION)
+            .defaultValue(SCHEMA_ATTRIBUTE_TEXT.getValue())
+            .build();
+
     public static final PropertyDescriptor MAX_WAIT_TIME = new PropertyDescriptor.Builder()
             .name("Max Wait Time")
             .description("The maximum amount of time allowed for a Pulsar consumer to poll a subscription for data "
@@ -109,6 +152,20 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
             .description("FlowFiles for which the content cannot be parsed.")
             .build();
 
+    private static final int MAX_CACHED_SCHEMAS = 100;
+
+    /*
+     * The record schemas read from messages that carry a Pulsar schema version, keyed by topic and schema version.
+     * Every message with the same schema version has the same structure, so its schema only needs to be read once.
+     */
+    private final Map<String, RecordSchema> recordSchemas = new ConcurrentHashMap<>();
+
+    /*
+     * The text of each Pulsar AVRO schema, keyed the same way. Every message of a schema version shares one String,
+     * so building its attributes does not copy the schema, and comparing them short-circuits on identity.
+     */
+    private final Map<String, String> schemaTexts = new ConcurrentHashMap<>();
+
     private static final List<PropertyDescriptor> PROPERTIES;
     private static final Set<Relationship> RELATIONSHIPS;
 
@@ -116,6 +173,8 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(RECORD_READER);
         properties.add(RECORD_WRITER);
+        properties.add(USE_PULSAR_SCHEMA);
+        properties.add(SCHEMA_ATTRIBUTE);
         properties.add(MAX_WAIT_TIME);
         properties.addAll(AbstractPulsarConsumerProcessor.PROPERTIES);
         PROPERTIES = Collections.unmodifiableList(properties);
@@ -131,11 +190,35 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
         return RELATIONSHIPS;
     }
 
+    @Override
+    protected Schema<GenericRecord> getConsumerSchema() {
+        return Schema.AUTO_CONSUME();
+    }
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return PROPERTIES;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+
+        if (!validationContext.getProperty(USE_PULSAR_SCHEMA).asBoolean() && !validationContext.getProperty(RECORD_READER).isSet()) {
+            results.add(new ValidationResult.Builder().subject(RECORD_READER.getDisplayName()).valid(false).explanation(
+                    "A Record Reader is required unless the records are read using the Pulsar schema.").build());
+        }
+
+        return results;
+    }
+
+    @OnStopped
+    public void clearSchemaCache() {
+        // The Record Reader may be reconfigured while we are stopped, which could change the schemas that it reads
+        recordSchemas.clear();
+        schemaTexts.clear();
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
         final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER)
@@ -144,14 +227,12 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
         final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER)
                 .asControllerService(RecordSetWriterFactory.class);
 
-        final int maxMessages = context.getProperty(CONSUMER_BATCH_SIZE).isSet() ? context.getProperty(CONSUMER_BATCH_SIZE)
-                .evaluateAttributeExpressions().asInteger() : Integer.MAX_VALUE;
-
         final byte[] demarcator = context.getProperty(MESSAGE_DEMARCATOR).isSet() ? context.getProperty(MESSAGE_DEMARCATOR)
                 .evaluateAttributeExpressions().getValue().getBytes() : RECORD_SEPARATOR.getBytes();
 
+        Consumer<GenericRecord> consumer = null;
         try {
-            Consumer<GenericRecord> consumer = getConsumer(context, getConsumerId(context, session.get()));
+            consumer = borrowConsumer(context, session);
 
             if (consumer == null) { /* If we aren't connected to Pulsar, then just yield */
                 context.yield();
@@ -162,40 +243,30 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
                 consumeAsync(consumer, context, session);
                 handleAsync(context, session, consumer, readerFactory, writerFactory, demarcator);
             } else {
-                consumeMessages(context, session, consumer, getMessages(consumer, maxMessages), readerFactory, writerFactory, demarcator, false);
+                final List<Message<GenericRecord>> messages = receiveMessages(consumer);
+
+                if (messages.isEmpty()) {
+                    context.yield();
+                    return;
+                }
+
+                consumeMessages(context, session, consumer, messages, readerFactory, writerFactory, demarcator);
             }
         } catch (PulsarClientException e) {
             getLogger().error("Unable to consume from Pulsar Topic ", e);
             context.yield();
             throw new ProcessException(e);
+        } finally {
+            releaseConsumer(consumer);
         }
     }
 
     /**
-     * Retrieve a batch of up to maxMessages for processing.
-     *
-     * @param consumer    - The Pulsar consumer.
-     * @param maxMessages - The maximum number of messages to consume from Pulsar.
-     * @return A List of Messages
-     * @throws PulsarClientException in the event we cannot communicate with the Pulsar broker.
-     */
-    private List<Message<GenericRecord>> getMessages(final Consumer<GenericRecord> consumer, int maxMessages) throws PulsarClientException {
-        List<Message<GenericRecord>> messages = new LinkedList<Message<GenericRecord>>();
-        Message<GenericRecord> msg = null;
-        AtomicInteger msgCount = new AtomicInteger(0);
-
-        while (msgCount.get() < maxMessages && (msg = consumer.receive(0, TimeUnit.SECONDS)) != null) {
-            messages.add(msg);
-            msgCount.incrementAndGet();
-        }
-
-        return messages;
-    }
-
-    /**
-     * Perform the actual processing of the messages, by parsing the messages and writing them out to a FlowFile.
+     * Perform the actual processing of the messages, by parsing the messages and writing them out to FlowFiles.
+     * Each message is routed to the bundle for its mapped attributes and schema version, so that the number of
+     * FlowFiles follows the number of distinct bundles in the batch rather than how often they are interleaved.
      * All of the messages passed in shall be routed to either SUCCESS or PARSE_FAILURE, allowing us to acknowledge
-     * the receipt of the messages to Pulsar, so they are not re-sent.
+     * the receipt of the messages to Pulsar once the session has been committed, so they are not re-sent.
      *
      * @param context       - The current ProcessContext
      * @param session       - The current ProcessSession.
@@ -204,124 +275,142 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
      * @param readerFactory - The factory used to read the messages.
      * @param writerFactory - The factory used to write the messages.
      * @param demarcator    - The value used to identify unique records in the list
-     * @param async         - Whether or not to consume the messages asynchronously.
      * @throws PulsarClientException if there is an issue communicating with Apache Pulsar.
      */
     private void consumeMessages(ProcessContext context, ProcessSession session,
                                  final Consumer<GenericRecord> consumer, final List<Message<GenericRecord>> messages,
                                  final RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory,
-                                 final byte[] demarcator, final boolean async) throws PulsarClientException {
+                                 final byte[] demarcator) throws PulsarClientException {
 
         if (CollectionUtils.isEmpty(messages)) {
             return;
         }
 
-        final List<Message<GenericRecord>> groupedMessages = messages
-                .stream()
-                .collect(Collectors.groupingBy(Message::getTopicName))
-                .values()
-                .stream()
-                .flatMap(List::stream)
-                .collect(Collectors.toList());
-
         final BlockingQueue<Message<GenericRecord>> parseFailures =
                 new LinkedBlockingQueue<Message<GenericRecord>>();
 
-        RecordSchema schema = null;
-        FlowFile flowFile = null;
-        OutputStream rawOut = null;
-        RecordSetWriter writer = null;
-
-        Map<String, String> lastAttributes = null;
-        Message<GenericRecord> lastMessage = null;
-        Map<String, String> currentAttributes = null;
-
-        // Cumulative acks are NOT permitted on Shared subscriptions
-        final boolean shared = isSharedSubscription(context);
-
-        try {
-            for (Message<GenericRecord> msg : groupedMessages) {
-                currentAttributes = getMappedFlowFileAttributes(context, msg);
-                // Introduce an attribute to distinguish between current and previously captured attributes,
-                // particularly when the message originates from a different topic.
-                currentAttributes.put("topicName", msg.getTopicName());
-                // add the schema to the attributes in-case the schema is updated on the topic
-                if (msg.getReaderSchema().isPresent() && msg.getReaderSchema().get().getSchemaInfo().getType() == SchemaType.AVRO) {
-                    currentAttributes.put("avro.schema", new String(msg.getReaderSchema().get().getSchemaInfo().getSchema()));
+        // The bundles that are open for this batch, in the order in which they were started
+        final Map<BundleInformation, RecordBundle> bundles = new LinkedHashMap<>();
+
+        final boolean usePulsarSchema = context.getProperty(USE_PULSAR_SCHEMA).asBoolean();
+        final boolean schemaVersionAttribute = SCHEMA_ATTRIBUTE_VERSION.getValue().equals(context.getProperty(SCHEMA_ATTRIBUTE).getValue());
+
+        for (Message<GenericRecord> msg : messages) {
+            final Map<String, String> attributes = getMappedFlowFileAttributes(context, msg);
+            // Introduce an attribute to distinguish between current and previously captured attributes,
+            // particularly when the message originates from a different topic.
+            attributes.put("topicName", msg.getTopicName());
+            // add the schema to the attributes in-case the schema is updated on the topic
+            final String schemaKey = getSchemaCacheKey(msg);
+            if (schemaVersionAttribute) {
+                if (schemaKey != null) {
+                    attributes.put(SCHEMA_VERSION, getSchemaVersion(msg.getSchemaVersion()));
                 }
+            } else if (msg.getReaderSchema().isPresent() && msg.getReaderSchema().get().getSchemaInfo().getType() == SchemaType.AVRO) {
+                attributes.put(AVRO_SCHEMA, getSchemaText(msg, schemaKey));
+            }
 
-                // if the current message's mapped attribute values differ from the previous set's,
-                // write out the active record set and clear various references so that we'll start a new one
-                if (lastAttributes != null && !lastAttributes.equals(currentAttributes)) {
-                    WriteResult result = writer.finishRecordSet();
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(rawOut);
+            // All of the records in a bundle are written with the same schema, so each schema version gets its own bundle
+            final BundleInformation bundleInfo = new BundleInformation(attributes, schemaKey);
+            RecordBundle bundle = bundles.get(bundleInfo);
 
-                    if (result != WriteResult.EMPTY) {
-                        flowFile = session.putAllAttributes(flowFile, result.getAttributes());
-                        flowFile = session.putAttribute(flowFile, MSG_COUNT, result.getRecordCount() + "");
-                        session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
-                        session.transfer(flowFile, REL_SUCCESS);
-                    } else {
-                        session.rollback();
-                    }
+            final SchemaInfo pulsarSchema = usePulsarSchema ? getPulsarSchema(msg) : null;
+            RecordReader reader = null;
 
-                    handleFailures(session, parseFailures, demarcator);
-                    parseFailures.clear();
+            // if there's no record set actively being written for these attributes, begin one
+            if (bundle == null) {
+                FlowFile flowFile = session.create();
+                flowFile = session.putAllAttributes(flowFile, attributes);
 
-                    if (!shared) {
-                        acknowledgeCumulative(consumer, lastMessage, async);
-                    }
+                RecordSchema schema = schemaKey == null ? null : recordSchemas.get(schemaKey);
 
-                    lastAttributes = null;
-                    lastMessage = null;
+                if (schema == null && pulsarSchema != null) {
+                    schema = getSchema(pulsarSchema, schemaKey);
+                } else if (schema == null) {
+                    // Read the schema from the first message, and keep its reader to write that message's records
+                    reader = createRecordReader(flowFile, readerFactory, msg);
+                    schema = getSchema(reader, schemaKey);
                 }
 
-                // if there's no record set actively being written, begin one
-                byte[] data = msg.getData();
-                if (lastMessage == null) {
-                    flowFile = session.create();
-                    flowFile = session.putAllAttributes(flowFile, currentAttributes);
-                    schema = getSchema(flowFile, readerFactory, data);
-                    rawOut = session.write(flowFile);
-                    writer = getRecordWriter(writerFactory, schema, rawOut, flowFile);
-
-                    if (schema == null || writer == null) {
-                        parseFailures.add(msg);
-                        session.remove(flowFile);
-                        IOUtils.closeQuietly(rawOut);
-                        getLogger().error("Unable to create a record writer to consume from the Pulsar topic");
-                        continue;
-                    }
+                final OutputStream rawOut = session.write(flowFile);
+                final RecordSetWriter writer = getRecordWriter(writerFactory, schema, rawOut, flowFile);
 
-                    writer.beginRecordSet();
+                if (schema == null || writer == null) {
+                    parseFailures.add(msg);
+                    IOUtils.closeQuietly(reader);
+                    IOUtils.closeQuietly(rawOut);
+                    session.remove(flowFile);
+                    getLogger().error("Unable to create a record writer to consume from the Pulsar topic");
+                    continue;
                 }
 
-                lastAttributes = currentAttributes;
-                lastMessage = msg;
-
-                if (shared) {
-                    acknowledge(consumer, msg, async);
+                try {
+                    writer.beginRecordSet();
+                } catch (IOException e) {
+                    parseFailures.add(msg);
+                    IOUtils.closeQuietly(reader);
+                    IOUtils.closeQuietly(writer);
+                    IOUtils.closeQuietly(rawOut);
+                    session.remove(flowFile);
+                    getLogger().error("Unable to begin a record set to consume from the Pulsar topic", e);
+                    continue;
                 }
 
-                // write each of the records in the current message to the active record set. These will each
-                // have the same mapped flowfile attribute values, which means that it's ok that they are all placed
-                // in the same output flowfile.
+                bundle = new RecordBundle(flowFile, rawOut, writer, schema);
+                bundles.put(bundleInfo, bundle);
+            }
 
-                final InputStream in = new ByteArrayInputStream(data);
-                try {
-                    RecordReader r = readerFactory.createRecordReader(flowFile, in, getLogger());
-                    for (Record record = r.nextRecord(); record != null; record = r.nextRecord()) {
-                        writer.write(record);
+            bundle.messages.add(msg);
+
+            // write each of the records in the current message to its bundle's record set. These will each
+            // have the same mapped flowfile attribute values, which means that it's ok that they are all placed
+            // in the same output flowfile.
+
+            try {
+                if (pulsarSchema != null) {
+                    // Pulsar has already decoded the message, so there is nothing left to parse
+                    bundle.writer.write(PulsarSchemaUtils.toRecord(msg.getValue(), bundle.schema));
+                } else {
+                    if (reader == null) {
+                        if (readerFactory == null) {
+                            throw new MalformedRecordException("The message has no Pulsar schema and no Record Reader is configured");
+                        }
+                        reader = readerFactory.createRecordReader(bundle.flowFile, new ByteArrayInputStream(msg.getData()), getLogger());
+                    }
+                    for (Record record = reader.nextRecord(); record != null; record = reader.nextRecord()) {
+                        bundle.writer.write(record);
                     }
-                } catch (MalformedRecordException | IOException | SchemaNotFoundException e) {
-                    parseFailures.add(msg);
                 }
+            } catch (MalformedRecordException | IOException | SchemaNotFoundException
+                    | SchemaSerializationException | IllegalArgumentException e) {
+                parseFailures.add(msg);
+            } finally {
+                IOUtils.closeQuietly(reader);
             }
+        }
 
-            WriteResult result = writer.finishRecordSet();
-            IOUtils.closeQuietly(writer);
-            IOUtils.closeQuietly(rawOut);
+        for (RecordBundle bundle : bundles.values()) {
+            closeBundle(session, consumer, bundle, parseFailures);
+        }
+
+        handleFailures(session, parseFailures, demarcator);
+
+        // Only acknowledge the messages once the FlowFiles holding them have been committed.
+        commitAndAcknowledge(session, consumer, messages);
+    }
+
+    /**
+     * Finishes the bundle's record set and transfers its FlowFile to SUCCESS. If the record set cannot be
+     * finished, then the bundle's messages are routed to PARSE_FAILURE instead.
+     */
+    private void closeBundle(ProcessSession session, final Consumer<GenericRecord> consumer, RecordBundle bundle,
+                             BlockingQueue<Message<GenericRecord>> parseFailures) {
+        FlowFile flowFile = bundle.flowFile;
+
+        try {
+            final WriteResult result = bundle.writer.finishRecordSet();
+            IOUtils.closeQuietly(bundle.writer);
+            IOUtils.closeQuietly(bundle.rawOut);
 
             if (result != WriteResult.EMPTY) {
                 flowFile = session.putAllAttributes(flowFile, result.getAttributes());
@@ -329,43 +418,20 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
                 session.getProvenanceReporter().receive(flowFile, getPulsarClientService().getPulsarBrokerRootURL() + "/" + consumer.getTopic());
                 session.transfer(flowFile, REL_SUCCESS);
             } else {
-                // We were able to parse the records, but unable to write them to the FlowFile
-                session.rollback();
+                // None of the bundle's records could be written, and any that failed to parse are already parse failures
+                session.remove(flowFile);
             }
         } catch (IOException e) {
             getLogger().error("Unable to consume from Pulsar topic ", e);
-        }
-
-        handleFailures(session, parseFailures, demarcator);
-
-        if (!shared) {
-            acknowledgeCumulative(consumer, messages.get(messages.size() - 1), async);
-        }
-    }
-
-    private void acknowledge(final Consumer<GenericRecord> consumer, final Message<GenericRecord> msg, final boolean async) throws PulsarClientException {
-        if (async) {
-            getAckService().submit(new Callable<Object>() {
-                @Override
-                public Object call() throws Exception {
-                    return consumer.acknowledgeAsync(msg).get();
-                }
-            });
-        } else {
-            consumer.acknowledge(msg);
-        }
-    }
+            IOUtils.closeQuietly(bundle.writer);
+            IOUtils.closeQuietly(bundle.rawOut);
+            session.remove(flowFile);
 
-    private void acknowledgeCumulative(final Consumer<GenericRecord> consumer, final Message<GenericRecord> msg, final boolean async) throws PulsarClientException {
-        if (async) {
-            getAckService().submit(new Callable<Object>() {
-                @Override
-                public Object call() throws Exception {
-                    return consumer.acknowledgeCumulativeAsync(msg).get();
+            for (Message<GenericRecord> msg : bundle.messages) {
+                if (!parseFailures.contains(msg)) {
+                    parseFailures.add(msg);
                 }
-            });
-        } else {
-            consumer.acknowledgeCumulative(msg);
+            }
         }
     }
 
@@ -385,12 +451,14 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
             for (int idx = 0; failureIterator.hasNext(); idx++) {
                 Message<GenericRecord> msg = failureIterator.next();
 
-                if (msg != null && msg.getData() != null) {
+                final byte[] payload = msg == null ? null : msg.getData();
+
+                if (payload != null && payload.length > 0) {
                     if (idx > 0) {
                         rawOut.write(demarcator);
                     }
 
-                    rawOut.write(msg.getData());
+                    rawOut.write(payload);
                 }
             }
             IOUtils.closeQuietly(rawOut);
@@ -424,7 +492,7 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
                 if (done != null) {
                     List<Message<GenericRecord>> messages = done.get();
                     if (CollectionUtils.isNotEmpty(messages)) {
-                        consumeMessages(context, session, consumer, messages, readerFactory, writerFactory, demarcator, true);
+                        consumeMessages(context, session, consumer, messages, readerFactory, writerFactory, demarcator);
                     }
                 }
             } while (done != null);
@@ -434,23 +502,122 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
         }
     }
 
-    private RecordSchema getSchema(FlowFile flowFile, RecordReaderFactory readerFactory, byte[] msgValue) {
-        RecordSchema schema = null;
-        InputStream in = null;
+    private RecordReader createRecordReader(FlowFile flowFile, RecordReaderFactory readerFactory, Message<GenericRecord> msg) {
+        if (readerFactory == null) {
+            getLogger().error("Unable to determine the schema, the message has no Pulsar schema and no Record Reader is configured");
+            return null;
+        }
 
         try {
-            in = new ByteArrayInputStream(msgValue);
-            schema = readerFactory.createRecordReader(flowFile, in, getLogger()).getSchema();
+            return readerFactory.createRecordReader(flowFile, new ByteArrayInputStream(msg.getData()), getLogger());
         } catch (MalformedRecordException | IOException | SchemaNotFoundException e) {
             getLogger().error("Unable to determine the schema", e);
             return null;
-        } finally {
-            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns the schema of the given reader, caching it under the schema key if there is one.
+     */
+    private RecordSchema getSchema(RecordReader reader, String schemaKey) {
+        if (reader == null) {
+            return null;
+        }
+
+        final RecordSchema schema;
+        try {
+            schema = reader.getSchema();
+        } catch (MalformedRecordException e) {
+            getLogger().error("Unable to determine the schema", e);
+            return null;
         }
 
+        cacheSchema(schemaKey, schema);
         return schema;
     }
 
+    /**
+     * Returns the record schema derived from the given Pulsar schema, caching it under the schema key if there is one.
+     */
+    private RecordSchema getSchema(SchemaInfo pulsarSchema, String schemaKey) {
+        final RecordSchema schema;
+        try {
+            schema = PulsarSchemaUtils.toRecordSchema(pulsarSchema);
+        } catch (IllegalArgumentException e) {
+            getLogger().error("Unable to convert the Pulsar schema", e);
+            return null;
+        }
+
+        cacheSchema(schemaKey, schema);
+        return schema;
+    }
+
+    private void cacheSchema(String schemaKey, RecordSchema schema) {
+        if (schemaKey == null || schema == null) {
+            return;
+        }
+
+        if (recordSchemas.size() >= MAX_CACHED_SCHEMAS) {
+            recordSchemas.clear();
+        }
+        recordSchemas.put(schemaKey, schema);
+    }
+
+    /**
+     * Returns the text of the message's AVRO schema, which is shared by every message with the same schema key.
+     */
+    private String getSchemaText(Message<GenericRecord> msg, String schemaKey) {
+        if (schemaKey == null) {
+            return new String(msg.getReaderSchema().get().getSchemaInfo().getSchema(), StandardCharsets.UTF_8);
+        }
+
+        String schemaText = schemaTexts.get(schemaKey);
+        if (schemaText == null) {
+            if (schemaTexts.size() >= MAX_CACHED_SCHEMAS) {
+                schemaTexts.clear();
+            }
+            schemaText = new String(msg.getReaderSchema().get().getSchemaInfo().getSchema(), StandardCharsets.UTF_8);
+            schemaTexts.put(schemaKey, schemaText);
+        }
+        return schemaText;
+    }
+
+    /**
+     * The broker assigns each schema of a topic a sequential version, which it encodes as an 8 byte long.
+     */
+    private static String getSchemaVersion(byte[] schemaVersion) {
+        if (schemaVersion.length == Long.BYTES) {
+            return Long.toString(ByteBuffer.wrap(schemaVersion).getLong());
+        }
+        return Base64.getEncoder().encodeToString(schemaVersion);
+    }
+
+    /**
+     * @return the Pulsar schema that the message is decoded with, or null if it is not decoded into a GenericRecord
+     * whose schema can be converted into a record schema.
+     */
+    private SchemaInfo getPulsarSchema(Message<GenericRecord> msg) {
+        if (!msg.getReaderSchema().isPresent()) {
+            return null;
+        }
+        final SchemaInfo schemaInfo = msg.getReaderSchema().get().getSchemaInfo();
+        return PulsarSchemaUtils.isRecordSchema(schemaInfo) ? schemaInfo : null;
+    }
+
+    /**
+     * Messages published without a Pulsar schema have no schema version, so their records may differ in structure
+     * from one message to the next. Their schema is read from the first message of each FlowFile instead.
+     *
+     * @return the key to cache the message's record schema under, or null if it must not be cached.
+     */
+    private String getSchemaCacheKey(Message<GenericRecord> msg) {
+        final byte[] schemaVersion = msg.getSchemaVersion();
+        if (schemaVersion == null || schemaVersion.length == 0) {
+            return null;
+        }
+        return msg.getTopicName() + "/" + Base64.getEncoder().encodeToString(schemaVersion);
+    }
+
     private RecordSetWriter getRecordWriter(RecordSetWriterFactory writerFactory,
                                             RecordSchema srcSchema, OutputStream out, FlowFile flowFile) {
         try {
@@ -460,4 +627,52 @@ public class ConsumePulsarRecord extends AbstractPulsarConsumerProcessor<Generic
             return null;
         }
     }
+
+    /**
+     * Identifies the bundle that a message belongs to.
+     */
+    private static final class BundleInformation {
+        private final Map<String, String> attributes;
+        private final String schemaKey;
+
+        private BundleInformation(final Map<String, String> attributes, final String schemaKey) {
+            this.attributes = attributes;
+            this.schemaKey = schemaKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * attributes.hashCode() + Objects.hashCode(schemaKey);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof BundleInformation)) {
+                return false;
+            }
+            final BundleInformation other = (BundleInformation) obj;
+            return attributes.equals(other.attributes) && Objects.equals(schemaKey, other.schemaKey);
+        }
+    }
+
+    /**
+     * A FlowFile that is being written, along with the messages whose records it holds.
+     */
+    private static final class RecordBundle {
+        private final FlowFile flowFile;
+        private final OutputStream rawOut;
+        private final RecordSetWriter writer;
+        private final RecordSchema schema;
+        private final List<Message<GenericRecord>> messages = new ArrayList<>();
+
+        private RecordBundle(final FlowFile flowFile, final OutputStream rawOut, final RecordSetWriter writer, final RecordSchema schema) {
+            this.flowFile = flowFile;
+            this.rawOut = rawOut;
+            this.writer = writer;
+            this.schema = schema;
+        }
+    }
 }
@@ -17,11 +17,7 @@
 package org.apache.nifi.processors.pulsar.pubsub;
 
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.List;
 
-import org.apache.commons.compress.utils.IOUtils;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
@@ -29,13 +25,10 @@ import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
-import org.apache.nifi.processors.pulsar.utils.PublishPulsarUtils;
-import org.apache.nifi.processors.pulsar.utils.PublisherLease;
 
 @SeeAlso({ConsumePulsar.class, ConsumePulsarRecord.class, PublishPulsarRecord.class})
 @Tags({"Apache", "Pulsar", "Put", "Send", "Message", "PubSub"})
@@ -52,45 +45,22 @@ public class PublishPulsar extends AbstractPulsarProducerProcessor<byte[]> {
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
-        final List<FlowFile> flowFiles = PublishPulsarUtils.pollFlowFiles(session);
+        final boolean asyncFlag = isAsync(context);
 
-        if (flowFiles.isEmpty()) {
+        final boolean published = publishByTopic(context, session, (lease, flowFile) -> {
+            try (final InputStream in = session.read(flowFile)) {
+                lease.publish(flowFile, in,
+                        getMessageKey(context, flowFile),
+                        getMappedMessageProperties(context, flowFile),
+                        getDemarcatorBytes(context, flowFile), getSegmentSize(context), asyncFlag);
+            }
+            return lease.complete();
+        });
+
+        if (!published) {
             // Because we TriggerWhenEmpty, the framework can give us many more threads that we actually need,
             // so yield when there is no work to do.
             context.yield();
-            return;
-        }
-
-        final Iterator<FlowFile> itr = flowFiles.iterator();
-
-        while (itr.hasNext()) {
-            final FlowFile flowFile = itr.next();
-            final String topicName = context.getProperty(TOPIC).evaluateAttributeExpressions(flowFile).getValue();
-            final boolean asyncFlag = (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean());
-
-            PublisherLease lease = getPublisherPool().obtainPublisher(topicName);
-
-            if (lease == null) {
-                getLogger().error("Unable to publish to topic {}", new Object[] {topicName});
-                session.transfer(flowFile, REL_FAILURE);
-            } else {
-
-                InputStream in = session.read(flowFile);
-                try {
-
-                    lease.publish(flowFile, in,
-                            getMessageKey(context, flowFile),
-                            getMappedMessageProperties(context, flowFile),
-                            getDemarcatorBytes(context, flowFile), asyncFlag);
-
-                    IOUtils.closeQuietly(in);
-                    session.transfer(flowFile, REL_SUCCESS);
-                } catch (Exception ex) {
-                    getLogger().error("Unable to process session due to ", ex);
-                    IOUtils.closeQuietly(in);
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-            }
         }
     }
 }
@@ -16,7 +16,9 @@
  */
 package org.apache.nifi.processors.pulsar.pubsub;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
@@ -25,15 +27,20 @@ import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
-import org.apache.nifi.processors.pulsar.utils.PublishPulsarUtils;
+import org.apache.nifi.processors.pulsar.utils.FlowFilePoller;
 import org.apache.nifi.processors.pulsar.utils.PublisherLease;
+import org.apache.nifi.processors.pulsar.utils.PulsarRecordSchema;
+import org.apache.nifi.processors.pulsar.utils.PulsarSchemaUtils;
 import org.apache.nifi.schema.access.SchemaNotFoundException;
 import org.apache.nifi.serialization.MalformedRecordException;
 import org.apache.nifi.serialization.RecordReader;
@@ -81,6 +88,53 @@ public class PublishPulsarRecord extends AbstractPulsarProducerProcessor<byte[]>
             .required(false)
             .build();
 
+    public static final PropertyDescriptor USE_PULSAR_SCHEMA = new PropertyDescriptor.Builder()
+            .name("USE_PULSAR_SCHEMA")
+            .displayName("Use Pulsar Schema")
+            .description("If true, the schema of the incoming records is converted into a Pulsar AVRO schema, and each record "
+                    + "is sent as a Pulsar GenericRecord on a producer that is typed with that schema. The schema is registered "
+                    + "with the broker, so consumers can decode the messages without a Record Reader, and the Record Writer is "
+                    + "only used to serialize message keys that are records. If false, each record is serialized by the Record "
+                    + "Writer and sent as raw bytes.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    static final AllowableValue PASS_THROUGH_NONE = new AllowableValue("None", "None",
+            "Every record is read by the Record Reader and serialized by the Record Writer.");
+    static final AllowableValue PASS_THROUGH_NEWLINE_DELIMITED = new AllowableValue("Newline-Delimited", "Newline-Delimited",
+            "The content is split on newlines, and each non-empty line is sent as a message without being read or re-written. "
+            + "Both LF and CRLF line endings are accepted, and neither is included in the message.");
+
+    public static final PropertyDescriptor RECORD_PASS_THROUGH = new PropertyDescriptor.Builder()
+            .name("RECORD_PASS_THROUGH")
+            .displayName("Record Pass-Through")
+            .description("Allows records to be published without being decoded and re-encoded, when the incoming FlowFiles "
+                    + "already contain one record per line in exactly the form that the Record Writer would produce, e.g. "
+                    + "JSON lines that are published as JSON lines. Records are not validated in this mode, and it cannot be "
+                    + "combined with a Message Key Field or with a Pulsar schema.")
+            .required(true)
+            .allowableValues(PASS_THROUGH_NONE, PASS_THROUGH_NEWLINE_DELIMITED)
+            .defaultValue(PASS_THROUGH_NONE.getValue())
+            .build();
+
+    private static final byte[] NEWLINE = new byte[] {'\n'};
+
+    /*
+     * Pulsar schemas are cached per NiFi record schema, so that the conversion is only done once for all of
+     * the FlowFiles that share a schema. Once the cache is full, the least recently used schema is evicted.
+     */
+    private static final int MAX_CACHED_SCHEMAS = 100;
+
+    private final Map<RecordSchema, PulsarRecordSchema> pulsarSchemas = Collections.synchronizedMap(
+            new LinkedHashMap<RecordSchema, PulsarRecordSchema>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<RecordSchema, PulsarRecordSchema> eldest) {
+                    return size() > MAX_CACHED_SCHEMAS;
+                }
+            });
+
     private static final List<PropertyDescriptor> PROPERTIES;
 
     static {
@@ -88,6 +142,8 @@ public class PublishPulsarRecord extends AbstractPulsarProducerProcessor<byte[]>
         properties.add(RECORD_READER);
         properties.add(RECORD_WRITER);
         properties.add(MESSAGE_KEY_FIELD);
+        properties.add(USE_PULSAR_SCHEMA);
+        properties.add(RECORD_PASS_THROUGH);
         properties.addAll(AbstractPulsarProducerProcessor.PROPERTIES);
         PROPERTIES = Collections.unmodifiableList(properties);
     }
@@ -97,71 +153,181 @@ public class PublishPulsarRecord extends AbstractPulsarProducerProcessor<byte[]>
         return PROPERTIES;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        final Set<ValidationResult> results = new HashSet<>();
+
+        if (PASS_THROUGH_NEWLINE_DELIMITED.getValue().equals(validationContext.getProperty(RECORD_PASS_THROUGH).getValue())) {
+            if (validationContext.getProperty(MESSAGE_KEY_FIELD).isSet()) {
+                results.add(new ValidationResult.Builder().subject(RECORD_PASS_THROUGH.getDisplayName()).valid(false).explanation(
+                        "Records are not read when passed through, so a 'Message Key Field' cannot be used.").build());
+            }
+
+            if (validationContext.getProperty(USE_PULSAR_SCHEMA).asBoolean()) {
+                results.add(new ValidationResult.Builder().subject(RECORD_PASS_THROUGH.getDisplayName()).valid(false).explanation(
+                        "Records are not read when passed through, so they cannot be published with a Pulsar schema.").build());
+            }
+        }
+
+        return results;
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
-        final List<FlowFile> flowFiles = PublishPulsarUtils.pollFlowFiles(session);
+        final boolean asyncFlag = isAsync(context);
+
+        final boolean published = context.getProperty(USE_PULSAR_SCHEMA).asBoolean()
+                ? publishWithPulsarSchema(context, session, asyncFlag)
+                : publishRecords(context, session, asyncFlag);
 
-        if (flowFiles.isEmpty()) {
+        if (!published) {
             // Because we TriggerWhenEmpty, the framework can give us many more threads that we actually need,
             // so yield when there is no work to do.
             context.yield();
-            return;
         }
+    }
 
-        final Iterator<FlowFile> itr = flowFiles.iterator();
-
-        while (itr.hasNext()) {
-            final FlowFile flowFile = itr.next();
-            final String topicName = context.getProperty(TOPIC).evaluateAttributeExpressions(flowFile).getValue();
-            final boolean asyncFlag = (context.getProperty(ASYNC_ENABLED).isSet() && context.getProperty(ASYNC_ENABLED).asBoolean());
+    private boolean publishRecords(final ProcessContext context, final ProcessSession session, final boolean asyncFlag) {
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER)
+                .asControllerService(RecordReaderFactory.class);
 
-            PublisherLease lease = getPublisherPool().obtainPublisher(topicName);
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER)
+                .asControllerService(RecordSetWriterFactory.class);
 
-            if (lease == null) {
-                getLogger().error("Unable to publish to topic {}", new Object[] {topicName});
-                session.transfer(flowFile, REL_FAILURE);
-            } else {
-                final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER)
-                        .asControllerService(RecordReaderFactory.class);
+        final boolean passThrough = PASS_THROUGH_NEWLINE_DELIMITED.getValue().equals(context.getProperty(RECORD_PASS_THROUGH).getValue());
 
-                final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER)
-                        .asControllerService(RecordSetWriterFactory.class);
+        return publishByTopic(context, session, (lease, flowFile) -> {
+            final String messageKeyField = context.getProperty(MESSAGE_KEY_FIELD)
+                    .evaluateAttributeExpressions(flowFile).getValue();
 
-                final String messageKeyField = context.getProperty(MESSAGE_KEY_FIELD)
-                        .evaluateAttributeExpressions(flowFile).getValue();
+            session.read(flowFile, in -> {
+                if (passThrough) {
+                    lease.publishDelimitedRecords(in, getMappedMessageProperties(context, flowFile), NEWLINE, asyncFlag);
+                    return;
+                }
 
                 try {
-                    session.read(flowFile, in -> {
-                        try {
-                            final RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger());
-                            final RecordSet recordSet = reader.createRecordSet();
-
-                            final RecordSchema schema = writerFactory.getSchema(flowFile.getAttributes(), recordSet.getSchema());
-                            lease.publish(flowFile, recordSet, writerFactory, schema, messageKeyField,
-                                    getMappedMessageProperties(context, flowFile), asyncFlag);
-
-                        } catch (final SchemaNotFoundException | MalformedRecordException e) {
-                            throw new ProcessException(e);
-                        }
-                    });
-
-                    long messagesSent = lease.complete();
-                    session.putAttribute(flowFile, MSG_COUNT, Long.toString(messagesSent));
-                    session.putAttribute(flowFile, TOPIC_NAME, topicName);
-                    session.getProvenanceReporter().send(flowFile,
-                            getPulsarClientService().getPulsarBrokerRootURL(),
-                            String.format("Sent %d records", messagesSent));
-
-                    session.transfer(flowFile, REL_SUCCESS);
-
-                } catch (final Exception ex) {
-                    getLogger().error("Unable to process session due to ", ex);
-                    session.transfer(flowFile, REL_FAILURE);
+                    final RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger());
+                    final RecordSet recordSet = reader.createRecordSet();
+
+                    final RecordSchema schema = writerFactory.getSchema(flowFile.getAttributes(), recordSet.getSchema());
+                    lease.publish(flowFile, recordSet, writerFactory, schema, messageKeyField,
+                            getMappedMessageProperties(context, flowFile), asyncFlag);
+
+                } catch (final SchemaNotFoundException | MalformedRecordException e) {
+                    throw new ProcessException(e);
                 }
+            });
+
+            return lease.complete();
+        });
+    }
+
+    @Override
+    protected void transferSuccess(final ProcessSession session, final FlowFile flowFile, final String topicName,
+                                   final long messagesSent) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(MSG_COUNT, Long.toString(messagesSent));
+        attributes.put(TOPIC_NAME, topicName);
+
+        final FlowFile updated = session.putAllAttributes(flowFile, attributes);
+        session.getProvenanceReporter().send(updated,
+                getPulsarClientService().getPulsarBrokerRootURL(),
+                String.format("Sent %d records", messagesSent));
+
+        session.transfer(updated, REL_SUCCESS);
+    }
+
+    /**
+     * The producer depends on the schema of each FlowFile's records, so these FlowFiles are published one at a time.
+     */
+    private boolean publishWithPulsarSchema(final ProcessContext context, final ProcessSession session, final boolean asyncFlag) {
+        final FlowFilePoller poller = createPoller(context, session);
+
+        List<FlowFile> flowFiles;
+        while (!(flowFiles = poller.poll()).isEmpty()) {
+            for (FlowFile flowFile : flowFiles) {
+                final String topicName = context.getProperty(TOPIC).evaluateAttributeExpressions(flowFile).getValue();
+                publishWithPulsarSchema(context, session, flowFile, topicName, asyncFlag);
             }
         }
 
+        return poller.getPolledFlowFiles() > 0;
+    }
+
+    /**
+     * Publishes the records of the FlowFile as Pulsar GenericRecords. The producer can only be obtained once the
+     * record schema is known, i.e. after the Record Reader has been created, so the lease is obtained while the
+     * content is being read.
+     */
+    private void publishWithPulsarSchema(final ProcessContext context, final ProcessSession session, final FlowFile flowFile,
+                                         final String topicName, final boolean asyncFlag) {
+
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER)
+                .asControllerService(RecordReaderFactory.class);
+
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER)
+                .asControllerService(RecordSetWriterFactory.class);
+
+        final String messageKeyField = context.getProperty(MESSAGE_KEY_FIELD)
+                .evaluateAttributeExpressions(flowFile).getValue();
+
+        final AtomicLong messagesSent = new AtomicLong(0L);
+
+        try {
+            session.read(flowFile, in -> {
+                try {
+                    final RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger());
+                    final RecordSet recordSet = reader.createRecordSet();
+                    final RecordSchema recordSchema = recordSet.getSchema();
+                    final PulsarRecordSchema pulsarSchema = getPulsarSchema(recordSchema);
+
+                    final PublisherLease lease = getPublisherPool().obtainPublisher(topicName, pulsarSchema.getPulsarSchema(), pulsarSchema.getSchemaKey());
+                    if (lease == null) {
+                        throw new ProcessException("Unable to publish to topic " + topicName);
+                    }
+
+                    try {
+                        lease.publish(flowFile, recordSet, writerFactory, pulsarSchema, messageKeyField,
+                                getMappedMessageProperties(context, flowFile), asyncFlag);
+                        messagesSent.set(lease.complete());
+                    } catch (final IOException | RuntimeException e) {
+                        lease.poison();
+                        throw e;
+                    } finally {
+                        // Return the producer to the pool so it can be re-used for the next FlowFile.
+                        lease.close();
+                    }
+
+                } catch (final SchemaNotFoundException | MalformedRecordException e) {
+                    throw new ProcessException(e);
+                }
+            });
+
+            session.putAttribute(flowFile, MSG_COUNT, Long.toString(messagesSent.get()));
+            session.putAttribute(flowFile, TOPIC_NAME, topicName);
+            session.getProvenanceReporter().send(flowFile,
+                    getPulsarClientService().getPulsarBrokerRootURL(),
+                    String.format("Sent %d records", messagesSent.get()));
+
+            session.transfer(flowFile, REL_SUCCESS);
+
+        } catch (final Exception ex) {
+            getLogger().error("Unable to process session due to ", ex);
+            session.transfer(flowFile, REL_FAILURE);
+        }
+    }
+
+    private PulsarRecordSchema getPulsarSchema(final RecordSchema recordSchema) {
+        PulsarRecordSchema pulsarSchema = pulsarSchemas.get(recordSchema);
+
+        if (pulsarSchema == null) {
+            pulsarSchema = PulsarSchemaUtils.toPulsarRecordSchema(recordSchema);
+            pulsarSchemas.put(recordSchema, pulsarSchema);
+        }
+
+        return pulsarSchema;
     }
 
 }
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.utils;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Polls the FlowFiles for a single onTrigger in chunks, until the queue is empty or any of the budgets for the
+ * trigger is spent: the total size of the FlowFiles, their number, or the time since polling started. Each chunk
+ * can be published as soon as it is polled, so that sending one chunk overlaps with polling the next, while the
+ * session never holds more than the budget allows.
+ */
+public class FlowFilePoller {
+
+    static final long CHUNK_SIZE_BYTES = (long) DataUnit.MB.toB(1);
+    static final int CHUNK_FLOWFILES = 500;
+
+    private final ProcessSession session;
+    private final long maxBytes;
+    private final int maxFlowFiles;
+    private final long maxDurationNanos;
+    private final long startNanos = System.nanoTime();
+
+    private long polledBytes = 0;
+    private int polledFlowFiles = 0;
+    private boolean exhausted = false;
+
+    public FlowFilePoller(final ProcessSession session, final long maxBytes, final int maxFlowFiles, final long maxDurationNanos) {
+        this.session = session;
+        this.maxBytes = maxBytes;
+        this.maxFlowFiles = maxFlowFiles;
+        this.maxDurationNanos = maxDurationNanos;
+    }
+
+    /**
+     * @return the next chunk of FlowFiles, or an empty list once the queue is empty or the budget is spent. The
+     *   first chunk always holds at least one FlowFile if the queue is not empty, however large it is.
+     */
+    public List<FlowFile> poll() {
+        if (exhausted || polledFlowFiles >= maxFlowFiles || polledBytes >= maxBytes
+                || (polledFlowFiles > 0 && System.nanoTime() - startNanos >= maxDurationNanos)) {
+            return Collections.emptyList();
+        }
+
+        final List<FlowFile> flowFiles = session.get(newChunkFilter());
+
+        if (flowFiles.isEmpty()) {
+            exhausted = true;
+        }
+
+        for (FlowFile flowFile : flowFiles) {
+            polledBytes += flowFile.getSize();
+        }
+        polledFlowFiles += flowFiles.size();
+        return flowFiles;
+    }
+
+    /**
+     * Accepts FlowFiles until the chunk is full. A FlowFile that is larger than a chunk still fits into a chunk of its
+     * own if it fits into what is left of the budget, and the first FlowFile of the run is always accepted.
+     */
+    private FlowFileFilter newChunkFilter() {
+        final long remainingBytes = maxBytes - polledBytes;
+        final int chunkFlowFiles = Math.min(CHUNK_FLOWFILES, maxFlowFiles - polledFlowFiles);
+
+        return new FlowFileFilter() {
+            private long chunkBytes = 0;
+            private int chunkCount = 0;
+
+            @Override
+            public FlowFileFilterResult filter(final FlowFile flowFile) {
+                final long size = chunkBytes + flowFile.getSize();
+                final boolean fits = chunkCount == 0
+                        ? polledFlowFiles == 0 || size <= remainingBytes
+                        : size <= Math.min(CHUNK_SIZE_BYTES, remainingBytes);
+
+                if (!fits) {
+                    return FlowFileFilterResult.REJECT_AND_TERMINATE;
+                }
+
+                chunkBytes = size;
+                chunkCount++;
+                return chunkCount < chunkFlowFiles ? FlowFileFilterResult.ACCEPT_AND_CONTINUE : FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+            }
+        };
+    }
+
+    public int getPolledFlowFiles() {
+        return polledFlowFiles;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageListener;
+
+/**
+ * A MessageListener that hands the messages pushed by the Pulsar client's listener threads over to the processor.
+ * The listener threads only ever enqueue, while onTrigger drains the queue, so receiving from the network is
+ * decoupled from writing FlowFiles.
+ *
+ * The queue is bounded by pausing the consumer once it holds capacity messages; the consumer is resumed once the
+ * queue has been drained to half of its capacity. Messages the client had already prefetched are still delivered
+ * while the consumer is paused, so the queue may briefly exceed its capacity by up to the receiver queue size.
+ */
+public class MessageHandoffQueue<T> implements MessageListener<T> {
+
+    private static final long serialVersionUID = -1526452867126407845L;
+
+    private final transient Queue<Message<T>> messages = new ConcurrentLinkedQueue<>();
+    private final transient Set<Consumer<T>> pausedConsumers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private final int capacity;
+    private final int resumeThreshold;
+    private final int maxBatchSize;
+
+    public MessageHandoffQueue(int capacity, int maxBatchSize) {
+        this.capacity = capacity;
+        this.resumeThreshold = capacity / 2;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void received(Consumer<T> consumer, Message<T> msg) {
+        messages.offer(msg);
+
+        if (size.incrementAndGet() >= capacity && pausedConsumers.add(consumer)) {
+            consumer.pause();
+
+            // The queue may have been drained while we were pausing, in which case nobody else would resume it.
+            if (size.get() <= resumeThreshold) {
+                resumeConsumers();
+            }
+        }
+    }
+
+    /**
+     * Removes up to maxBatchSize messages from the queue, resuming any paused consumers once there is room again.
+     *
+     * @return the messages, in the order they were received, or an empty list if there are none.
+     */
+    public List<Message<T>> poll() {
+        final List<Message<T>> batch = new ArrayList<>(Math.min(maxBatchSize, Math.max(size.get(), 1)));
+
+        Message<T> msg;
+        while (batch.size() < maxBatchSize && (msg = messages.poll()) != null) {
+            size.decrementAndGet();
+            batch.add(msg);
+        }
+
+        if (!pausedConsumers.isEmpty() && size.get() <= resumeThreshold) {
+            resumeConsumers();
+        }
+
+        return batch;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Discards every queued message. The messages have not been acknowledged, so Pulsar will re-deliver them.
+     */
+    public void clear() {
+        while (messages.poll() != null) {
+            size.decrementAndGet();
+        }
+        resumeConsumers();
+    }
+
+    private void resumeConsumers() {
+        final Iterator<Consumer<T>> itr = pausedConsumers.iterator();
+        while (itr.hasNext()) {
+            final Consumer<T> consumer = itr.next();
+            itr.remove();
+            consumer.resume();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.pulsar.client.api.Message;
+
+/**
+ * Gives access to the payload of a Pulsar message that was consumed with Schema.BYTEBUFFER. The value of such a
+ * message is a ByteBuffer over the payload, which is written out as it is rather than being copied into yet another
+ * byte array on its way into the FlowFile.
+ */
+public final class MessagePayloadUtils {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ThreadLocal<byte[]> WRITE_CHUNK = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private MessagePayloadUtils() {
+    }
+
+    /**
+     * Returns the message's payload, which must not be modified. Each call to this method decodes the payload anew, so
+     * callers should hold on to it rather than calling it repeatedly for the same message.
+     *
+     * @return the payload, which is empty for a message without a value.
+     */
+    public static ByteBuffer getPayload(final Message<ByteBuffer> msg) {
+        final ByteBuffer value = msg.getValue();
+        return value == null ? EMPTY.duplicate() : value;
+    }
+
+    /**
+     * Writes the remaining bytes of the payload to the given stream, without changing the payload's position.
+     * A direct buffer is written through a chunk that is re-used by the calling thread, so no garbage is
+     * created for each message.
+     */
+    public static void writePayload(final ByteBuffer payload, final OutputStream out) throws IOException {
+        if (payload.hasArray()) {
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            return;
+        }
+
+        final byte[] chunk = WRITE_CHUNK.get();
+        final ByteBuffer view = payload.duplicate();
+        while (view.hasRemaining()) {
+            final int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+}
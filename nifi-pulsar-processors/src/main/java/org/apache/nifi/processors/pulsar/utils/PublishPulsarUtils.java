@@ -17,37 +17,24 @@
 package org.apache.nifi.processors.pulsar.utils;
 
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.DataUnit;
-import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.processor.util.FlowFileFilters;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 public class PublishPulsarUtils {
 
-    public static List<FlowFile> pollFlowFiles(final ProcessSession session) {
-        final List<FlowFile> initialFlowFiles = session.get(FlowFileFilters.newSizeBasedFilter(1, DataUnit.MB, 500));
-
-        if (initialFlowFiles.isEmpty()) {
-            return initialFlowFiles;
-        } else {
-            return pollAllFlowFiles(session, initialFlowFiles);
+    /**
+     * Groups the FlowFiles by the topic they are to be published to. Topics are kept in the order in which they
+     * were first seen, and the FlowFiles of each topic in the order in which they were polled.
+     */
+    public static Map<String, List<FlowFile>> groupByTopic(final List<FlowFile> flowFiles, final Function<FlowFile, String> topicResolver) {
+        final Map<String, List<FlowFile>> flowFilesByTopic = new LinkedHashMap<>();
+        for (FlowFile flowFile : flowFiles) {
+            flowFilesByTopic.computeIfAbsent(topicResolver.apply(flowFile), topic -> new ArrayList<>()).add(flowFile);
         }
-
-    }
-
-    private static List<FlowFile> pollAllFlowFiles(ProcessSession session, List<FlowFile> initialFlowFiles) {
-        final List<FlowFile> polled = new ArrayList<>(initialFlowFiles);
-        while (true) {
-            final List<FlowFile> flowFiles = session.get(10_000);
-            if (flowFiles.isEmpty()) {
-                break;
-            }
-
-            polled.addAll(flowFiles);
-        }
-
-        return polled;
+        return flowFilesByTopic;
     }
 }
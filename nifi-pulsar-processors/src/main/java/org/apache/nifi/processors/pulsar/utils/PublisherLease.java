@@ -18,6 +18,7 @@ package org.apache.nifi.processors.pulsar.utils;
 
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.schema.access.SchemaNotFoundException;
 import org.apache.nifi.serialization.RecordSetWriter;
@@ -32,6 +33,7 @@ import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.apache.pulsar.client.api.schema.GenericRecord;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
@@ -39,140 +41,505 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PublisherLease implements Closeable {
 
+    public static final int DEFAULT_MAX_IN_FLIGHT_MESSAGES = 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BYTES = 32 * 1024 * 1024;
+
+    public static final String FRAGMENT_ID = "fragment.identifier";
+    public static final String FRAGMENT_INDEX = "fragment.index";
+    public static final String FRAGMENT_COUNT = "fragment.count";
+
+    private static final long MAX_SINGLE_MESSAGE_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * The number of records that must serialize identically with a re-used writer and a fresh writer before
+     * the re-used writer is trusted for the remainder of the record set.
+     */
+    private static final int WRITER_REUSE_VERIFICATIONS = 2;
+
     private final ComponentLog logger;
     private final Producer producer;
 
     private final AtomicLong messagesSent = new AtomicLong(0L);
 
+    private final int maxInFlightMessages;
+    private final int maxInFlightBytes;
+    private final Semaphore inFlightMessages;
+    private final Semaphore inFlightBytes;
+    private volatile AtomicReference<Throwable> sendFailure = new AtomicReference<>();
+    private Batch batch;
+    private final Queue<byte[]> segmentBuffers = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean poisoned = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+
     public PublisherLease(Producer producer, ComponentLog logger) {
+        this(producer, logger, DEFAULT_MAX_IN_FLIGHT_MESSAGES, DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    public PublisherLease(Producer producer, ComponentLog logger, int maxInFlightMessages, int maxInFlightBytes) {
         this.producer = producer;
         this.logger = logger;
+        this.maxInFlightMessages = maxInFlightMessages;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.inFlightMessages = new Semaphore(maxInFlightMessages);
+        this.inFlightBytes = new Semaphore(maxInFlightBytes);
+    }
+
+    /**
+     * Marks this lease as unusable, so that the underlying producer is closed rather than being
+     * returned to the pool when the lease is closed.
+     */
+    public void poison() {
+        this.poisoned = true;
+    }
+
+    public boolean isPoisoned() {
+        return poisoned;
+    }
+
+    /**
+     * Poisons the lease and closes its producer without waiting for the messages that are still in flight, which
+     * fail instead, so that the producer is not left open when the outcome of its messages no longer matters.
+     */
+    public void abandon() {
+        poison();
+        producer.closeAsync().exceptionally(failure -> {
+            logger.warn("Unable to close abandoned producer", failure);
+            return null;
+        });
+    }
+
+    public boolean isConnected() {
+        return producer.isConnected();
+    }
+
+    protected void touch(long timestamp) {
+        this.lastUsed = timestamp;
+    }
+
+    protected long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Starts a batch of FlowFiles that are published without waiting for one another. Until {@link #endBatchAsync()}
+     * is called, each publish method returns as soon as its messages have been handed to the producer, and the
+     * outcome of each call is tracked separately.
+     */
+    public void beginBatch() {
+        batch = new Batch();
+    }
+
+    /**
+     * Ends the batch and flushes the producer, without waiting for the broker.
+     *
+     * @return a future that completes once every message of the batch has completed, with the first failure of the
+     *   messages of each publish call of the batch that returned normally, in call order, or null if they were all sent
+     */
+    public CompletableFuture<List<Throwable>> endBatchAsync() {
+        final Batch ended = batch;
+        batch = null;
+        sendFailure = new AtomicReference<>();
+
+        if (ended == null) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        producer.flushAsync();
+        ended.release();
+        return ended.drained.thenApply(ignored -> {
+            final List<Throwable> results = new ArrayList<>(ended.failures.size());
+            for (AtomicReference<Throwable> failure : ended.failures) {
+                results.add(failure.get());
+            }
+            return results;
+        });
     }
 
     public void publish(final FlowFile flowFile, final InputStream flowFileContent, final String messageKey,
                         Map<String, String> messageProperties, final byte[] demarcatorBytes, boolean async) throws IOException {
+        publish(flowFile, flowFileContent, messageKey, messageProperties, demarcatorBytes, 0, async);
+    }
 
-        byte[] messageContent;
-        List<CompletableFuture<MessageId>> futureList = new ArrayList<>();
+    /**
+     * Publishes the content of the FlowFile. If a demarcator is provided, each token is sent as a separate message.
+     * Otherwise, if a segment size is provided, the content is streamed to Pulsar as a sequence of messages of at
+     * most segmentSize bytes, so that FlowFiles of any size can be published using a constant amount of memory.
+     * Each segment carries the fragment.identifier, fragment.index and fragment.count properties so that the
+     * original content can be re-assembled by the consumer, and is keyed by the fragment.identifier unless a message
+     * key is given, so that all of the segments of a FlowFile are routed to the same partition. If neither is provided, the entire content is sent as
+     * a single message.
+     */
+    public void publish(final FlowFile flowFile, final InputStream flowFileContent, final String messageKey,
+                        Map<String, String> messageProperties, final byte[] demarcatorBytes, final int segmentSize,
+                        boolean async) throws IOException {
 
-        if (demarcatorBytes == null || demarcatorBytes.length == 0) {
-            messageContent = new byte[(int) flowFile.getSize()];
-            StreamUtils.fillBuffer(flowFileContent, messageContent);
-            futureList.add(async ?
-                    sendAsync(producer, messageKey, messageProperties, messageContent) :
-                    send(producer, messageKey, messageProperties, messageContent));
+        startPublish();
+        byte[] messageContent;
 
-        } else {
+        if (demarcatorBytes != null && demarcatorBytes.length > 0) {
             try (final StreamDemarcator demarcator = new StreamDemarcator(flowFileContent, demarcatorBytes, Integer.MAX_VALUE)) {
 
                 while ((messageContent = demarcator.nextToken()) != null) {
-                    futureList.add(async ?
-                            sendAsync(producer, messageKey, messageProperties, messageContent) :
-                            send(producer, messageKey, messageProperties, messageContent));
-
-                    if (futureList.size() > 99) {
-                        producer.flush();
-
-                        futureList.stream()
-                                // Call get() on each Future object to get the result
-                                .map(future -> {
-                                    try {
-                                        return future.get();
-                                    } catch (InterruptedException | ExecutionException e) {
-                                        throw new RuntimeException(e);
-                                    }
-                                });
-
-                        futureList.clear();
-                    }
+                    send(messageKey, messageProperties, messageContent, async);
                 }
             }
-        }
+        } else if (segmentSize > 0) {
+            publishSegments(flowFile, flowFileContent, messageKey, messageProperties, segmentSize, async);
+        } else {
+            if (flowFile.getSize() > MAX_SINGLE_MESSAGE_SIZE) {
+                throw new IOException(String.format("%s is %d bytes, which is too large to be sent as a single message. "
+                        + "Configure a Message Segment Size to publish it in segments.", flowFile, flowFile.getSize()));
+            }
 
-        // Wait for futures to complete, flush all the producers in parallel etc.
-        // Block here until work queue is empty and all producers have been flushed.
-        if (!futureList.isEmpty()) {
-            CompletableFuture<MessageId>[] futureArray = futureList.toArray(new CompletableFuture[0]);
-            CompletableFuture<Void> allFutures = CompletableFuture.allOf(futureArray);
-            allFutures.join(); // wait for all futures to complete
+            messageContent = new byte[(int) flowFile.getSize()];
+            StreamUtils.fillBuffer(flowFileContent, messageContent);
+            send(messageKey, messageProperties, messageContent, async);
         }
 
+        // Unless this is part of a batch, block here until all of the outstanding messages have been acknowledged by the broker.
+        finishPublish();
+
         IOUtils.closeQuietly(flowFileContent);
     }
 
+    private void publishSegments(final FlowFile flowFile, final InputStream flowFileContent, final String messageKey,
+                                 final Map<String, String> messageProperties, final int segmentSize, final boolean async) throws IOException {
+
+        final long segmentCount = Math.max(1L, (flowFile.getSize() + segmentSize - 1) / segmentSize);
+        final String identifier = flowFile.getAttribute(CoreAttributes.UUID.key());
+
+        // Keyless messages are spread across the partitions of a partitioned topic, which would leave the segments
+        // of one FlowFile scattered over several partitions, with no ordering between them.
+        final String segmentKey = messageKey == null ? identifier : messageKey;
+
+        for (long index = 0; index < segmentCount; index++) {
+            final byte[] buffer = obtainSegmentBuffer(segmentSize);
+            final int length = StreamUtils.fillBuffer(flowFileContent, buffer, false);
+
+            final Map<String, String> properties = new HashMap<>(messageProperties);
+            properties.put(FRAGMENT_ID, identifier);
+            properties.put(FRAGMENT_INDEX, String.valueOf(index));
+            properties.put(FRAGMENT_COUNT, String.valueOf(segmentCount));
+
+            if (length == buffer.length) {
+                // The buffer is only handed back to the pool once Pulsar is done with it.
+                send(segmentKey, properties, buffer, async, () -> releaseSegmentBuffer(buffer));
+            } else {
+                send(segmentKey, properties, Arrays.copyOf(buffer, length), async);
+                releaseSegmentBuffer(buffer);
+            }
+        }
+    }
+
+    private byte[] obtainSegmentBuffer(final int segmentSize) {
+        byte[] buffer;
+        while ((buffer = segmentBuffers.poll()) != null) {
+            if (buffer.length == segmentSize) {
+                return buffer;
+            }
+        }
+        return new byte[segmentSize];
+    }
+
+    private void releaseSegmentBuffer(final byte[] buffer) {
+        // Never retain more buffers than can possibly be in flight at once
+        if (segmentBuffers.size() < maxInFlightMessages && (long) segmentBuffers.size() * buffer.length < maxInFlightBytes) {
+            segmentBuffers.offer(buffer);
+        }
+    }
+
     public void publish(final FlowFile flowFile, final RecordSet recordSet, final RecordSetWriterFactory writerFactory,
                         final RecordSchema schema, final String messageKeyField, Map<String, String> messageProperties,
                         boolean async) throws IOException {
 
         final ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        final ByteArrayOutputStream reusableOut = new ByteArrayOutputStream(1024);
+
+        startPublish();
+        RecordSetWriter reusableWriter = null;
+        int verifiedRecords = 0;
 
         Record record;
-        List<CompletableFuture<MessageId>> futureList = new ArrayList<>();
 
         try {
             while ((record = recordSet.next()) != null) {
                 messagesSent.incrementAndGet();
-                baos.reset();
 
                 final byte[] messageContent;
                 final String messageKey;
 
-                // final Map<String, String> additionalAttributes;
-                try (final RecordSetWriter writer = writerFactory.createWriter(logger, schema, baos, flowFile)) {
-                    final WriteResult writeResult = writer.write(record);
-                    // additionalAttributes = writeResult.getAttributes();
-                    writer.flush();
+                if (verifiedRecords >= WRITER_REUSE_VERIFICATIONS) {
+                    messageContent = writeRecord(reusableWriter, record, reusableOut);
+                } else {
+                    baos.reset();
+
+                    // final Map<String, String> additionalAttributes;
+                    try (final RecordSetWriter writer = writerFactory.createWriter(logger, schema, baos, flowFile)) {
+                        final WriteResult writeResult = writer.write(record);
+                        // additionalAttributes = writeResult.getAttributes();
+                        writer.flush();
+                    }
+
+                    messageContent = baos.toByteArray();
+
+                    // Check whether a single long-lived writer produces exactly the same bytes for each record as a
+                    // fresh writer does, so the writer is only re-used when doing so is safe. Only formats without
+                    // headers, footers or separators between records pass, e.g. CSV without a header line. JSON
+                    // separates the records of a long-lived writer, with a newline or a comma inside an array, and
+                    // Avro writes a header, so both keep a writer per record.
+                    if (verifiedRecords >= 0) {
+                        if (reusableWriter == null) {
+                            reusableWriter = writerFactory.createWriter(logger, schema, reusableOut, flowFile);
+                        }
+
+                        if (Arrays.equals(messageContent, writeRecord(reusableWriter, record, reusableOut))) {
+                            verifiedRecords++;
+                        } else {
+                            IOUtils.closeQuietly(reusableWriter);
+                            reusableWriter = null;
+                            verifiedRecords = -1;
+                        }
+                    }
                 }
 
-                messageContent = baos.toByteArray();
                 messageKey = getMessageKey(flowFile, writerFactory, record.getValue(messageKeyField));
 
-                futureList.add(async ?
-                        sendAsync(producer, messageKey, messageProperties, messageContent) :
-                        send(producer, messageKey, messageProperties, messageContent));
+                send(messageKey, messageProperties, messageContent, async);
+            }
+
+            finishPublish();
+
+        } catch (final Exception ex) {
+            logger.error("Unable to Publish Pulsar Records", ex);
+            throw new IOException(ex.getCause());
+        } finally {
+            IOUtils.closeQuietly(reusableWriter);
+        }
+
+    }
 
-                if (futureList.size() > 100) {
-                    producer.flush();
+    /**
+     * Publishes pre-serialized records without decoding them. The content is split at the record delimiter and each
+     * non-empty token is sent, as is, as a single message. This is only correct when every record in the content is
+     * already in the form that the configured Record Writer would produce for it, e.g. JSON lines in and JSON lines out.
+     * When the delimiter is a newline, a carriage return at the end of a token is dropped, so CRLF content is sent
+     * the same way as LF content.
+     */
+    public void publishDelimitedRecords(final InputStream flowFileContent, Map<String, String> messageProperties,
+                                        final byte[] recordDelimiter, boolean async) throws IOException {
+        startPublish();
+        byte[] messageContent;
+        final boolean newlineDelimited = recordDelimiter.length == 1 && recordDelimiter[0] == '\n';
 
-                    futureList.stream()
-                            // Call get() on each Future object to get the result
-                            .map(future -> {
-                                try {
-                                    return future.get();
-                                } catch (InterruptedException | ExecutionException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            });
+        try (final StreamDemarcator demarcator = new StreamDemarcator(flowFileContent, recordDelimiter, Integer.MAX_VALUE)) {
+            while ((messageContent = demarcator.nextToken()) != null) {
+                if (newlineDelimited && messageContent.length > 0 && messageContent[messageContent.length - 1] == '\r') {
+                    messageContent = Arrays.copyOf(messageContent, messageContent.length - 1);
+                }
 
-                    futureList.clear();
+                if (messageContent.length == 0) {
+                    continue;
                 }
+
+                messagesSent.incrementAndGet();
+                send(null, messageProperties, messageContent, async);
             }
+        }
+
+        finishPublish();
+    }
+
+    /**
+     * Publishes each record as a Pulsar GenericRecord, so that the producer's schema is used to encode the
+     * message instead of a RecordSetWriter. The lease must have been obtained for the given Pulsar schema.
+     */
+    public void publish(final FlowFile flowFile, final RecordSet recordSet, final RecordSetWriterFactory writerFactory,
+                        final PulsarRecordSchema pulsarSchema, final String messageKeyField,
+                        Map<String, String> messageProperties, boolean async) throws IOException {
+        startPublish();
+        Record record;
 
-            if (!futureList.isEmpty()) {
-                CompletableFuture<MessageId>[] futureArray = futureList.toArray(new CompletableFuture[0]);
-                CompletableFuture<Void> allFutures = CompletableFuture.allOf(futureArray);
-                allFutures.join(); // wait for all futures to complete
+        try {
+            while ((record = recordSet.next()) != null) {
+                messagesSent.incrementAndGet();
+
+                final GenericRecord value = PulsarSchemaUtils.toGenericRecord(record, pulsarSchema);
+                final String messageKey = getMessageKey(flowFile, writerFactory, record.getValue(messageKeyField));
+
+                // The encoded size isn't known until the producer serializes the record, so only the message count
+                // bounds the in-flight window here.
+                send(messageKey, messageProperties, value, 0, async, null);
             }
 
+            finishPublish();
+
         } catch (final Exception ex) {
             logger.error("Unable to Publish Pulsar Records", ex);
-            throw new IOException(ex.getCause());
+            throw new IOException(ex.getCause() != null ? ex.getCause() : ex);
+        }
+    }
+
+    private byte[] writeRecord(final RecordSetWriter writer, final Record record, final ByteArrayOutputStream out) throws IOException {
+        writer.write(record);
+        writer.flush();
+
+        final byte[] content = out.toByteArray();
+        out.reset();
+        return content;
+    }
+
+    /**
+     * Sends a single message once there is room for it in the in-flight window. The permits taken for the
+     * message are handed back as soon as the broker responds, so the number of outstanding messages, and
+     * the amount of payload memory they retain, never exceeds the configured limits.
+     */
+    private void send(final String key, final Map<String, String> properties, final byte[] value, final boolean async) throws IOException {
+        send(key, properties, value, value.length, async, null);
+    }
+
+    private void send(final String key, final Map<String, String> properties, final byte[] value, final boolean async,
+                      final Runnable onComplete) throws IOException {
+        send(key, properties, value, value.length, async, onComplete);
+    }
+
+    private void send(final String key, final Map<String, String> properties, final Object value, final int size,
+                      final boolean async, final Runnable onComplete) throws IOException {
+        final int weight = Math.min(size, maxInFlightBytes);
+        acquire(weight);
+
+        final AtomicReference<Throwable> failure = sendFailure;
+        final Batch current = batch;
+        if (current != null) {
+            current.pending.incrementAndGet();
+        }
+
+        final CompletableFuture<MessageId> future;
+        try {
+            future = async ?
+                    sendAsync(producer, key, properties, value) :
+                    send(producer, key, properties, value);
+        } catch (final RuntimeException rEx) {
+            release(weight);
+            if (current != null) {
+                current.release();
+            }
+            throw rEx;
+        }
+
+        future.whenComplete((messageId, throwable) -> {
+            if (throwable != null) {
+                failure.compareAndSet(null, throwable);
+            }
+            if (onComplete != null) {
+                onComplete.run();
+            }
+            release(weight);
+            if (current != null) {
+                current.release();
+            }
+        });
+    }
+
+    private void acquire(final int weight) throws IOException {
+        try {
+            if (!inFlightMessages.tryAcquire()) {
+                // The window is full, so push any batched messages out rather than waiting for the batch delay.
+                producer.flushAsync();
+                inFlightMessages.acquire();
+            }
+
+            if (!inFlightBytes.tryAcquire(weight)) {
+                producer.flushAsync();
+                inFlightBytes.acquire(weight);
+            }
+        } catch (final InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to publish to Pulsar", iEx);
         }
+    }
 
+    private void release(final int weight) {
+        inFlightBytes.release(weight);
+        inFlightMessages.release();
     }
 
+    /**
+     * Within a batch, the messages of each publish call get a failure of their own, so that a failed message
+     * is only held against the FlowFile that it belongs to.
+     */
+    private void startPublish() {
+        if (batch != null) {
+            sendFailure = new AtomicReference<>();
+        }
+    }
+
+    private void finishPublish() throws IOException {
+        if (batch != null) {
+            batch.failures.add(sendFailure);
+        } else {
+            awaitInFlight();
+        }
+    }
+
+    /**
+     * Waits until every message sent through this lease has completed, and reports the first failure, if any.
+     */
+    private void awaitInFlight() throws IOException {
+        producer.flushAsync();
+
+        try {
+            inFlightMessages.acquire(maxInFlightMessages);
+            inFlightMessages.release(maxInFlightMessages);
+        } catch (final InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Pulsar to acknowledge messages", iEx);
+        }
+
+        final Throwable failure = sendFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IOException("Unable to publish message(s) to Pulsar", failure);
+        }
+    }
+
+    /**
+     * The messages of a batch that are still awaiting a response from the broker. The count starts at one, which is
+     * only released when the batch ends, so that the batch cannot be considered drained while it is still being sent.
+     */
+    private static final class Batch {
+        private final List<AtomicReference<Throwable>> failures = new ArrayList<>();
+        private final AtomicLong pending = new AtomicLong(1);
+        private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                drained.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records sent since the last call to complete(), and resets the count so
+     * that the lease can be reused for the next FlowFile.
+     */
     public long complete() {
-        return this.messagesSent.get();
+        return this.messagesSent.getAndSet(0L);
     }
-    protected CompletableFuture<MessageId> sendAsync(Producer producer, String key, Map<String, String> properties, byte[] value) {
+
+    protected CompletableFuture<MessageId> sendAsync(Producer producer, String key, Map<String, String> properties, Object value) {
         TypedMessageBuilder tmb = producer.newMessage().properties(properties).value(value);
 
         if (key != null) {
@@ -181,19 +548,24 @@ public class PublisherLease implements Closeable {
         return tmb.sendAsync();
     }
 
-    protected CompletableFuture<MessageId> send(Producer producer, String key, Map<String, String> properties, byte[] value) {
-        return CompletableFuture.supplyAsync(() -> {
-            TypedMessageBuilder tmb = producer.newMessage().properties(properties).value(value);
+    /**
+     * Sends the message on the calling thread, and only returns once the broker has responded, so that the messages
+     * of a synchronous publish go out one at a time and in order.
+     */
+    protected CompletableFuture<MessageId> send(Producer producer, String key, Map<String, String> properties, Object value) {
+        TypedMessageBuilder tmb = producer.newMessage().properties(properties).value(value);
+
+        if (key != null) {
+            tmb = tmb.key(key);
+        }
 
-            if (key != null) {
-                tmb = tmb.key(key);
-            }
-            try {
-                return tmb.send();
-            } catch (PulsarClientException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        final CompletableFuture<MessageId> result = new CompletableFuture<>();
+        try {
+            result.complete(tmb.send());
+        } catch (PulsarClientException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
     }
 
     private String getMessageKey(final FlowFile flowFile, final RecordSetWriterFactory writerFactory,
@@ -17,44 +17,150 @@
 package org.apache.nifi.processors.pulsar.utils;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.PulsarClient;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
 
 import java.io.Closeable;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
+/**
+ * Caches warm Pulsar producers keyed by topic name. Each call to {@link #obtainPublisher(String)} hands out
+ * a lease that is used exclusively by the calling thread; closing the lease returns its producer to the pool
+ * so that it can be reused by the next FlowFile destined for the same topic.
+ *
+ * Idle producers are closed once they have not been used for longer than the configured idle timeout, and at
+ * most maxIdleProducers producers are retained across all topics. The idle producers are swept on a background
+ * thread, so that they are closed even when no more leases are obtained from the pool.
+ */
 public class PublisherPool implements Closeable {
 
+    public static final int DEFAULT_MAX_IDLE_PRODUCERS = 32;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
     private final ComponentLog logger;
     private final Map<String, Object> pulsarProducerProperties;
 
     private final PulsarClient pulsarClient;
 
-    private final BlockingQueue<PublisherLease> publisherQueue;
+    private final ConcurrentMap<PoolKey, BlockingQueue<PublisherLease>> publisherQueues;
+
+    private final int maxIdleProducers;
+    private final long idleTimeoutMillis;
+    private final int maxInFlightMessages;
+    private final int maxInFlightBytes;
+
+    private final LongSupplier clock;
+
+    private final AtomicInteger idleProducers = new AtomicInteger(0);
+    private final AtomicLong lastEviction;
+    private final ScheduledExecutorService evictionExecutor;
 
     private volatile boolean closed = false;
 
     public PublisherPool(ComponentLog logger, Map<String, Object> pulsarProducerProperties, PulsarClient pulsarClient) {
+        this(logger, pulsarProducerProperties, pulsarClient, DEFAULT_MAX_IDLE_PRODUCERS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    public PublisherPool(ComponentLog logger, Map<String, Object> pulsarProducerProperties, PulsarClient pulsarClient,
+                         int maxIdleProducers, long idleTimeoutMillis) {
+        this(logger, pulsarProducerProperties, pulsarClient, maxIdleProducers, idleTimeoutMillis,
+                PublisherLease.DEFAULT_MAX_IN_FLIGHT_MESSAGES, PublisherLease.DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    public PublisherPool(ComponentLog logger, Map<String, Object> pulsarProducerProperties, PulsarClient pulsarClient,
+                         int maxIdleProducers, long idleTimeoutMillis, int maxInFlightMessages, int maxInFlightBytes) {
+        this(logger, pulsarProducerProperties, pulsarClient, maxIdleProducers, idleTimeoutMillis,
+                maxInFlightMessages, maxInFlightBytes, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock - The source of the current time in milliseconds, which idle producers are evicted against.
+     */
+    public PublisherPool(ComponentLog logger, Map<String, Object> pulsarProducerProperties, PulsarClient pulsarClient,
+                         int maxIdleProducers, long idleTimeoutMillis, int maxInFlightMessages, int maxInFlightBytes,
+                         LongSupplier clock) {
         this.logger = logger;
         this.pulsarProducerProperties = pulsarProducerProperties;
         this.pulsarClient = pulsarClient;
-        this.publisherQueue = new LinkedBlockingQueue<>();
+        this.maxIdleProducers = maxIdleProducers;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxInFlightMessages = maxInFlightMessages;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.publisherQueues = new ConcurrentHashMap<>();
+        this.clock = clock;
+        this.lastEviction = new AtomicLong(clock.getAsLong());
+
+        this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("PulsarPublisherPoolEviction-%d").daemon(true).build());
+        this.evictionExecutor.scheduleWithFixedDelay(this::evictIdleQuietly,
+                EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public PublisherLease obtainPublisher(String topicName) {
+        return obtainPublisher(topicName, null, null);
+    }
+
+    /**
+     * Obtains a lease on a producer for the given topic that is typed with the given Pulsar schema. Producers
+     * are cached per topic and schema, since a producer can only ever publish messages of a single schema.
+     *
+     * @param schema the schema to create the producer with, or null to publish raw bytes
+     * @param schemaKey a key that is equal for equal schemas, such as the schema definition, which the caller
+     *   should compute once per schema rather than on every call
+     */
+    public PublisherLease obtainPublisher(String topicName, Schema<?> schema, String schemaKey) {
         if (isClosed()) {
             throw new IllegalStateException("Connection Pool is closed");
         }
 
+        if (StringUtils.isBlank(topicName)) {
+            return null;
+        }
+
+        evictIdle();
+
+        final PoolKey poolKey = new PoolKey(topicName, schema == null ? null : schemaKey);
+
+        final BlockingQueue<PublisherLease> queue = publisherQueues.get(poolKey);
+        if (queue != null) {
+            PublisherLease lease;
+            while ((lease = queue.poll()) != null) {
+                idleProducers.decrementAndGet();
+
+                if (lease.isConnected()) {
+                    return lease;
+                }
+
+                // The producer lost its connection while sitting in the pool, so discard it.
+                lease.poison();
+                lease.close();
+            }
+        }
+
         PublisherLease lease = null;
 
         try {
-            lease = createLease(topicName);
+            lease = createLease(topicName, poolKey, schema);
         } catch (PulsarClientException pcEx) {
            logger.error("Unable to create producer", pcEx);
         }
@@ -62,31 +168,19 @@ public class PublisherPool implements Closeable {
         return lease;
     }
 
-    private PublisherLease createLease(String topicName) throws PulsarClientException {
-        if (StringUtils.isBlank(topicName)) {
-            return null;
-        }
-        
+    private PublisherLease createLease(String topicName, PoolKey poolKey, Schema<?> schema) throws PulsarClientException {
         final Map<String, Object> properties = new HashMap<>(pulsarProducerProperties);
-        Producer producer = pulsarClient.newProducer()
+        final ProducerBuilder<?> builder = schema == null ? pulsarClient.newProducer() : pulsarClient.newProducer(schema);
+        Producer producer = builder
                 .topic(topicName)
                 .loadConf(properties)
                 .create();
 
-        final PublisherLease lease = new PublisherLease(producer, logger) {
-            private volatile boolean closed = false;
-
+        final PublisherLease lease = new PublisherLease(producer, logger, maxInFlightMessages, maxInFlightBytes) {
             @Override
             public void close() {
-                if (isClosed()) {
-                    if (closed) {
-                        return;
-                    }
-
-                    closed = true;
+                if (isPoisoned() || isClosed() || !release(poolKey, this)) {
                     super.close();
-                } else {
-                    publisherQueue.remove(this);
                 }
             }
         };
@@ -94,6 +188,66 @@ public class PublisherPool implements Closeable {
         return lease;
     }
 
+    /**
+     * Returns the lease to the idle queue for its topic and schema.
+     *
+     * @return false if the pool is already holding its maximum number of idle producers, in which case
+     *   the caller is responsible for closing the lease.
+     */
+    private boolean release(final PoolKey poolKey, final PublisherLease lease) {
+        if (idleProducers.incrementAndGet() > maxIdleProducers) {
+            idleProducers.decrementAndGet();
+            return false;
+        }
+
+        lease.touch(clock.getAsLong());
+        final BlockingQueue<PublisherLease> queue = publisherQueues.computeIfAbsent(poolKey, t -> new LinkedBlockingQueue<>());
+        queue.offer(lease);
+
+        // The pool may have been closed while we were returning the lease, so make sure it isn't stranded.
+        if (isClosed() && queue.remove(lease)) {
+            idleProducers.decrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    private void evictIdleQuietly() {
+        try {
+            evictIdle();
+        } catch (final RuntimeException e) {
+            // An exception would cancel the scheduled sweep, so log it and carry on
+            logger.warn("Unable to close idle Pulsar producers", e);
+        }
+    }
+
+    /**
+     * Closes every idle producer that has not been used within the idle timeout. The sweep runs at most
+     * once per second, regardless of whether it is the background thread or a thread obtaining a lease
+     * that runs it.
+     */
+    private void evictIdle() {
+        final long now = clock.getAsLong();
+        final long last = lastEviction.get();
+
+        if (now - last < EVICTION_INTERVAL_MILLIS || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+
+        for (BlockingQueue<PublisherLease> queue : publisherQueues.values()) {
+            final Iterator<PublisherLease> itr = queue.iterator();
+            while (itr.hasNext()) {
+                final PublisherLease lease = itr.next();
+                if (now - lease.getLastUsed() > idleTimeoutMillis && queue.remove(lease)) {
+                    idleProducers.decrementAndGet();
+                    lease.poison();
+                    lease.close();
+                }
+            }
+        }
+    }
+
     public synchronized boolean isClosed() {
         return closed;
     }
@@ -101,10 +255,48 @@ public class PublisherPool implements Closeable {
     @Override
     public synchronized void close() {
         closed = true;
+        evictionExecutor.shutdownNow();
+
+        for (BlockingQueue<PublisherLease> queue : publisherQueues.values()) {
+            PublisherLease lease;
+            while ((lease = queue.poll()) != null) {
+                idleProducers.decrementAndGet();
+                lease.close();
+            }
+        }
+
+        publisherQueues.clear();
+    }
+
+    /**
+     * Identifies the producers of a topic and schema, without concatenating the topic with the schema definition.
+     */
+    private static final class PoolKey {
+        private final String topicName;
+        private final String schemaKey;
+        private final int hashCode;
+
+        private PoolKey(final String topicName, final String schemaKey) {
+            this.topicName = topicName;
+            this.schemaKey = schemaKey;
+            this.hashCode = Objects.hash(topicName, schemaKey);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PoolKey)) {
+                return false;
+            }
+            final PoolKey other = (PoolKey) obj;
+            return topicName.equals(other.topicName) && Objects.equals(schemaKey, other.schemaKey);
+        }
 
-        PublisherLease lease;
-        while ((lease = publisherQueue.poll()) != null) {
-            lease.close();
+        @Override
+        public int hashCode() {
+            return hashCode;
         }
     }
 }
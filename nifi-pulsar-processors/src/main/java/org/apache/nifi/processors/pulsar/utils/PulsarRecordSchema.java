@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.utils;
+
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A NiFi record schema together with the Pulsar AVRO schema that it converts to, as created by
+ * {@link PulsarSchemaUtils#toPulsarRecordSchema(RecordSchema)}. Besides the schema of the record itself, it holds
+ * a schema for each nested record, whose name matches the branch of the union in the parent schema, so that nested
+ * records can be built without deriving their schemas again for every message.
+ */
+public final class PulsarRecordSchema {
+
+    private final RecordSchema recordSchema;
+    private final GenericSchema<GenericRecord> pulsarSchema;
+    private final Map<RecordSchema, GenericSchema<GenericRecord>> childSchemas;
+    private final String schemaKey;
+
+    PulsarRecordSchema(final RecordSchema recordSchema, final GenericSchema<GenericRecord> pulsarSchema,
+                       final Map<RecordSchema, GenericSchema<GenericRecord>> childSchemas) {
+        this.recordSchema = recordSchema;
+        this.pulsarSchema = pulsarSchema;
+        this.childSchemas = childSchemas;
+        this.schemaKey = new String(pulsarSchema.getSchemaInfo().getSchema(), StandardCharsets.UTF_8);
+    }
+
+    public RecordSchema getRecordSchema() {
+        return recordSchema;
+    }
+
+    public GenericSchema<GenericRecord> getPulsarSchema() {
+        return pulsarSchema;
+    }
+
+    /**
+     * @return the definition of the Pulsar schema, which identifies the producers for this schema in the PublisherPool
+     */
+    public String getSchemaKey() {
+        return schemaKey;
+    }
+
+    GenericSchema<GenericRecord> getChildSchema(final RecordSchema childSchema) {
+        final GenericSchema<GenericRecord> schema = childSchemas.get(childSchema);
+        if (schema == null) {
+            throw new IllegalArgumentException("Record schema " + childSchema + " is not nested in " + recordSchema);
+        }
+        return schema;
+    }
+}
@@ -0,0 +1,593 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar.utils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.SchemaIdentifier;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.ChoiceDataType;
+import org.apache.nifi.serialization.record.type.DecimalDataType;
+import org.apache.nifi.serialization.record.type.MapDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+import org.apache.pulsar.client.api.schema.Field;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericRecordBuilder;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+import org.apache.pulsar.common.schema.SchemaInfo;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.apache.pulsar.shade.org.apache.avro.AvroRuntimeException;
+import org.apache.pulsar.shade.org.apache.avro.LogicalType;
+import org.apache.pulsar.shade.org.apache.avro.LogicalTypes;
+import org.apache.pulsar.shade.org.apache.avro.Schema;
+import org.apache.pulsar.shade.org.apache.avro.generic.IndexedRecord;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Converts between NiFi record schemas and Pulsar AVRO schemas, so that records can be published
+ * as Pulsar GenericRecords on a schema-typed producer, and so that the GenericRecords decoded by a
+ * consumer can be turned into NiFi Records without parsing the message again.
+ *
+ * The Avro schemas are built and parsed with the Avro library that the Pulsar client shades, which is the one
+ * that Pulsar encodes and decodes the records with.
+ */
+public final class PulsarSchemaUtils {
+
+    private static final String DEFAULT_RECORD_NAME = "nifiRecord";
+    private static final Pattern AVRO_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PulsarSchemaUtils() {
+    }
+
+    /**
+     * Builds the Pulsar AVRO schema that corresponds to the given NiFi record schema. Every field is
+     * nullable, and NiFi types that have no direct Avro equivalent, such as BIGINT and DECIMAL, are
+     * represented as strings.
+     *
+     * @param recordSchema the NiFi record schema
+     * @return a GenericSchema that can be used to create a producer and build records
+     * @throws IllegalArgumentException if a field name is not a valid Avro name
+     */
+    public static GenericSchema<GenericRecord> toPulsarSchema(final RecordSchema recordSchema) {
+        return toPulsarRecordSchema(recordSchema).getPulsarSchema();
+    }
+
+    /**
+     * Builds the Pulsar AVRO schema that corresponds to the given NiFi record schema, along with the schemas
+     * that are needed to convert records of that schema by {@link #toGenericRecord(Record, PulsarRecordSchema)}.
+     *
+     * @param recordSchema the NiFi record schema
+     * @throws IllegalArgumentException if a field name is not a valid Avro name
+     */
+    public static PulsarRecordSchema toPulsarRecordSchema(final RecordSchema recordSchema) {
+        final String recordName = recordSchema.getIdentifier() != null && recordSchema.getIdentifier().getName().isPresent()
+                && AVRO_NAME.matcher(recordSchema.getIdentifier().getName().get()).matches()
+                ? recordSchema.getIdentifier().getName().get() : DEFAULT_RECORD_NAME;
+
+        final AvroRecords names = new AvroRecords();
+        final Schema avroSchema = toAvroRecord(recordName, recordSchema, names);
+        final GenericSchema<GenericRecord> pulsarSchema = toGenericSchema(recordName, avroSchema.toString());
+
+        // A nested record must be built with a schema of the same name as the branch of the union in its parent, so
+        // each nested record schema gets a standalone definition of the Avro record that the parent refers to.
+        final Map<RecordSchema, GenericSchema<GenericRecord>> childSchemas = new HashMap<>();
+        for (Map.Entry<RecordSchema, Schema> entry : names.records.entrySet()) {
+            childSchemas.put(entry.getKey(), entry.getValue() == avroSchema
+                    ? pulsarSchema : toGenericSchema(entry.getValue().getName(), entry.getValue().toString()));
+        }
+
+        return new PulsarRecordSchema(recordSchema, pulsarSchema, childSchemas);
+    }
+
+    private static GenericSchema<GenericRecord> toGenericSchema(final String name, final String definition) {
+        final SchemaInfo schemaInfo = SchemaInfo.builder()
+                .name(name)
+                .type(SchemaType.AVRO)
+                .schema(definition.getBytes(StandardCharsets.UTF_8))
+                .properties(new HashMap<>())
+                .build();
+
+        return org.apache.pulsar.client.api.Schema.generic(schemaInfo);
+    }
+
+    /**
+     * Converts a NiFi Record into a Pulsar GenericRecord of the given schema, which must have been created
+     * from the record's schema.
+     */
+    public static GenericRecord toGenericRecord(final Record record, final PulsarRecordSchema schema) {
+        return buildRecord(record, schema.getRecordSchema(), schema.getPulsarSchema().newRecordBuilder(), schema);
+    }
+
+    private static GenericRecord buildRecord(final Record record, final RecordSchema recordSchema, final GenericRecordBuilder builder,
+                                             final PulsarRecordSchema schema) {
+        for (RecordField field : recordSchema.getFields()) {
+            final Object value = toAvroValue(record.getValue(field), field.getDataType(), field.getFieldName(), schema);
+            if (value != null) {
+                builder.set(field.getFieldName(), value);
+            }
+        }
+        return builder.build();
+    }
+
+    private static Object toAvroValue(final Object value, final DataType dataType, final String fieldName,
+                                      final PulsarRecordSchema schema) {
+        if (value == null) {
+            return null;
+        }
+
+        switch (dataType.getFieldType()) {
+            case BOOLEAN:
+                return DataTypeUtils.toBoolean(value, fieldName);
+            case BYTE:
+            case SHORT:
+            case INT:
+                return DataTypeUtils.toInteger(value, fieldName);
+            case LONG:
+                return DataTypeUtils.toLong(value, fieldName);
+            case FLOAT:
+                return DataTypeUtils.toFloat(value, fieldName);
+            case DOUBLE:
+                return DataTypeUtils.toDouble(value, fieldName);
+            case DATE:
+                return (int) DataTypeUtils.toDate(value, () -> null, fieldName).toLocalDate().toEpochDay();
+            case TIME:
+                // Milliseconds into the day, counted from a floor, since a time of day east of UTC and before midnight UTC is before the epoch
+                return (int) Math.floorMod(DataTypeUtils.toTime(value, () -> null, fieldName).getTime(), 86_400_000L);
+            case TIMESTAMP:
+                return DataTypeUtils.toTimestamp(value, () -> null, fieldName).getTime();
+            case ARRAY:
+                final DataType elementType = ((ArrayDataType) dataType).getElementType();
+                if (elementType.getFieldType() == RecordFieldType.BYTE) {
+                    return toByteBuffer(value);
+                }
+                final Object[] array = (Object[]) value;
+                final List<Object> list = new ArrayList<>(array.length);
+                for (Object element : array) {
+                    list.add(toAvroValue(element, elementType, fieldName, schema));
+                }
+                return list;
+            case MAP:
+                final DataType valueType = ((MapDataType) dataType).getValueType();
+                final Map<String, Object> map = new HashMap<>();
+                for (Map.Entry<String, Object> entry : DataTypeUtils.toMap(value, fieldName).entrySet()) {
+                    map.put(entry.getKey(), toAvroValue(entry.getValue(), valueType, fieldName, schema));
+                }
+                return map;
+            case RECORD:
+                final RecordSchema childSchema = ((RecordDataType) dataType).getChildSchema();
+                final Record child = (Record) value;
+                return buildRecord(child, childSchema, schema.getChildSchema(childSchema).newRecordBuilder(), schema).getNativeObject();
+            case CHOICE:
+                final DataType chosen = DataTypeUtils.chooseDataType(value, (ChoiceDataType) dataType);
+                return chosen == null ? null : toAvroValue(value, chosen, fieldName, schema);
+            default:
+                return DataTypeUtils.toString(value, (String) null);
+        }
+    }
+
+    private static ByteBuffer toByteBuffer(final Object value) {
+        if (value instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) value);
+        }
+
+        // The record API represents bytes as an array of Byte objects
+        final Object[] array = (Object[]) value;
+        final byte[] bytes = new byte[array.length];
+        for (int i = 0; i < array.length; i++) {
+            bytes[i] = ((Number) array[i]).byteValue();
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static Schema toAvroRecord(final String name, final RecordSchema recordSchema, final AvroRecords names) {
+        final Schema record = Schema.createRecord(name, null, null, false);
+        names.records.put(recordSchema, record);
+
+        final List<Schema.Field> fields = new ArrayList<>();
+        for (RecordField field : recordSchema.getFields()) {
+            if (!AVRO_NAME.matcher(field.getFieldName()).matches()) {
+                throw new IllegalArgumentException("Field name '" + field.getFieldName() + "' is not a valid Avro name");
+            }
+            fields.add(new Schema.Field(field.getFieldName(), toNullableSchema(field.getDataType(), field.getFieldName(), names),
+                    null, Schema.Field.NULL_DEFAULT_VALUE));
+        }
+        record.setFields(fields);
+        return record;
+    }
+
+    /**
+     * Returns the union of null and the Avro schemas of the given NiFi data type. A CHOICE contributes one branch per
+     * distinct sub type, since Avro does not allow unions to be nested.
+     */
+    private static Schema toNullableSchema(final DataType dataType, final String fieldName, final AvroRecords names) {
+        final Set<Schema> branches = new LinkedHashSet<>();
+        branches.add(Schema.create(Schema.Type.NULL));
+        addSchemas(branches, dataType, fieldName, names);
+        return Schema.createUnion(new ArrayList<>(branches));
+    }
+
+    private static void addSchemas(final Set<Schema> branches, final DataType dataType, final String fieldName, final AvroRecords names) {
+        if (dataType.getFieldType() == RecordFieldType.CHOICE) {
+            for (DataType subType : ((ChoiceDataType) dataType).getPossibleSubTypes()) {
+                addSchemas(branches, subType, fieldName, names);
+            }
+        } else {
+            branches.add(toSchema(dataType, fieldName, names));
+        }
+    }
+
+    private static Schema toSchema(final DataType dataType, final String fieldName, final AvroRecords names) {
+        switch (dataType.getFieldType()) {
+            case BOOLEAN:
+                return Schema.create(Schema.Type.BOOLEAN);
+            case BYTE:
+            case SHORT:
+            case INT:
+                return Schema.create(Schema.Type.INT);
+            case LONG:
+                return Schema.create(Schema.Type.LONG);
+            case FLOAT:
+                return Schema.create(Schema.Type.FLOAT);
+            case DOUBLE:
+                return Schema.create(Schema.Type.DOUBLE);
+            case DATE:
+                return LogicalTypes.date().addToSchema(Schema.create(Schema.Type.INT));
+            case TIME:
+                return LogicalTypes.timeMillis().addToSchema(Schema.create(Schema.Type.INT));
+            case TIMESTAMP:
+                return LogicalTypes.timestampMillis().addToSchema(Schema.create(Schema.Type.LONG));
+            case ARRAY:
+                final DataType elementType = ((ArrayDataType) dataType).getElementType();
+                if (elementType.getFieldType() == RecordFieldType.BYTE) {
+                    return Schema.create(Schema.Type.BYTES);
+                }
+                return Schema.createArray(toNullableSchema(elementType, fieldName, names));
+            case MAP:
+                return Schema.createMap(toNullableSchema(((MapDataType) dataType).getValueType(), fieldName, names));
+            case RECORD:
+                // A record schema that occurs more than once is the same Avro record, which Avro writes out by name
+                // after its first definition, since record names must be unique within a schema
+                final RecordSchema childSchema = ((RecordDataType) dataType).getChildSchema();
+                final Schema existing = names.records.get(childSchema);
+                return existing != null ? existing : toAvroRecord(fieldName + "_record" + (++names.counter), childSchema, names);
+            default:
+                return Schema.create(Schema.Type.STRING);
+        }
+    }
+
+    /**
+     * The Avro records built so far for the record schemas of a schema, including the schema itself.
+     */
+    private static final class AvroRecords {
+        private final Map<RecordSchema, Schema> records = new LinkedHashMap<>();
+        private int counter = 0;
+    }
+
+    /**
+     * Returns true if messages with the given Pulsar schema are decoded into GenericRecords whose schema
+     * can be converted by {@link #toRecordSchema(SchemaInfo)}.
+     */
+    public static boolean isRecordSchema(final SchemaInfo schemaInfo) {
+        return schemaInfo != null && (schemaInfo.getType() == SchemaType.AVRO || schemaInfo.getType() == SchemaType.JSON);
+    }
+
+    /**
+     * Builds the NiFi record schema that corresponds to a Pulsar AVRO or JSON schema. Both schema types
+     * hold an Avro schema definition. Enums and fixed types are represented as strings.
+     *
+     * @param schemaInfo the Pulsar schema
+     * @return the NiFi record schema
+     * @throws IllegalArgumentException if the schema definition cannot be parsed, or is not a record
+     */
+    public static RecordSchema toRecordSchema(final SchemaInfo schemaInfo) {
+        final Schema definition;
+        try {
+            definition = new Schema.Parser().parse(new String(schemaInfo.getSchema(), StandardCharsets.UTF_8));
+        } catch (AvroRuntimeException e) {
+            throw new IllegalArgumentException("Unable to parse the definition of schema '" + schemaInfo.getName() + "'", e);
+        }
+
+        if (definition.getType() != Schema.Type.RECORD) {
+            throw new IllegalArgumentException("Schema '" + schemaInfo.getName() + "' is not a record schema");
+        }
+        return ((RecordDataType) toDataType(definition, new IdentityHashMap<>())).getChildSchema();
+    }
+
+    /**
+     * Converts a Pulsar GenericRecord into a NiFi Record using a schema created by {@link #toRecordSchema(SchemaInfo)}
+     * from the Pulsar schema that the record was decoded with.
+     */
+    public static Record toRecord(final GenericRecord genericRecord, final RecordSchema recordSchema) {
+        final Map<String, Object> values = new HashMap<>();
+        for (RecordField field : recordSchema.getFields()) {
+            values.put(field.getFieldName(), toNiFiValue(genericRecord.getField(field.getFieldName()), field.getDataType()));
+        }
+        return new MapRecord(recordSchema, values);
+    }
+
+    private static Record toRecord(final IndexedRecord avroRecord, final RecordSchema recordSchema) {
+        final Map<String, Object> values = new HashMap<>();
+        for (RecordField field : recordSchema.getFields()) {
+            final Schema.Field avroField = avroRecord.getSchema().getField(field.getFieldName());
+            if (avroField != null) {
+                values.put(field.getFieldName(), toNiFiValue(avroRecord.get(avroField.pos()), field.getDataType()));
+            }
+        }
+        return new MapRecord(recordSchema, values);
+    }
+
+    private static Object toNiFiValue(final Object value, final DataType dataType) {
+        if (value == null) {
+            return null;
+        }
+
+        switch (dataType.getFieldType()) {
+            case RECORD:
+                if (value instanceof GenericRecord) {
+                    return toRecord((GenericRecord) value, ((RecordDataType) dataType).getChildSchema());
+                }
+                if (value instanceof IndexedRecord) {
+                    // Records nested in arrays and maps are not wrapped by Pulsar, so read the Avro record directly
+                    return toRecord((IndexedRecord) value, ((RecordDataType) dataType).getChildSchema());
+                }
+                break;
+            case ARRAY:
+                final DataType elementType = ((ArrayDataType) dataType).getElementType();
+                if (value instanceof ByteBuffer || value instanceof byte[]) {
+                    return ArrayUtils.toObject(toBytes(value));
+                }
+
+                // JSON arrays are exposed as records without any fields, so read them from the underlying JSON
+                final Object elements = value instanceof GenericRecord ? parseJsonArray((GenericRecord) value) : value;
+                if (elements instanceof Collection) {
+                    final Collection<?> collection = (Collection<?>) elements;
+                    final Object[] array = new Object[collection.size()];
+                    int idx = 0;
+                    for (Object element : collection) {
+                        array[idx++] = toNiFiValue(element, elementType);
+                    }
+                    return array;
+                }
+                break;
+            case MAP:
+                final DataType valueType = ((MapDataType) dataType).getValueType();
+                final Map<String, Object> map = new LinkedHashMap<>();
+                if (value instanceof GenericRecord) {
+                    // JSON maps are exposed as records whose fields are the keys of the map
+                    final GenericRecord record = (GenericRecord) value;
+                    for (Field field : record.getFields()) {
+                        map.put(field.getName(), toNiFiValue(record.getField(field), valueType));
+                    }
+                    return map;
+                }
+                if (value instanceof Map) {
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        map.put(entry.getKey().toString(), toNiFiValue(entry.getValue(), valueType));
+                    }
+                    return map;
+                }
+                break;
+            case DATE:
+                if (value instanceof Number) {
+                    return java.sql.Date.valueOf(LocalDate.ofEpochDay(((Number) value).longValue()));
+                }
+                break;
+            case TIME:
+                if (value instanceof Number) {
+                    return new Time(((Number) value).longValue());
+                }
+                break;
+            case TIMESTAMP:
+                if (value instanceof Number) {
+                    return new Timestamp(((Number) value).longValue());
+                }
+                break;
+            case DECIMAL:
+                if (value instanceof ByteBuffer || value instanceof byte[]) {
+                    return new BigDecimal(new BigInteger(toBytes(value)), ((DecimalDataType) dataType).getScale());
+                }
+                break;
+            case CHOICE:
+                final ChoiceDataType choiceDataType = (ChoiceDataType) dataType;
+                if (value instanceof GenericRecord || value instanceof IndexedRecord) {
+                    for (DataType subType : choiceDataType.getPossibleSubTypes()) {
+                        if (subType.getFieldType() == RecordFieldType.RECORD) {
+                            return toNiFiValue(value, subType);
+                        }
+                    }
+                }
+                final Object normalized = value instanceof CharSequence ? value.toString() : value;
+                final DataType chosen = DataTypeUtils.chooseDataType(normalized, choiceDataType);
+                return chosen == null ? normalized : toNiFiValue(value, chosen);
+            case STRING:
+                return value.toString();
+            default:
+                break;
+        }
+
+        // Avro strings are decoded as Utf8 rather than String
+        return value instanceof CharSequence ? value.toString() : value;
+    }
+
+    private static byte[] toBytes(final Object value) {
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+
+        // Read from a duplicate, so that the position of the record's buffer is left untouched
+        final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static Object parseJsonArray(final GenericRecord record) {
+        try {
+            return parseJson(record.getNativeObject().toString());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read JSON array", e);
+        }
+    }
+
+    /**
+     * Returns the NiFi data type of an Avro schema. Records are registered before their fields are converted, so
+     * that recursive references to them resolve to the same data type.
+     */
+    private static DataType toDataType(final Schema avroSchema, final Map<Schema, DataType> records) {
+        final LogicalType logicalType = avroSchema.getLogicalType();
+
+        switch (avroSchema.getType()) {
+            case UNION:
+                final List<DataType> subTypes = new ArrayList<>();
+                for (Schema branch : avroSchema.getTypes()) {
+                    if (branch.getType() != Schema.Type.NULL) {
+                        subTypes.add(toDataType(branch, records));
+                    }
+                }
+                return subTypes.size() == 1 ? subTypes.get(0) : RecordFieldType.CHOICE.getChoiceDataType(subTypes);
+            case RECORD:
+                final DataType known = records.get(avroSchema);
+                if (known != null) {
+                    return known;
+                }
+
+                final SimpleRecordSchema recordSchema = new SimpleRecordSchema(SchemaIdentifier.builder().name(avroSchema.getName()).build());
+                final DataType recordType = RecordFieldType.RECORD.getRecordDataType(recordSchema);
+                records.put(avroSchema, recordType);
+
+                final List<RecordField> fields = new ArrayList<>();
+                for (Schema.Field field : avroSchema.getFields()) {
+                    final boolean nullable = field.schema().getType() == Schema.Type.UNION
+                            && field.schema().getTypes().stream().anyMatch(branch -> branch.getType() == Schema.Type.NULL);
+                    fields.add(new RecordField(field.name(), toDataType(field.schema(), records), nullable));
+                }
+                recordSchema.setFields(fields);
+                return recordType;
+            case ARRAY:
+                return RecordFieldType.ARRAY.getArrayDataType(toDataType(avroSchema.getElementType(), records));
+            case MAP:
+                return RecordFieldType.MAP.getMapDataType(toDataType(avroSchema.getValueType(), records));
+            case BOOLEAN:
+                return RecordFieldType.BOOLEAN.getDataType();
+            case INT:
+                if (logicalType instanceof LogicalTypes.Date) {
+                    return RecordFieldType.DATE.getDataType();
+                }
+                if (logicalType instanceof LogicalTypes.TimeMillis) {
+                    return RecordFieldType.TIME.getDataType();
+                }
+                return RecordFieldType.INT.getDataType();
+            case LONG:
+                if (logicalType instanceof LogicalTypes.TimestampMillis) {
+                    return RecordFieldType.TIMESTAMP.getDataType();
+                }
+                return RecordFieldType.LONG.getDataType();
+            case FLOAT:
+                return RecordFieldType.FLOAT.getDataType();
+            case DOUBLE:
+                return RecordFieldType.DOUBLE.getDataType();
+            case BYTES:
+                if (logicalType instanceof LogicalTypes.Decimal) {
+                    final LogicalTypes.Decimal decimal = (LogicalTypes.Decimal) logicalType;
+                    return RecordFieldType.DECIMAL.getDecimalDataType(decimal.getPrecision(), decimal.getScale());
+                }
+                return RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.BYTE.getDataType());
+            default:
+                // Strings, and the enums and fixed types that have no NiFi equivalent
+                return RecordFieldType.STRING.getDataType();
+        }
+    }
+
+    /**
+     * Parses a JSON document into Maps, Lists and the boxed values of its scalars. The records of JSON schemas expose
+     * their arrays as the underlying JSON, which is read with this rather than with Avro.
+     */
+    private static Object parseJson(final String json) throws IOException {
+        try (final JsonParser parser = JSON_FACTORY.createParser(json)) {
+            parser.nextToken();
+            return readJsonValue(parser);
+        }
+    }
+
+    private static Object readJsonValue(final JsonParser parser) throws IOException {
+        final JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            throw new IOException("Unexpected end of JSON input");
+        }
+
+        switch (token) {
+            case START_OBJECT:
+                final Map<String, Object> map = new LinkedHashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    parser.nextToken();
+                    map.put(name, readJsonValue(parser));
+                }
+                return map;
+            case START_ARRAY:
+                final List<Object> list = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(readJsonValue(parser));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new IOException("Unexpected JSON token " + token);
+        }
+    }
+}
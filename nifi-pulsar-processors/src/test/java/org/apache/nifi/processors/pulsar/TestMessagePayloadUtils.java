@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.nifi.processors.pulsar.utils.MessagePayloadUtils;
+import org.apache.pulsar.client.api.Message;
+import org.junit.Test;
+
+public class TestMessagePayloadUtils {
+
+    private static final byte[] PAYLOAD = "Mocked Message".getBytes(StandardCharsets.UTF_8);
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void directBufferTest() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(PAYLOAD.length);
+        buffer.put(PAYLOAD).flip();
+        final Message<ByteBuffer> msg = mock(Message.class);
+        when(msg.getValue()).thenReturn(buffer);
+
+        final ByteBuffer payload = MessagePayloadUtils.getPayload(msg);
+        assertEquals(PAYLOAD.length, payload.remaining());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePayloadUtils.writePayload(payload, out);
+        MessagePayloadUtils.writePayload(payload, out);
+        assertArrayEquals((new String(PAYLOAD, StandardCharsets.UTF_8) + new String(PAYLOAD, StandardCharsets.UTF_8))
+                .getBytes(StandardCharsets.UTF_8), out.toByteArray());
+
+        // Writing the payload must not consume it
+        assertEquals(PAYLOAD.length, payload.remaining());
+        verify(msg, never()).getData();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void heapBufferTest() throws IOException {
+        final Message<ByteBuffer> msg = mock(Message.class);
+        when(msg.getValue()).thenReturn(ByteBuffer.wrap(PAYLOAD, 7, PAYLOAD.length - 7));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePayloadUtils.writePayload(MessagePayloadUtils.getPayload(msg), out);
+        assertArrayEquals("Message".getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        verify(msg, never()).getData();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void nullValueTest() throws IOException {
+        final Message<ByteBuffer> msg = mock(Message.class);
+
+        final ByteBuffer payload = MessagePayloadUtils.getPayload(msg);
+        assertEquals(0, payload.remaining());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePayloadUtils.writePayload(payload, out);
+        assertEquals(0, out.size());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processors.pulsar.pubsub.mocks.MockPulsarClientService;
+import org.apache.nifi.processors.pulsar.utils.PublisherLease;
+import org.apache.nifi.processors.pulsar.utils.PublisherPool;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPublisherPool {
+
+    private MockPulsarClientService<byte[]> mockClientService;
+    private final AtomicLong clock = new AtomicLong(0L);
+
+    @Before
+    public void setUp() {
+        mockClientService = new MockPulsarClientService<byte[]>();
+    }
+
+    private PublisherPool createPool(int maxIdle, long idleTimeoutMillis) {
+        return new PublisherPool(mock(ComponentLog.class), new HashMap<>(),
+                mockClientService.getPulsarClient(), maxIdle, idleTimeoutMillis,
+                PublisherLease.DEFAULT_MAX_IN_FLIGHT_MESSAGES, PublisherLease.DEFAULT_MAX_IN_FLIGHT_BYTES, clock::get);
+    }
+
+    @Test
+    public void reuseProducerTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 60_000L);
+
+        PublisherLease first = pool.obtainPublisher("my-topic");
+        first.close();
+
+        PublisherLease second = pool.obtainPublisher("my-topic");
+        assertSame(first, second);
+
+        // Only one producer should have been created, and it must still be open.
+        verify(mockClientService.getMockProducerBuilder(), times(1)).create();
+        verify(mockClientService.getMockProducer(), never()).close();
+    }
+
+    @Test
+    public void concurrentLeasesTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 60_000L);
+
+        PublisherLease first = pool.obtainPublisher("my-topic");
+        PublisherLease second = pool.obtainPublisher("my-topic");
+
+        // A lease is never shared by two concurrent callers
+        assertNotSame(first, second);
+        verify(mockClientService.getMockProducerBuilder(), times(2)).create();
+    }
+
+    @Test
+    public void schemaKeyTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 60_000L);
+
+        PublisherLease first = pool.obtainPublisher("my-topic", Schema.STRING, "schema-a");
+        first.close();
+
+        // Producers are only shared by leases for the same topic and schema
+        PublisherLease second = pool.obtainPublisher("my-topic", Schema.STRING, "schema-b");
+        assertNotSame(first, second);
+        second.close();
+
+        assertSame(first, pool.obtainPublisher("my-topic", Schema.STRING, "schema-a"));
+        assertNotSame(first, pool.obtainPublisher("my-topic"));
+        verify(mockClientService.getMockProducerBuilder(), times(3)).create();
+    }
+
+    @Test
+    public void blankTopicTest() {
+        PublisherPool pool = createPool(10, 60_000L);
+        assertNull(pool.obtainPublisher(" "));
+    }
+
+    @Test
+    public void maxIdleProducersTest() throws PulsarClientException {
+        PublisherPool pool = createPool(1, 60_000L);
+
+        PublisherLease first = pool.obtainPublisher("topic-a");
+        PublisherLease second = pool.obtainPublisher("topic-b");
+        first.close();
+        second.close();
+
+        // The second lease didn't fit into the pool, so its producer must have been closed.
+        verify(mockClientService.getMockProducer(), times(1)).close();
+    }
+
+    @Test
+    public void poisonedLeaseTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 60_000L);
+
+        PublisherLease lease = pool.obtainPublisher("my-topic");
+        lease.poison();
+        lease.close();
+
+        verify(mockClientService.getMockProducer(), times(1)).close();
+        assertNotSame(lease, pool.obtainPublisher("my-topic"));
+    }
+
+    @Test
+    public void disconnectedProducerTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 60_000L);
+
+        PublisherLease lease = pool.obtainPublisher("my-topic");
+        lease.close();
+
+        when(mockClientService.getMockProducer().isConnected()).thenReturn(false);
+        assertNotSame(lease, pool.obtainPublisher("my-topic"));
+        verify(mockClientService.getMockProducer(), times(1)).close();
+    }
+
+    @Test
+    public void idleEvictionTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 10L);
+
+        PublisherLease lease = pool.obtainPublisher("my-topic");
+        lease.close();
+
+        // The producer is idle, but the eviction interval hasn't passed yet
+        clock.addAndGet(500L);
+        pool.obtainPublisher("other-topic");
+        verify(mockClientService.getMockProducer(), never()).close();
+
+        // Move past both the idle timeout and the eviction interval
+        clock.addAndGet(600L);
+        pool.obtainPublisher("other-topic");
+        verify(mockClientService.getMockProducer(), times(1)).close();
+    }
+
+    @Test
+    public void backgroundEvictionTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 10L);
+
+        PublisherLease lease = pool.obtainPublisher("my-topic");
+        lease.close();
+
+        // The producer is closed without any further leases being obtained from the pool
+        clock.addAndGet(1_100L);
+        verify(mockClientService.getMockProducer(), timeout(5_000L)).close();
+        pool.close();
+    }
+
+    @Test
+    public void closeTest() throws PulsarClientException {
+        PublisherPool pool = createPool(10, 60_000L);
+
+        PublisherLease leaseA = pool.obtainPublisher("topic-a");
+        PublisherLease leaseB = pool.obtainPublisher("topic-b");
+        leaseA.close();
+
+        pool.close();
+        verify(mockClientService.getMockProducer(), times(1)).close();
+
+        // Leases that are still in use are closed once they are released.
+        leaseB.close();
+        verify(mockClientService.getMockProducer(), times(2)).close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void obtainFromClosedPoolTest() {
+        PublisherPool pool = createPool(10, 60_000L);
+        pool.close();
+        pool.obtainPublisher("my-topic");
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.pulsar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.processors.pulsar.utils.PulsarRecordSchema;
+import org.apache.nifi.processors.pulsar.utils.PulsarSchemaUtils;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
+import org.apache.pulsar.common.schema.SchemaInfo;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.junit.Test;
+
+public class TestPulsarSchemaUtils {
+
+    @Test
+    public void roundTripTest() {
+        final RecordSchema addressSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("city", RecordFieldType.STRING.getDataType())));
+
+        final List<RecordField> fields = new ArrayList<>();
+        fields.add(new RecordField("name", RecordFieldType.STRING.getDataType()));
+        fields.add(new RecordField("age", RecordFieldType.INT.getDataType()));
+        fields.add(new RecordField("tags", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())));
+        fields.add(new RecordField("scores", RecordFieldType.MAP.getMapDataType(RecordFieldType.LONG.getDataType())));
+        fields.add(new RecordField("address", RecordFieldType.RECORD.getRecordDataType(addressSchema)));
+        fields.add(new RecordField("nickname", RecordFieldType.STRING.getDataType()));
+        final RecordSchema schema = new SimpleRecordSchema(fields);
+
+        final Map<String, Object> scores = new HashMap<>();
+        scores.put("math", 90L);
+
+        final Map<String, Object> values = new HashMap<>();
+        values.put("name", "Mary Jane");
+        values.put("age", 32);
+        values.put("tags", new Object[] {"a", "b"});
+        values.put("scores", scores);
+        values.put("address", new MapRecord(addressSchema, new HashMap<>(Collections.singletonMap("city", "Springfield"))));
+
+        final GenericSchema<GenericRecord> pulsarSchema = PulsarSchemaUtils.toPulsarSchema(schema);
+        final GenericRecord genericRecord = PulsarSchemaUtils.toGenericRecord(new MapRecord(schema, values),
+                PulsarSchemaUtils.toPulsarRecordSchema(schema));
+
+        final RecordSchema converted = PulsarSchemaUtils.toRecordSchema(pulsarSchema.getSchemaInfo());
+        assertEquals(schema.getFieldNames(), converted.getFieldNames());
+        assertEquals(RecordFieldType.INT, converted.getDataType("age").get().getFieldType());
+        assertEquals(RecordFieldType.RECORD, converted.getDataType("address").get().getFieldType());
+        assertTrue(converted.getField("nickname").get().isNullable());
+
+        final Record record = PulsarSchemaUtils.toRecord(genericRecord, converted);
+        assertEquals("Mary Jane", record.getValue("name"));
+        assertEquals(32, record.getValue("age"));
+        assertArrayEquals(new Object[] {"a", "b"}, (Object[]) record.getValue("tags"));
+        assertEquals(scores, record.getValue("scores"));
+        assertEquals("Springfield", ((Record) record.getValue("address")).getValue("city"));
+        assertNull(record.getValue("nickname"));
+    }
+
+    @Test
+    public void encodeRoundTripTest() {
+        final RecordSchema citySchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("name", RecordFieldType.STRING.getDataType())));
+        final RecordSchema addressSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("street", RecordFieldType.STRING.getDataType()),
+                new RecordField("city", RecordFieldType.RECORD.getRecordDataType(citySchema))));
+
+        final List<RecordField> fields = new ArrayList<>();
+        fields.add(new RecordField("home", RecordFieldType.RECORD.getRecordDataType(addressSchema)));
+        fields.add(new RecordField("work", RecordFieldType.RECORD.getRecordDataType(addressSchema)));
+        fields.add(new RecordField("visited", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.RECORD.getRecordDataType(citySchema))));
+        fields.add(new RecordField("scores", RecordFieldType.MAP.getMapDataType(RecordFieldType.INT.getDataType())));
+        final RecordSchema schema = new SimpleRecordSchema(fields);
+
+        final Map<String, Object> scores = new HashMap<>();
+        scores.put("math", 90);
+        scores.put("art", 75);
+
+        final Map<String, Object> values = new HashMap<>();
+        values.put("home", address(addressSchema, citySchema, "Evergreen Terrace", "Springfield"));
+        values.put("work", address(addressSchema, citySchema, "Main Street", "Shelbyville"));
+        values.put("visited", new Object[] {city(citySchema, "Capital City"), city(citySchema, "Ogdenville")});
+        values.put("scores", scores);
+
+        final PulsarRecordSchema pulsarSchema = PulsarSchemaUtils.toPulsarRecordSchema(schema);
+        final GenericRecord genericRecord = PulsarSchemaUtils.toGenericRecord(new MapRecord(schema, values), pulsarSchema);
+
+        // Encoding resolves every nested record against the unions of the parent schema
+        final byte[] encoded = pulsarSchema.getPulsarSchema().encode(genericRecord);
+        final GenericRecord decoded = pulsarSchema.getPulsarSchema().decode(encoded);
+
+        final Record record = PulsarSchemaUtils.toRecord(decoded, PulsarSchemaUtils.toRecordSchema(pulsarSchema.getPulsarSchema().getSchemaInfo()));
+        final Record home = (Record) record.getValue("home");
+        assertEquals("Evergreen Terrace", home.getValue("street"));
+        assertEquals("Springfield", ((Record) home.getValue("city")).getValue("name"));
+        assertEquals("Shelbyville", ((Record) ((Record) record.getValue("work")).getValue("city")).getValue("name"));
+
+        final Object[] visited = (Object[]) record.getValue("visited");
+        assertEquals(2, visited.length);
+        assertEquals("Capital City", ((Record) visited[0]).getValue("name"));
+        assertEquals("Ogdenville", ((Record) visited[1]).getValue("name"));
+        assertEquals(scores, record.getValue("scores"));
+    }
+
+    private static Record city(final RecordSchema citySchema, final String name) {
+        return new MapRecord(citySchema, new HashMap<>(Collections.singletonMap("name", name)));
+    }
+
+    private static Record address(final RecordSchema addressSchema, final RecordSchema citySchema, final String street, final String city) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("street", street);
+        values.put("city", city(citySchema, city));
+        return new MapRecord(addressSchema, values);
+    }
+
+    @Test
+    public void namedTypeReferenceTest() {
+        final String definition = "{\"type\":\"record\",\"name\":\"Trip\",\"namespace\":\"test\",\"fields\":["
+                + "{\"name\":\"start\",\"type\":{\"type\":\"record\",\"name\":\"Point\",\"fields\":[{\"name\":\"x\",\"type\":\"double\"}]}},"
+                + "{\"name\":\"end\",\"type\":\"Point\"},"
+                + "{\"name\":\"day\",\"type\":{\"type\":\"int\",\"logicalType\":\"date\"}},"
+                + "{\"name\":\"kind\",\"type\":{\"type\":\"enum\",\"name\":\"Kind\",\"symbols\":[\"A\",\"B\"]}},"
+                + "{\"name\":\"value\",\"type\":[\"null\",\"int\",\"string\"]}]}";
+
+        final RecordSchema schema = PulsarSchemaUtils.toRecordSchema(avroSchemaInfo(definition));
+
+        final RecordDataType start = (RecordDataType) schema.getDataType("start").get();
+        assertEquals(start, schema.getDataType("end").get());
+        assertEquals(RecordFieldType.DOUBLE, start.getChildSchema().getDataType("x").get().getFieldType());
+        assertEquals(RecordFieldType.DATE, schema.getDataType("day").get().getFieldType());
+        assertEquals(RecordFieldType.STRING, schema.getDataType("kind").get().getFieldType());
+        assertEquals(RecordFieldType.CHOICE, schema.getDataType("value").get().getFieldType());
+        assertFalse(schema.getField("start").get().isNullable());
+    }
+
+    @Test
+    public void timeBeforeEpochTest() {
+        final RecordSchema schema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("at", RecordFieldType.TIME.getDataType())));
+
+        // 23:00 UTC on the day before the epoch, as for 01:00 local time in UTC+2
+        final GenericRecord genericRecord = PulsarSchemaUtils.toGenericRecord(
+                new MapRecord(schema, new HashMap<>(Collections.singletonMap("at", new Time(-3_600_000L)))),
+                PulsarSchemaUtils.toPulsarRecordSchema(schema));
+
+        assertEquals(82_800_000, genericRecord.getField("at"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notARecordTest() {
+        PulsarSchemaUtils.toRecordSchema(avroSchemaInfo("\"string\""));
+    }
+
+    private static SchemaInfo avroSchemaInfo(String definition) {
+        return SchemaInfo.builder()
+                .name("test")
+                .type(SchemaType.AVRO)
+                .schema(definition.getBytes(StandardCharsets.UTF_8))
+                .properties(new HashMap<>())
+                .build();
+    }
+}
@@ -21,6 +21,7 @@ import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunners;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.SubscriptionType;
 import org.apache.pulsar.client.api.schema.GenericRecord;
@@ -32,11 +33,17 @@ import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -45,6 +52,8 @@ public class TestConsumePulsar extends AbstractPulsarProcessorTest<byte[]> {
     @Mock
     protected Message<GenericRecord> mockMessage;
 
+    protected MessageId mockMessageId;
+
     @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
 
     @SuppressWarnings("unchecked")
@@ -52,6 +61,14 @@ public class TestConsumePulsar extends AbstractPulsarProcessorTest<byte[]> {
     public void init() throws InitializationException {
         runner = TestRunners.newTestRunner(ConsumePulsar.class);
         mockMessage = mock(Message.class);
+        mockMessageId = mock(MessageId.class);
+        when(mockMessage.getMessageId()).thenReturn(mockMessageId);
+
+        // ConsumePulsar consumes with Schema.BYTEBUFFER, which decodes the value of a message by wrapping its data
+        doAnswer(invocation -> {
+            final byte[] data = mockMessage.getData();
+            return data == null ? null : ByteBuffer.wrap(data);
+        }).when(mockMessage).getValue();
         addPulsarClientService();
     }
 
@@ -162,24 +179,12 @@ public class TestConsumePulsar extends AbstractPulsarProcessorTest<byte[]> {
         
         flowFiles.get(0).assertContentEquals(sb.toString());
 
-        boolean shared = isSharedSubType(subType);
-        
         // Verify that every message was acknowledged
         verify(mockClientService.getMockConsumer(), times(batchSize)).receive(0, TimeUnit.SECONDS);
-        
-        if (shared) {
-        	if (async) {
-        		verify(mockClientService.getMockConsumer(), times(batchSize)).acknowledgeAsync(mockMessage);
-        	} else {
-        		verify(mockClientService.getMockConsumer(), times(batchSize)).acknowledge(mockMessage);
-        	}
-        } else {
-        	if (async) {
-                verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulativeAsync(mockMessage);        		
-        	} else {
-                verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);        		
-        	}
-        }
+
+        // Every message in the batch is acknowledged individually with a single call, once the session is committed
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(argThat((List<MessageId> ids) -> ids.size() == batchSize));
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeCumulativeAsync(any(MessageId.class));
     }
 
     protected void sendMessages(String msg, String topic, String sub, boolean async, int iterations) throws PulsarClientException {
@@ -209,22 +214,9 @@ public class TestConsumePulsar extends AbstractPulsarProcessorTest<byte[]> {
 
         verify(mockClientService.getMockConsumer(), times(iterations)).receive(0, TimeUnit.SECONDS);
 
-        boolean shared = isSharedSubType(subType);
-        
         // Verify that every message was acknowledged
-        if (shared) {
-        	if (async) {
-        		verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeAsync(mockMessage);
-        	} else {
-        		verify (mockClientService.getMockConsumer(), times(iterations)).acknowledge(mockMessage);
-        	}
-        } else {
-        	if (async) {
-        		verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeCumulativeAsync(mockMessage);
-        	} else {
-        		verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeCumulative(mockMessage);
-        	}
-        }        
+        verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeAsync(Collections.singletonList(mockMessageId));
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeCumulativeAsync(any(MessageId.class));
     }
 
     protected void doMappedAttributesTest() throws PulsarClientException {
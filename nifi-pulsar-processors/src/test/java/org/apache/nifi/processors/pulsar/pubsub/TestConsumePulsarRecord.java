@@ -20,7 +20,10 @@ import static org.apache.nifi.processors.pulsar.pubsub.ConsumePulsarRecord.RECOR
 import static org.apache.nifi.processors.pulsar.pubsub.ConsumePulsarRecord.RECORD_WRITER;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -37,6 +40,7 @@ import org.apache.nifi.serialization.record.RecordFieldType;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunners;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.schema.GenericRecord;
 import org.junit.Before;
@@ -54,6 +58,8 @@ public class TestConsumePulsarRecord extends AbstractPulsarProcessorTest<byte[]>
     @Mock
     protected Message<GenericRecord> mockMessage;
 
+    protected MessageId mockMessageId;
+
     protected MockRecordParser readerService;
     protected MockRecordWriter writerService;
 
@@ -62,6 +68,8 @@ public class TestConsumePulsarRecord extends AbstractPulsarProcessorTest<byte[]>
     public void setup() throws InitializationException {
 
         mockMessage = mock(Message.class);
+        mockMessageId = mock(MessageId.class);
+        when(mockMessage.getMessageId()).thenReturn(mockMessageId);
 
         runner = TestRunners.newTestRunner(ConsumePulsarRecord.class);
 
@@ -170,22 +178,10 @@ public class TestConsumePulsarRecord extends AbstractPulsarProcessorTest<byte[]>
 
         verify(mockClientService.getMockConsumer(), times(iterations * batchSize)).receive(0, TimeUnit.SECONDS);
 
-        boolean shared = isSharedSubType(subType);
-        
-        if (shared) {
-        	if (async) {
-        		verify(mockClientService.getMockConsumer(), times(iterations * batchSize)).acknowledgeAsync(mockMessage);
-        	} else {
-        		verify(mockClientService.getMockConsumer(), times(iterations * batchSize)).acknowledge(mockMessage);
-        	}
-        }
-        else {
-        	if (async) {
-        		verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeCumulativeAsync(mockMessage);
-        	} else {
-        		verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeCumulative(mockMessage);
-        	}
-        }
+        // The messages of each batch are acknowledged individually with a single call, once the session is committed,
+        // since a cumulative ack could cover the messages of another batch that has not been committed yet
+        verify(mockClientService.getMockConsumer(), times(iterations)).acknowledgeAsync(argThat((List<MessageId> ids) -> ids.size() == batchSize));
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeCumulativeAsync(any(MessageId.class));
         
         return flowFiles;
     }
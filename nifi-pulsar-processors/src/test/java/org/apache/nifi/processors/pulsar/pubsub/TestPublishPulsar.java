@@ -33,6 +33,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -109,4 +110,44 @@ public class TestPublishPulsar extends AbstractPulsarProcessorTest<byte[]> {
         verify(mockClientService.getMockProducerBuilder(), times(1)).topic("topic-b");
     }
 
+    @Test
+    public void maxPollFlowFilesTest() throws UnsupportedEncodingException {
+        mockClientService.setMockProducer(mockProducer);
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MAX_POLL_FLOWFILES, "5");
+
+        for (int idx = 0; idx < 12; idx++) {
+            runner.enqueue("some content".getBytes("UTF-8"));
+        }
+
+        runner.run(1, true, true);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 5);
+        assertEquals(7, runner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void maxPollSizeTest() throws UnsupportedEncodingException {
+        mockClientService.setMockProducer(mockProducer);
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MAX_POLL_SIZE, "25 B");
+
+        for (int idx = 0; idx < 4; idx++) {
+            runner.enqueue("ten bytes!".getBytes("UTF-8"));
+        }
+
+        // The first poll always takes a FlowFile, however large, so that it can be published on its own.
+        runner.enqueue(new byte[100]);
+
+        runner.run(1, true, true);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 2);
+        assertEquals(3, runner.getQueueSize().getObjectCount());
+
+        runner.clearTransferState();
+        runner.run(2, true, true);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 3);
+        assertEquals(1, runner.getFlowFilesForRelationship(PublishPulsar.REL_SUCCESS).stream()
+                .filter(flowFile -> flowFile.getSize() == 100).count());
+    }
 }
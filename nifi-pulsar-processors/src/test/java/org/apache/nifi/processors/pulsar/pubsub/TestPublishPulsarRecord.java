@@ -73,6 +73,21 @@ public class TestPublishPulsarRecord extends AbstractPulsarProcessorTest<byte[]>
         runner.assertValid();
     }
 
+    @Test
+    public void passThroughValidationTest() {
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.RECORD_PASS_THROUGH, "Newline-Delimited");
+        runner.assertValid();
+
+        // Records are never read when passed through, so a key can't be extracted from them
+        runner.setProperty(PublishPulsarRecord.MESSAGE_KEY_FIELD, "name");
+        runner.assertNotValid();
+
+        runner.removeProperty(PublishPulsarRecord.MESSAGE_KEY_FIELD);
+        runner.setProperty(PublishPulsarRecord.USE_PULSAR_SCHEMA, "true");
+        runner.assertNotValid();
+    }
+
     @Test
     public void invalidTopicTest() throws UnsupportedEncodingException, PulsarClientException {
         runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, "${topic}");
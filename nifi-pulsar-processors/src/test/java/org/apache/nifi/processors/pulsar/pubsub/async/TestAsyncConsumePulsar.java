@@ -17,7 +17,8 @@
 package org.apache.nifi.processors.pulsar.pubsub.async;
 
 import static org.junit.Assert.assertEquals;
-import static org.mockito.Mockito.times;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -47,7 +48,7 @@ public class TestAsyncConsumePulsar extends TestConsumePulsar {
         List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
         assertEquals(0, flowFiles.size());
 
-        verify(mockClientService.getMockConsumer(), times(0)).acknowledgeCumulativeAsync(mockMessage);
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeAsync(anyList());
     }
 
     @Test
@@ -63,7 +64,7 @@ public class TestAsyncConsumePulsar extends TestConsumePulsar {
 
         // Make sure no Flowfiles were generated
         List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
-        assertEquals(1, flowFiles.size());
+        assertEquals(0, flowFiles.size());
     }
 
     @Test
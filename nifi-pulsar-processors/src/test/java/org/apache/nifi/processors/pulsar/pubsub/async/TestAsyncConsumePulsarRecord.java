@@ -29,6 +29,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -55,7 +56,7 @@ public class TestAsyncConsumePulsarRecord extends TestConsumePulsarRecord {
         runner.run();
         runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_PARSE_FAILURE);
 
-        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulativeAsync(mockMessage);
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(Collections.singletonList(mockMessageId));
     }
 
     @Test
@@ -72,7 +73,7 @@ public class TestAsyncConsumePulsarRecord extends TestConsumePulsarRecord {
         runner.run();
         runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_PARSE_FAILURE);
 
-        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulativeAsync(mockMessage);
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(Collections.singletonList(mockMessageId));
     }
 
     /*
@@ -104,7 +105,7 @@ public class TestAsyncConsumePulsarRecord extends TestConsumePulsarRecord {
 
     /*
      * Send multiple messages on different topics,
-     * check if it creates two flow files by retaining the order of messages
+     * check if it creates two flow files, in the order in which their topics first appear
      */
     @Test
     public void multipleGoodMessagesOnTwoTopicsCreatesMultipleRecordsTest() throws IOException {
@@ -125,16 +126,16 @@ public class TestAsyncConsumePulsarRecord extends TestConsumePulsarRecord {
         runner.run(1, true);
 
         List<MockFlowFile> successFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
-        successFlowFiles.get(0).assertContentEquals("\"Z\",\"10\"\n\"F\",\"7\"\n".getBytes());
+        successFlowFiles.get(0).assertContentEquals("\"A\",\"9\"\n\"G\",\"1\"\n".getBytes());
         successFlowFiles.get(0).assertAttributeNotExists("avro.schema");
-        successFlowFiles.get(1).assertContentEquals("\"A\",\"9\"\n\"G\",\"1\"\n".getBytes());
+        successFlowFiles.get(1).assertContentEquals("\"Z\",\"10\"\n\"F\",\"7\"\n".getBytes());
         successFlowFiles.get(1).assertAttributeNotExists("avro.schema");
         assertEquals(2, successFlowFiles.size());
     }
 
     /*
      * Send multiple messages on different topics while updating schema for one topic,
-     * check if it creates two three files by retaining the order of messages
+     * check if it creates three flow files, in the order in which each topic and schema first appears
      */
     @Test
     public void multipleGoodMessagesWithSchemaUpdateOnTwoTopicsTest() throws IOException {
@@ -157,10 +158,10 @@ public class TestAsyncConsumePulsarRecord extends TestConsumePulsarRecord {
         runner.run(1, true);
 
         List<MockFlowFile> successFlowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
-        successFlowFiles.get(0).assertContentEquals("\"Z\",\"10\"\n\"F\",\"7\"\n".getBytes());
+        successFlowFiles.get(0).assertContentEquals("\"A\",\"9\"\n".getBytes());
         successFlowFiles.get(0).assertAttributeExists("avro.schema");
         successFlowFiles.get(0).assertAttributeEquals("avro.schema", schema1);
-        successFlowFiles.get(1).assertContentEquals("\"A\",\"9\"\n".getBytes());
+        successFlowFiles.get(1).assertContentEquals("\"Z\",\"10\"\n\"F\",\"7\"\n".getBytes());
         successFlowFiles.get(1).assertAttributeExists("avro.schema");
         successFlowFiles.get(1).assertAttributeEquals("avro.schema", schema1);
         successFlowFiles.get(2).assertContentEquals("\"G\",\"1\"\n".getBytes());
@@ -17,8 +17,10 @@
 package org.apache.nifi.processors.pulsar.pubsub.async;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -27,12 +29,15 @@ import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.nifi.processors.pulsar.pubsub.PublishPulsar;
 import org.apache.nifi.processors.pulsar.pubsub.PublishPulsarRecord;
 import org.apache.nifi.processors.pulsar.pubsub.TestPublishPulsar;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.junit.Test;
 
@@ -105,6 +110,47 @@ public class TestAsyncPublishPulsar extends TestPublishPulsar {
         verify(mockClientService.getMockTypedMessageBuilder(), times(count)).sendAsync();
     }
 
+    @Test
+    public void inFlightWindowTest() throws UnsupportedEncodingException {
+        int count = 250;
+        final String content = RandomStringUtils.randomAlphabetic(100);
+        final String demarcator = "\n";
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, demarcator);
+        runner.setProperty(PublishPulsar.ASYNC_ENABLED, Boolean.TRUE.toString());
+        runner.setProperty(PublishPulsar.MAX_IN_FLIGHT_MESSAGES, "10");
+        runner.setProperty(PublishPulsar.MAX_IN_FLIGHT_SIZE, "1 KB");
+
+        final StringBuffer sb = new StringBuffer();
+
+        for (int idx = 0; idx < count; idx++) {
+            sb.append(content).append(demarcator);
+        }
+
+        runner.enqueue(sb.toString().getBytes("UTF-8"));
+        runner.run(1, true, true);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+        verify(mockClientService.getMockTypedMessageBuilder(), times(count)).sendAsync();
+    }
+
+    @Test
+    public void failedSendTest() throws UnsupportedEncodingException {
+        final CompletableFuture<MessageId> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new PulsarClientException("broker unavailable"));
+
+        when(mockClientService.getMockTypedMessageBuilder().sendAsync()).thenReturn(failed);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_ENABLED, Boolean.TRUE.toString());
+
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_FAILURE);
+    }
+
     @Test
     public void pulsarClientExceptionTest() throws UnsupportedEncodingException {
 
@@ -174,6 +220,145 @@ public class TestAsyncPublishPulsar extends TestPublishPulsar {
         verify(mockClientService.getMockProducerBuilder(), times(1)).topic("topic-b");
     }
 
+    @Test
+    public void singleFlushPerTopicTest() throws UnsupportedEncodingException {
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_ENABLED, Boolean.TRUE.toString());
+
+        for (int idx = 0; idx < 20; idx++) {
+            runner.enqueue("some content".getBytes("UTF-8"));
+        }
+
+        runner.run(1, true, true);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 20);
+
+        // All of the FlowFiles are polled by a single trigger, and only wait for the broker once.
+        verify(mockClientService.getMockTypedMessageBuilder(), times(20)).sendAsync();
+        verify(mockClientService.getMockProducer(), times(1)).flushAsync();
+    }
+
+    @Test
+    public void failedSendInBatchTest() throws UnsupportedEncodingException {
+        final CompletableFuture<MessageId> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new PulsarClientException("broker unavailable"));
+
+        when(mockClientService.getMockTypedMessageBuilder().sendAsync())
+                .thenReturn(CompletableFuture.completedFuture(mock(MessageId.class)))
+                .thenReturn(failed)
+                .thenReturn(CompletableFuture.completedFuture(mock(MessageId.class)));
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_ENABLED, Boolean.TRUE.toString());
+
+        runner.enqueue("first".getBytes("UTF-8"));
+        runner.enqueue("second".getBytes("UTF-8"));
+        runner.enqueue("third".getBytes("UTF-8"));
+        runner.run(1, true, true);
+
+        // Only the FlowFile whose message failed is routed to failure, even though all three were sent on one producer.
+        runner.assertTransferCount(PublishPulsar.REL_SUCCESS, 2);
+        runner.assertTransferCount(PublishPulsar.REL_FAILURE, 1);
+        runner.getFlowFilesForRelationship(PublishPulsar.REL_FAILURE).get(0).assertContentEquals("second");
+    }
+
+    @Test
+    public void asyncCommitTest() throws UnsupportedEncodingException {
+        final CompletableFuture<MessageId> pending = new CompletableFuture<>();
+
+        when(mockClientService.getMockTypedMessageBuilder().sendAsync()).thenReturn(pending);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_COMMIT_ENABLED, Boolean.TRUE.toString());
+
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run(1, false, true);
+
+        // The run returns without waiting for the broker, and the FlowFile is only routed once it has responded.
+        assertEquals(0, runner.getQueueSize().getObjectCount());
+        runner.assertTransferCount(PublishPulsar.REL_SUCCESS, 0);
+
+        // Stopping the processor waits for the commit, which runs on the processor's commit executor
+        pending.complete(mock(MessageId.class));
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 1);
+    }
+
+    @Test
+    public void pendingCommitTimeoutTest() throws UnsupportedEncodingException {
+        final CompletableFuture<MessageId> pending = new CompletableFuture<>();
+
+        when(mockClientService.getMockTypedMessageBuilder().sendAsync()).thenReturn(pending);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+        when(mockClientService.getMockProducer().closeAsync()).thenReturn(CompletableFuture.completedFuture(null));
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_COMMIT_ENABLED, Boolean.TRUE.toString());
+        runner.setProperty(PublishPulsar.PENDING_COMMIT_TIMEOUT, "100 ms");
+
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run(1, false, true);
+
+        // The broker never responds, so stopping gives up on the session and returns the FlowFile to the queue
+        runner.run(1, true, false);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        runner.assertTransferCount(PublishPulsar.REL_SUCCESS, 0);
+        runner.assertTransferCount(PublishPulsar.REL_FAILURE, 0);
+        verify(mockClientService.getMockProducer()).closeAsync();
+    }
+
+    @Test
+    public void maxPendingCommitsTest()throws UnsupportedEncodingException {
+        final CompletableFuture<MessageId> pending = new CompletableFuture<>();
+
+        when(mockClientService.getMockTypedMessageBuilder().sendAsync()).thenReturn(pending);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_COMMIT_ENABLED, Boolean.TRUE.toString());
+        runner.setProperty(PublishPulsar.MAX_PENDING_COMMITS, "1");
+        runner.setProperty(PublishPulsar.MAX_POLL_FLOWFILES, "1");
+        runner.setProperty(PublishPulsar.MAX_POLL_DURATION, "50 ms");
+
+        runner.enqueue("first".getBytes("UTF-8"));
+        runner.enqueue("second".getBytes("UTF-8"));
+        runner.run(2, false, true);
+
+        // The second run leaves the queue alone while the first session is pending, but the processor is busy
+        // rather than idle, so it must not yield.
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        assertFalse(((MockProcessContext) runner.getProcessContext()).isYieldCalled());
+
+        pending.complete(mock(MessageId.class));
+        runner.run(1, true, false);
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS, 2);
+    }
+
+    @Test
+    public void asyncCommitFailedSendTest() throws UnsupportedEncodingException {
+        final CompletableFuture<MessageId> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new PulsarClientException("broker unavailable"));
+
+        when(mockClientService.getMockTypedMessageBuilder().sendAsync())
+                .thenReturn(CompletableFuture.completedFuture(mock(MessageId.class)))
+                .thenReturn(failed);
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.ASYNC_COMMIT_ENABLED, Boolean.TRUE.toString());
+
+        runner.enqueue("first".getBytes("UTF-8"));
+        runner.enqueue("second".getBytes("UTF-8"));
+        runner.run(1, true, true);
+
+        runner.assertTransferCount(PublishPulsar.REL_SUCCESS, 1);
+        runner.assertTransferCount(PublishPulsar.REL_FAILURE, 1);
+        runner.getFlowFilesForRelationship(PublishPulsar.REL_FAILURE).get(0).assertContentEquals("second");
+    }
+
     @Test
     public void mappedPropertiesTest() throws UnsupportedEncodingException {
         runner.setProperty(PublishPulsar.ASYNC_ENABLED, Boolean.toString(true));
@@ -27,12 +27,15 @@ import java.util.stream.Collectors;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.pulsar.PulsarClientService;
 import org.apache.pulsar.client.admin.PulsarAdmin;
+import org.apache.pulsar.client.api.BatchReceivePolicy;
 import org.apache.pulsar.client.api.CompressionType;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.ConsumerBuilder;
 import org.apache.pulsar.client.api.ConsumerCryptoFailureAction;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Messages;
 import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.MessageListener;
 import org.apache.pulsar.client.api.MessageRoutingMode;
 import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.ProducerBuilder;
@@ -86,6 +89,10 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
     @Mock
     SchemaInfo mockSchema = mock(SchemaInfo.class);
 
+    private BatchReceivePolicy batchReceivePolicy;
+
+    private MessageListener<GenericRecord> messageListener;
+
     @Mock
     MessageId mockMessageId = mock(MessageId.class);
 
@@ -93,6 +100,7 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
 
     public MockPulsarClientService() {
         when(mockClient.newProducer()).thenReturn((ProducerBuilder<byte[]>) mockProducerBuilder);
+        when(mockClient.newProducer(any(Schema.class))).thenReturn(mockProducerBuilder);
         when(mockClient.newConsumer(Schema.AUTO_CONSUME())).thenReturn((ConsumerBuilder<GenericRecord>) mockConsumerBuilder);
         when(mockClient.newConsumer(any(Schema.class))).thenReturn((ConsumerBuilder<GenericRecord>) mockConsumerBuilder);
 
@@ -123,12 +131,47 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
         when(mockConsumerBuilder.replicateSubscriptionState(anyBoolean())).thenReturn(mockConsumerBuilder);
         when(mockConsumerBuilder.autoUpdatePartitions(anyBoolean())).thenReturn(mockConsumerBuilder);
         when(mockConsumerBuilder.autoUpdatePartitionsInterval(anyInt(), any(TimeUnit.class))).thenReturn(mockConsumerBuilder);
+        when(mockConsumerBuilder.messageListener(any(MessageListener.class))).thenAnswer(invocation -> {
+            messageListener = invocation.getArgument(0);
+            return mockConsumerBuilder;
+        });
+        when(mockConsumerBuilder.batchReceivePolicy(any(BatchReceivePolicy.class))).thenAnswer(invocation -> {
+            batchReceivePolicy = invocation.getArgument(0);
+            return mockConsumerBuilder;
+        });
 
         when(mockSchema.getType()).thenReturn(SchemaType.BYTES);
 
         try {
             when(mockConsumerBuilder.subscribe()).thenReturn(mockConsumer);
             when(mockConsumer.isConnected()).thenReturn(true);
+            when(mockConsumer.acknowledgeAsync(any(List.class))).thenReturn(CompletableFuture.completedFuture(null));
+            when(mockConsumer.acknowledgeCumulativeAsync((MessageId) any())).thenReturn(CompletableFuture.completedFuture(null));
+
+            // Batches are made up of the messages that the consumer's receive(0, SECONDS) stub hands out, so that
+            // tests can define the message sequence either way.
+            when(mockConsumer.batchReceive()).thenAnswer(invocation -> {
+                final int maxMessages = batchReceivePolicy == null || batchReceivePolicy.getMaxNumMessages() <= 0
+                        ? Integer.MAX_VALUE : batchReceivePolicy.getMaxNumMessages();
+
+                final List<Message<GenericRecord>> batch = new ArrayList<>();
+                Message<GenericRecord> msg;
+                while (batch.size() < maxMessages && (msg = mockConsumer.receive(0, TimeUnit.SECONDS)) != null) {
+                    batch.add(msg);
+                }
+
+                return new Messages<GenericRecord>() {
+                    @Override
+                    public int size() {
+                        return batch.size();
+                    }
+
+                    @Override
+                    public Iterator<Message<GenericRecord>> iterator() {
+                        return batch.iterator();
+                    }
+                };
+            });
 
             if (mockMessages.length >1 ) {
                 setMockMessages(Arrays.asList(mockMessages));
@@ -232,6 +275,7 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
             when(mockProducer.newMessage()).thenReturn(mockTypedMessageBuilder);
             when(mockTypedMessageBuilder.key(anyString())).thenReturn(mockTypedMessageBuilder);
             when(mockTypedMessageBuilder.properties((Map<String, String>) any(Map.class))).thenReturn(mockTypedMessageBuilder);
+            when(mockTypedMessageBuilder.value(any())).thenReturn(mockTypedMessageBuilder);
             when(mockTypedMessageBuilder.value((T) any(byte[].class))).thenReturn(mockTypedMessageBuilder);
             when(mockTypedMessageBuilder.send()).thenReturn(mockMessageId);
             when(mockTypedMessageBuilder.sendAsync()).thenReturn(future);
@@ -245,6 +289,13 @@ public class MockPulsarClientService<T> extends AbstractControllerService implem
         return mockConsumer;
     }
 
+    /**
+     * Returns the listener that the processor registered on the consumer, if any, so that tests can push messages to it.
+     */
+    public MessageListener<GenericRecord> getMessageListener() {
+        return messageListener;
+    }
+
     public ProducerBuilder<T> getMockProducerBuilder() {
         return mockProducerBuilder;
     }
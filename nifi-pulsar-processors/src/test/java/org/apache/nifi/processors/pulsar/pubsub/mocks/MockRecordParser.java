@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.logging.ComponentLog;
@@ -43,6 +44,8 @@ public class MockRecordParser extends AbstractControllerService implements Recor
     private final List<Object[]> records = new ArrayList<>();
     private final List<RecordField> fields = new ArrayList<>();
     private final int failAfterN;
+    private final AtomicInteger readerCount = new AtomicInteger(0);
+    private final AtomicInteger schemaCount = new AtomicInteger(0);
 
     public MockRecordParser() {
         this(Integer.MAX_VALUE);
@@ -60,9 +63,18 @@ public class MockRecordParser extends AbstractControllerService implements Recor
         records.add(values);
     }
 
+    public int getReaderCount() {
+        return readerCount.get();
+    }
+
+    public int getSchemaCount() {
+        return schemaCount.get();
+    }
+
     @Override
     public RecordReader createRecordReader(Map<String, String> variables, InputStream in, long arg2, ComponentLog logger)
           throws MalformedRecordException, IOException, SchemaNotFoundException {
+        readerCount.incrementAndGet();
         final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 
         return new RecordReader() {
@@ -102,6 +114,7 @@ public class MockRecordParser extends AbstractControllerService implements Recor
 
             @Override
             public RecordSchema getSchema() {
+                schemaCount.incrementAndGet();
                 return new SimpleRecordSchema(fields);
             }
         };
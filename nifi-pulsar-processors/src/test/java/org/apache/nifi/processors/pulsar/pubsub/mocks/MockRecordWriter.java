@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.logging.ComponentLog;
@@ -36,19 +37,38 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
     private final String header;
     private final int failAfterN;
     private final boolean quoteValues;
+    private final boolean headerPerWriter;
+    private final AtomicInteger writersCreated = new AtomicInteger(0);
 
     public MockRecordWriter(final String header) {
         this(header, true, -1);
     }
 
+    /**
+     * @param headerPerWriter if true, each writer writes the header before the first record it writes,
+     *   like a CSV writer would.
+     */
+    public MockRecordWriter(final String header, final boolean quoteValues, final boolean headerPerWriter) {
+        this(header, quoteValues, -1, headerPerWriter);
+    }
+
     public MockRecordWriter(final String header, final boolean quoteValues) {
         this(header, quoteValues, -1);
     }
 
     public MockRecordWriter(final String header, final boolean quoteValues, final int failAfterN) {
+        this(header, quoteValues, failAfterN, false);
+    }
+
+    private MockRecordWriter(final String header, final boolean quoteValues, final int failAfterN, final boolean headerPerWriter) {
         this.header = header;
         this.quoteValues = quoteValues;
         this.failAfterN = failAfterN;
+        this.headerPerWriter = headerPerWriter;
+    }
+
+    public int getWritersCreated() {
+        return writersCreated.get();
     }
 
     @Override
@@ -59,6 +79,7 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
     @Override
     public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out,
                Map<String, String> args) throws SchemaNotFoundException, IOException {
+        writersCreated.incrementAndGet();
         return new RecordSetWriter() {
 
             private int recordCount = 0;
@@ -115,6 +136,11 @@ public class MockRecordWriter extends AbstractControllerService implements Recor
                     throw new IOException("Unit Test intentionally throwing IOException after " + failAfterN + " records were written");
                 }
 
+                if (headerPerWriter && recordCount == 1) {
+                    out.write(header.getBytes());
+                    out.write("\n".getBytes());
+                }
+
                 int i = 0;
                 final int numCols = 2;
 
@@ -17,18 +17,36 @@
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsar;
 import org.apache.nifi.processors.pulsar.pubsub.TestConsumePulsar;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.MessageListener;
+import org.apache.pulsar.client.api.Messages;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.schema.GenericRecord;
 import org.junit.Test;
 
 public class TestSyncConsumePulsar extends TestConsumePulsar {
@@ -49,7 +67,7 @@ public class TestSyncConsumePulsar extends TestConsumePulsar {
         List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
         assertEquals(0, flowFiles.size());
 
-        verify(mockClientService.getMockConsumer(), atLeast(1)).acknowledgeCumulative(mockMessage);
+        verify(mockClientService.getMockConsumer(), atLeast(1)).acknowledgeAsync(anyList());
     }
 
     @Test
@@ -66,7 +84,7 @@ public class TestSyncConsumePulsar extends TestConsumePulsar {
         List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
         assertEquals(0, flowFiles.size());
 
-        verify(mockClientService.getMockConsumer(), times(0)).acknowledge(mockMessage);
+        verify(mockClientService.getMockConsumer(), never()).acknowledgeAsync(anyList());
     }
 
     @Test
@@ -85,7 +103,7 @@ public class TestSyncConsumePulsar extends TestConsumePulsar {
         List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
         assertEquals(0, flowFiles.size());
 
-        verify(mockClientService.getMockConsumer(), atLeast(1)).acknowledgeCumulative(mockMessage);
+        verify(mockClientService.getMockConsumer(), atLeast(1)).acknowledgeAsync(anyList());
     }
 
     @Test
@@ -107,4 +125,215 @@ public class TestSyncConsumePulsar extends TestConsumePulsar {
     public void mappedAttributesTest() throws PulsarClientException {
         super.doMappedAttributesTest();
     }
+
+    @Test
+    public void batchReceivePolicyTest() throws PulsarClientException {
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_SIZE, "50");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_MAX_SIZE, "1 MB");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_TIMEOUT, "250 ms");
+        runner.run();
+
+        verify(mockClientService.getMockConsumerBuilder()).batchReceivePolicy(argThat(policy -> policy.getMaxNumMessages() == 50
+                && policy.getMaxNumBytes() == 1024 * 1024 && policy.getTimeoutMs() == 250));
+
+        // An empty topic results in a single, empty batch rather than repeated polling
+        verify(mockClientService.getMockConsumer(), times(1)).batchReceive();
+        assertEquals(0, runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).size());
+    }
+
+    @Test
+    public void maxFlowFileSizeTest() throws PulsarClientException {
+        when(mockMessage.getData()).thenReturn("0123456789".getBytes());
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+                .thenReturn(mockMessage, mockMessage, mockMessage, mockMessage, mockMessage, null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.MAX_FLOWFILE_SIZE, "25 B");
+        runner.run();
+
+        // Two messages and a demarcator take 21 bytes, so a third one would not fit
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(3, flowFiles.size());
+        flowFiles.get(0).assertContentEquals("0123456789\n0123456789");
+        flowFiles.get(1).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "2");
+        flowFiles.get(2).assertContentEquals("0123456789");
+        flowFiles.get(2).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "1");
+    }
+
+    @Test
+    public void maxBundleLatencyTest() throws PulsarClientException {
+        when(mockMessage.getData()).thenReturn("Mocked Message".getBytes());
+
+        // A trickle of messages, each of which arrives in a batch of its own
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS))
+                .thenReturn(mockMessage, null, mockMessage, null, mockMessage, null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.MAX_BUNDLE_LATENCY, "200 ms");
+        runner.run();
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "3");
+        verify(mockClientService.getMockConsumer(), atLeast(4)).batchReceive();
+    }
+
+    @Test
+    public void pauseAfterIdleTest() throws PulsarClientException {
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.PAUSE_AFTER_IDLE, "100 ms");
+        runner.run(1, false);
+
+        // The processor is not triggered again, as it would not be while its outbound connection is full
+        verify(mockClientService.getMockConsumer(), timeout(5000)).pause();
+        verify(mockClientService.getMockConsumer(), never()).resume();
+
+        runner.run(1, true, false);
+        verify(mockClientService.getMockConsumer()).resume();
+    }
+
+    @Test
+    public void stopWaitsForOutstandingAcksTest() throws PulsarClientException {
+        final CompletableFuture<Void> ack = new CompletableFuture<>();
+        when(mockClientService.getMockConsumer().acknowledgeAsync(Collections.singletonList(mockMessageId))).thenReturn(ack);
+        when(mockMessage.getData()).thenReturn("Mocked Message".getBytes());
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.CONSUMER_BATCH_SIZE, "1");
+        runner.run(1, false, true);
+
+        // The ack is sent once the session has committed, but onTrigger does not wait for the Broker to confirm it
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(Collections.singletonList(mockMessageId));
+        assertFalse(ack.isDone());
+
+        final ScheduledExecutorService broker = Executors.newSingleThreadScheduledExecutor();
+        try {
+            broker.schedule(() -> ack.complete(null), 200, TimeUnit.MILLISECONDS);
+
+            // Stopping the processor only returns once the outstanding ack has completed
+            runner.run(0, true, false);
+            assertTrue(ack.isDone());
+        } finally {
+            broker.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sharedSubscriptionConsumerPerTaskTest() throws PulsarClientException {
+        // Both tasks must be receiving at the same time for either of them to get past the barrier
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Messages<?> empty = mock(Messages.class);
+        doAnswer(invocation -> {
+            barrier.await(10, TimeUnit.SECONDS);
+            return empty;
+        }).when(mockClientService.getMockConsumer()).batchReceive();
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Shared");
+        runner.setThreadCount(2);
+        runner.run(2, false, true);
+
+        // Each task subscribed a consumer of its own
+        verify(mockClientService.getMockConsumerBuilder(), times(2)).subscribe();
+        verify(mockClientService.getMockConsumer(), times(2)).batchReceive();
+
+        // The consumers are re-used by later tasks, and closed when the processor stops
+        runner.setThreadCount(1);
+        barrier.reset();
+        doReturn(empty).when(mockClientService.getMockConsumer()).batchReceive();
+        runner.run(3, true, false);
+        verify(mockClientService.getMockConsumerBuilder(), times(2)).subscribe();
+        verify(mockClientService.getMockConsumer(), times(2)).close();
+    }
+
+    @Test
+    public void exclusiveSubscriptionSharedConsumerTest() throws PulsarClientException {
+        when(mockClientService.getMockConsumer().receive(0, TimeUnit.SECONDS)).thenReturn(null);
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setThreadCount(2);
+        runner.run(4);
+
+        // Only one consumer may subscribe to an Exclusive subscription
+        verify(mockClientService.getMockConsumerBuilder(), times(1)).subscribe();
+    }
+
+    @Test
+    public void messageListenerTest() throws PulsarClientException {
+        when(mockMessage.getData()).thenReturn("Mocked Message".getBytes());
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.setProperty(ConsumePulsar.MESSAGE_LISTENER_ENABLED, "true");
+
+        // The first trigger subscribes, but nothing has been pushed to the listener yet
+        runner.run(1, false, true);
+        assertEquals(0, runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS).size());
+
+        final MessageListener<GenericRecord> listener = mockClientService.getMessageListener();
+        for (int idx = 0; idx < 3; idx++) {
+            listener.received(mockClientService.getMockConsumer(), mockMessage);
+        }
+
+        runner.run(1, true, false);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsar.REL_SUCCESS);
+        assertEquals(1, flowFiles.size());
+        flowFiles.get(0).assertAttributeEquals(ConsumePulsar.MSG_COUNT, "3");
+        flowFiles.get(0).assertContentEquals("Mocked Message\nMocked Message\nMocked Message");
+
+        // Messages are only ever pushed to the listener, never pulled
+        verify(mockClientService.getMockConsumer(), never()).batchReceive();
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(argThat((List<MessageId> ids) -> ids.size() == 3));
+    }
+
+    @Test
+    public void messageListenerBackPressureTest() throws PulsarClientException {
+        when(mockMessage.getData()).thenReturn("Mocked Message".getBytes());
+
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.MESSAGE_LISTENER_ENABLED, "true");
+        runner.setProperty(ConsumePulsar.LISTENER_QUEUE_SIZE, "4");
+        runner.run(1, false, true);
+
+        final MessageListener<GenericRecord> listener = mockClientService.getMessageListener();
+        for (int idx = 0; idx < 4; idx++) {
+            listener.received(mockClientService.getMockConsumer(), mockMessage);
+        }
+
+        // The queue is full, so the consumer must stop receiving until it has been drained
+        verify(mockClientService.getMockConsumer(), times(1)).pause();
+        verify(mockClientService.getMockConsumer(), never()).resume();
+
+        runner.run(1, true, false);
+        verify(mockClientService.getMockConsumer(), times(1)).resume();
+    }
+
+    @Test
+    public void messageListenerWithAsyncTest() {
+        runner.setProperty(ConsumePulsar.TOPICS, "foo");
+        runner.setProperty(ConsumePulsar.SUBSCRIPTION_NAME, "bar");
+        runner.setProperty(ConsumePulsar.MESSAGE_LISTENER_ENABLED, "true");
+        runner.assertValid();
+
+        runner.setProperty(ConsumePulsar.ASYNC_ENABLED, "true");
+        runner.assertNotValid();
+    }
 }
@@ -18,17 +18,35 @@ package org.apache.nifi.processors.pulsar.pubsub.sync;
 
 import org.apache.nifi.processors.pulsar.pubsub.ConsumePulsarRecord;
 import org.apache.nifi.processors.pulsar.pubsub.TestConsumePulsarRecord;
+import org.apache.nifi.processors.pulsar.utils.PulsarRecordSchema;
+import org.apache.nifi.processors.pulsar.utils.PulsarSchemaUtils;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.client.api.schema.GenericSchema;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.argThat;
 
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 public class TestSyncConsumePulsarRecord extends TestConsumePulsarRecord {
 
@@ -45,7 +63,7 @@ public class TestSyncConsumePulsarRecord extends TestConsumePulsarRecord {
         runner.run();
         runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_PARSE_FAILURE);
 
-        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(Collections.singletonList(mockMessageId));
     }
 
     @Test
@@ -62,7 +80,7 @@ public class TestSyncConsumePulsarRecord extends TestConsumePulsarRecord {
         runner.run();
         runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_PARSE_FAILURE);
 
-        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeCumulative(mockMessage);
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(Collections.singletonList(mockMessageId));
     }
 
     /*
@@ -167,4 +185,150 @@ public class TestSyncConsumePulsarRecord extends TestConsumePulsarRecord {
     public void mappedAttributesTest() throws PulsarClientException {
         super.doMappedAttributesTest();
     }
+
+    /*
+     * The first message of a FlowFile is read by a single reader, which also provides the schema
+     */
+    @Test
+    public void singleReaderPerMessageTest() throws PulsarClientException {
+        this.sendMessages(MOCKED_MSG, false, 1, 5);
+        assertEquals(5, readerService.getReaderCount());
+    }
+
+    /*
+     * Messages with a Pulsar schema version only have their schema read once per version
+     */
+    @Test
+    public void schemaVersionCacheTest() throws PulsarClientException {
+        when(mockMessage.getSchemaVersion()).thenReturn(new byte[] {0, 0, 0, 0, 0, 0, 0, 1});
+        this.sendMessages(MOCKED_MSG, false, 3);
+        assertEquals(1, readerService.getSchemaCount());
+        assertEquals(3, readerService.getReaderCount());
+    }
+
+    /*
+     * Messages without a schema version have their schema read for every FlowFile
+     */
+    @Test
+    public void noSchemaVersionTest() throws PulsarClientException {
+        this.sendMessages(MOCKED_MSG, false, 3);
+        assertEquals(3, readerService.getSchemaCount());
+    }
+
+    /*
+     * Messages with a Pulsar schema are converted from the decoded GenericRecord, without a Record Reader
+     */
+    @Test
+    public void pulsarSchemaTest() throws PulsarClientException {
+        final RecordSchema schema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("name", RecordFieldType.STRING.getDataType()),
+                new RecordField("age", RecordFieldType.INT.getDataType())));
+        final PulsarRecordSchema pulsarSchema = PulsarSchemaUtils.toPulsarRecordSchema(schema);
+
+        final Map<String, Object> values = new HashMap<>();
+        values.put("name", "Mary Jane");
+        values.put("age", 32);
+        final GenericRecord value = PulsarSchemaUtils.toGenericRecord(new MapRecord(schema, values), pulsarSchema);
+
+        when(mockMessage.getValue()).thenReturn(value);
+        when(mockMessage.getReaderSchema()).thenReturn(Optional.<Schema<?>>of(pulsarSchema.getPulsarSchema()));
+        when(mockMessage.getSchemaVersion()).thenReturn(new byte[] {0, 0, 0, 0, 0, 0, 0, 1});
+
+        runner.removeProperty(ConsumePulsarRecord.RECORD_READER);
+        runner.setProperty(ConsumePulsarRecord.USE_PULSAR_SCHEMA, "true");
+        List<MockFlowFile> results = this.sendMessages("not parsed", false, 2, 3);
+
+        results.get(0).assertContentEquals("\"Mary Jane\",\"32\"\n\"Mary Jane\",\"32\"\n\"Mary Jane\",\"32\"\n");
+        assertEquals(0, readerService.getReaderCount());
+    }
+
+    /*
+     * Messages without a Pulsar schema cannot be parsed if there is no Record Reader
+     */
+    @Test
+    public void pulsarSchemaWithoutReaderTest() throws PulsarClientException {
+        when(mockMessage.getData()).thenReturn(MOCKED_MSG.getBytes());
+        when(mockMessage.getTopicName()).thenReturn(DEFAULT_TOPIC);
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.removeProperty(ConsumePulsarRecord.RECORD_READER);
+        runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+        runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+        runner.setProperty(ConsumePulsarRecord.CONSUMER_BATCH_SIZE, 1 + "");
+        runner.assertNotValid();
+
+        runner.setProperty(ConsumePulsarRecord.USE_PULSAR_SCHEMA, "true");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_PARSE_FAILURE, 1);
+    }
+
+    /*
+     * The full text of an AVRO schema is written to the avro.schema attribute by default
+     */
+    @Test
+    public void schemaTextAttributeTest() throws PulsarClientException {
+        final GenericSchema<GenericRecord> pulsarSchema = mockAvroSchema(3);
+
+        List<MockFlowFile> results = this.sendMessages(MOCKED_MSG, false, 1, 2);
+
+        results.get(0).assertAttributeEquals(ConsumePulsarRecord.AVRO_SCHEMA, new String(pulsarSchema.getSchemaInfo().getSchema()));
+        results.get(0).assertAttributeNotExists(ConsumePulsarRecord.SCHEMA_VERSION);
+    }
+
+    /*
+     * Only the schema version is written when the Schema Attribute property asks for it
+     */
+    @Test
+    public void schemaVersionAttributeTest() throws PulsarClientException {
+        mockAvroSchema(3);
+
+        runner.setProperty(ConsumePulsarRecord.SCHEMA_ATTRIBUTE, "Schema Version");
+        List<MockFlowFile> results = this.sendMessages(MOCKED_MSG, false, 1, 2);
+
+        results.get(0).assertAttributeEquals(ConsumePulsarRecord.SCHEMA_VERSION, "3");
+        results.get(0).assertAttributeNotExists(ConsumePulsarRecord.AVRO_SCHEMA);
+    }
+
+    private GenericSchema<GenericRecord> mockAvroSchema(long version) {
+        final GenericSchema<GenericRecord> pulsarSchema = PulsarSchemaUtils.toPulsarSchema(new SimpleRecordSchema(Arrays.asList(
+                new RecordField("name", RecordFieldType.STRING.getDataType()),
+                new RecordField("age", RecordFieldType.INT.getDataType()))));
+
+        when(mockMessage.getReaderSchema()).thenReturn(Optional.<Schema<?>>of(pulsarSchema));
+        when(mockMessage.getSchemaVersion()).thenReturn(ByteBuffer.allocate(Long.BYTES).putLong(version).array());
+        return pulsarSchema;
+    }
+
+    /*
+     * Interleaved messages are routed to one bundle per distinct attribute set, rather than
+     * starting a new FlowFile each time the attributes change
+     */
+    @Test
+    public void interleavedBundlesTest() throws PulsarClientException {
+        when(mockMessage.getData()).thenReturn("A,10".getBytes())
+            .thenReturn("B,10".getBytes())
+            .thenReturn("C,10".getBytes())
+            .thenReturn("D,10".getBytes());
+        when(mockMessage.getProperty("prop")).thenReturn("x")
+            .thenReturn("y")
+            .thenReturn("x")
+            .thenReturn("y");
+        when(mockMessage.getTopicName()).thenReturn(DEFAULT_TOPIC);
+        mockClientService.setMockMessage(mockMessage);
+
+        runner.setProperty(ConsumePulsarRecord.MAPPED_FLOWFILE_ATTRIBUTES, "prop");
+        runner.setProperty(ConsumePulsarRecord.CONSUMER_BATCH_SIZE, "4");
+        runner.setProperty(ConsumePulsarRecord.TOPICS, DEFAULT_TOPIC);
+        runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_NAME, DEFAULT_SUB);
+        runner.setProperty(ConsumePulsarRecord.SUBSCRIPTION_TYPE, "Exclusive");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ConsumePulsarRecord.REL_SUCCESS, 2);
+
+        List<MockFlowFile> flowFiles = runner.getFlowFilesForRelationship(ConsumePulsarRecord.REL_SUCCESS);
+        flowFiles.get(0).assertAttributeEquals("prop", "x");
+        flowFiles.get(0).assertContentEquals("\"A\",\"10\"\n\"C\",\"10\"\n");
+        flowFiles.get(1).assertAttributeEquals("prop", "y");
+        flowFiles.get(1).assertContentEquals("\"B\",\"10\"\n\"D\",\"10\"\n");
+        verify(mockClientService.getMockConsumer(), times(1)).acknowledgeAsync(argThat((List<MessageId> ids) -> ids.size() == 4));
+    }
 }
@@ -24,17 +24,28 @@ import org.apache.nifi.processors.pulsar.pubsub.mocks.MockPulsarClientService;
 
 import org.apache.nifi.json.JsonTreeReader;
 import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import static org.apache.nifi.processors.pulsar.pubsub.PublishPulsarRecord.RECORD_READER;
 import static org.apache.nifi.processors.pulsar.pubsub.PublishPulsarRecord.RECORD_WRITER;
+import static org.junit.Assert.assertArrayEquals;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -46,6 +57,8 @@ public class TestSyncPublishJsonRecordAsBytes {
 
     protected MockPulsarClientService mockClientService;
 
+    protected JsonRecordSetWriter writerService;
+
     @Before
     public void setup() throws InitializationException {
 
@@ -57,7 +70,7 @@ public class TestSyncPublishJsonRecordAsBytes {
         runner.enableControllerService(readerService);
 
         final String writerId = "record-writer";
-        final JsonRecordSetWriter writerService = new JsonRecordSetWriter();
+        writerService = new JsonRecordSetWriter();
         runner.addControllerService(writerId, writerService);
         runner.enableControllerService(writerService);
 
@@ -154,4 +167,50 @@ public class TestSyncPublishJsonRecordAsBytes {
 //        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).value(content.getBytes());
         verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
     }
+
+    @Test
+    public void testArrayGroupingMessagesMatchFreshWriter() throws IOException {
+        assertMessagesMatchFreshWriter();
+    }
+
+    @Test
+    public void testOneLineGroupingMessagesMatchFreshWriter() throws IOException {
+        runner.disableControllerService(writerService);
+        runner.setProperty(writerService, JsonRecordSetWriter.OUTPUT_GROUPING, JsonRecordSetWriter.OUTPUT_ONELINE);
+        runner.enableControllerService(writerService);
+
+        assertMessagesMatchFreshWriter();
+    }
+
+    /**
+     * A long-lived JSON writer separates the records it writes, so every message must still be exactly what a
+     * writer of its own would write for the record.
+     */
+    private void assertMessagesMatchFreshWriter() throws IOException {
+        final String[] names = {"a", "b", "c", "d"};
+        final StringBuilder content = new StringBuilder("[");
+        for (int idx = 0; idx < names.length; idx++) {
+            content.append(idx == 0 ? "" : ",").append("{\"name\":\"").append(names[idx]).append("\"}");
+        }
+        content.append("]");
+
+        runner.enqueue(content.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+
+        final ArgumentCaptor<byte[]> values = ArgumentCaptor.forClass(byte[].class);
+        verify(mockClientService.getMockTypedMessageBuilder(), times(names.length)).value(values.capture());
+
+        final RecordSchema schema = new SimpleRecordSchema(
+                Collections.singletonList(new RecordField("name", RecordFieldType.STRING.getDataType())));
+        for (int idx = 0; idx < names.length; idx++) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            try (final RecordSetWriter writer = writerService.createWriter(runner.getLogger(), schema, expected, Collections.emptyMap())) {
+                writer.write(new MapRecord(schema, Collections.singletonMap("name", names[idx])));
+                writer.flush();
+            }
+            assertArrayEquals(expected.toByteArray(), values.getAllValues().get(idx));
+        }
+    }
 }
@@ -16,7 +16,12 @@
  */
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -24,12 +29,18 @@ import static org.mockito.Mockito.when;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 import org.apache.nifi.processors.pulsar.pubsub.PublishPulsar;
 import org.apache.nifi.processors.pulsar.pubsub.TestPublishPulsar;
+import org.apache.nifi.processors.pulsar.utils.PublisherLease;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 public class TestSyncPublishPulsar extends TestPublishPulsar {
 
@@ -142,6 +153,113 @@ public class TestSyncPublishPulsar extends TestPublishPulsar {
         verify(mockClientService.getMockTypedMessageBuilder(), times(20)).send();
     }
 
+    @Test
+    public void sendsOnPublishingThreadTest() throws UnsupportedEncodingException, PulsarClientException {
+        final Set<Thread> sendThreads = ConcurrentHashMap.newKeySet();
+        when(mockClientService.getMockTypedMessageBuilder().send()).thenAnswer(invocation -> {
+            sendThreads.add(Thread.currentThread());
+            return mock(MessageId.class);
+        });
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_DEMARCATOR, "\n");
+
+        final StringBuilder sb = new StringBuilder();
+        for (int idx = 0; idx < 20; idx++) {
+            sb.append("some content").append("\n");
+        }
+
+        runner.enqueue(sb.toString().getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        // Every blocking send happens on the thread that publishes the FlowFile, rather than on a pool of its own
+        verify(mockClientService.getMockTypedMessageBuilder(), times(20)).send();
+        assertEquals(1, sendThreads.size());
+        assertFalse(sendThreads.iterator().next() instanceof ForkJoinWorkerThread);
+    }
+
+    @Test
+    public void segmentedFlowFileTest() throws UnsupportedEncodingException, PulsarClientException {
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_SEGMENT_SIZE, "8 B");
+
+        final String content = "0123456789abcdefghij";
+        runner.enqueue(content.getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        final String uuid = runner.getFlowFilesForRelationship(PublishPulsar.REL_SUCCESS).get(0).getAttribute("uuid");
+        verify(mockClientService.getMockTypedMessageBuilder(), times(3)).send();
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).value("ghij".getBytes());
+
+        for (int idx = 0; idx < 3; idx++) {
+            Map<String, String> expectedProperties = new HashMap<String, String>();
+            expectedProperties.put(PublisherLease.FRAGMENT_ID, uuid);
+            expectedProperties.put(PublisherLease.FRAGMENT_INDEX, String.valueOf(idx));
+            expectedProperties.put(PublisherLease.FRAGMENT_COUNT, "3");
+            verify(mockClientService.getMockTypedMessageBuilder()).properties(expectedProperties);
+        }
+
+        // Without a message key, the segments are keyed by the fragment identifier so they share a partition
+        verify(mockClientService.getMockTypedMessageBuilder(), times(3)).key(uuid);
+    }
+
+    @Test
+    public void segmentedFlowFileOrderTest() throws UnsupportedEncodingException, PulsarClientException {
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_SEGMENT_SIZE, "4 B");
+
+        runner.enqueue("0123456789abcdefghij".getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        // Each segment is sent, and the broker has responded, before the next one is built
+        final String uuid = runner.getFlowFilesForRelationship(PublishPulsar.REL_SUCCESS).get(0).getAttribute("uuid");
+        final InOrder order = inOrder(mockClientService.getMockTypedMessageBuilder());
+        for (int idx = 0; idx < 5; idx++) {
+            final Map<String, String> expectedProperties = new HashMap<>();
+            expectedProperties.put(PublisherLease.FRAGMENT_ID, uuid);
+            expectedProperties.put(PublisherLease.FRAGMENT_INDEX, String.valueOf(idx));
+            expectedProperties.put(PublisherLease.FRAGMENT_COUNT, "5");
+            order.verify(mockClientService.getMockTypedMessageBuilder()).properties(expectedProperties);
+            order.verify(mockClientService.getMockTypedMessageBuilder()).send();
+        }
+    }
+
+    @Test
+    public void segmentedFlowFileWithKeyTest() throws UnsupportedEncodingException, PulsarClientException {
+        when(mockClientService.getMockProducer().getTopic()).thenReturn("my-topic");
+
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.MESSAGE_SEGMENT_SIZE, "8 B");
+        runner.setProperty(PublishPulsar.MESSAGE_KEY, "my-key");
+
+        runner.enqueue("0123456789abcdefghij".getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        verify(mockClientService.getMockTypedMessageBuilder(), times(3)).key("my-key");
+    }
+
+    @Test
+    public void chunkingEnabledTest() throws UnsupportedEncodingException, PulsarClientException {
+        runner.setProperty(PublishPulsar.TOPIC, "my-topic");
+        runner.setProperty(PublishPulsar.CHUNKING_ENABLED, "true");
+
+        runner.enqueue("some content".getBytes("UTF-8"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsar.REL_SUCCESS);
+
+        verify(mockClientService.getMockProducerBuilder()).loadConf(argThat((Map<String, Object> conf) ->
+                Boolean.TRUE.equals(conf.get("chunkingEnabled")) && Boolean.FALSE.equals(conf.get("enableBatching"))));
+    }
+
     @Test
     public void mappedPropertiesTest() throws UnsupportedEncodingException, PulsarClientException {
         super.doMappedPropertiesTest();
@@ -16,7 +16,9 @@
  */
 package org.apache.nifi.processors.pulsar.pubsub.sync;
 
+import static org.apache.nifi.processors.pulsar.pubsub.PublishPulsarRecord.RECORD_WRITER;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -28,8 +30,14 @@ import org.apache.nifi.processors.pulsar.AbstractPulsarProducerProcessor;
 import org.apache.nifi.processors.pulsar.pubsub.PublishPulsar;
 import org.apache.nifi.processors.pulsar.pubsub.PublishPulsarRecord;
 import org.apache.nifi.processors.pulsar.pubsub.TestPublishPulsarRecord;
+import org.apache.nifi.processors.pulsar.pubsub.mocks.MockRecordWriter;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.apache.pulsar.client.api.schema.GenericRecord;
+import org.apache.pulsar.common.schema.SchemaType;
 import org.junit.Test;
 
 public class TestSyncPublishPulsarRecord extends TestPublishPulsarRecord {
@@ -134,6 +142,51 @@ public class TestSyncPublishPulsarRecord extends TestPublishPulsarRecord {
         verify(mockClientService.getMockTypedMessageBuilder(), times(1000)).send();
     }
 
+    @Test
+    public void writerReuseTest() throws PulsarClientException, InitializationException {
+        final MockRecordWriter writerService = new MockRecordWriter("name, age");
+        runner.addControllerService("reusable-writer", writerService);
+        runner.enableControllerService(writerService);
+        runner.setProperty(RECORD_WRITER, "reusable-writer");
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int idx = 0; idx < 1000; idx++) {
+            sb.append("Mary Jane, 32").append("\n");
+        }
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+
+        // Two fresh writers to verify the output of the first two records, plus the one that is re-used
+        assertEquals(3, writerService.getWritersCreated());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1000)).value("\"Mary Jane\",\"32\"\n".getBytes());
+    }
+
+    @Test
+    public void writerWithHeaderIsNotReusedTest() throws PulsarClientException, InitializationException {
+        final MockRecordWriter writerService = new MockRecordWriter("name, age", true, true);
+        runner.addControllerService("header-writer", writerService);
+        runner.enableControllerService(writerService);
+        runner.setProperty(RECORD_WRITER, "header-writer");
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int idx = 0; idx < 10; idx++) {
+            sb.append("Mary Jane, 32").append("\n");
+        }
+
+        runner.enqueue(sb.toString());
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+
+        // Every message must still carry the header that a fresh writer produces
+        verify(mockClientService.getMockTypedMessageBuilder(), times(10)).value("name, age\n\"Mary Jane\",\"32\"\n".getBytes());
+    }
+
     @Test
     public void mappedPropertiesTest() throws UnsupportedEncodingException, PulsarClientException {
         super.doMappedPropertiesTest();
@@ -156,4 +209,79 @@ public class TestSyncPublishPulsarRecord extends TestPublishPulsarRecord {
         // Verify that we sent the data to topic-b.
         verify(mockClientService.getMockTypedMessageBuilder(), times(1)).key("Mary Jane");
     }
+
+    @Test
+    public void pulsarSchemaTest() throws PulsarClientException {
+        final String content = "Mary Jane, 32\nJohn Doe, 41";
+
+        runner.enqueue(content);
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.USE_PULSAR_SCHEMA, "true");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS).get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "2");
+
+        // The records are sent as GenericRecords on a schema-typed producer, rather than as bytes from the writer
+        verify(mockClientService.getPulsarClient(), times(1)).newProducer(argThat((Schema<?> schema) ->
+                schema.getSchemaInfo().getType() == SchemaType.AVRO));
+        verify(mockClientService.getPulsarClient(), times(0)).newProducer();
+        final TypedMessageBuilder<Object> messageBuilder = (TypedMessageBuilder) mockClientService.getMockTypedMessageBuilder();
+        verify(messageBuilder, times(1)).value(argThat(value -> value instanceof GenericRecord
+                && "Mary Jane".equals(((GenericRecord) value).getField("name")) && Integer.valueOf(32).equals(((GenericRecord) value).getField("age"))));
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+    }
+
+    @Test
+    public void pulsarSchemaProducerReuseTest() throws PulsarClientException {
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.USE_PULSAR_SCHEMA, "true");
+
+        for (int i = 0; i < 5; i++) {
+            runner.enqueue("Mary Jane, " + i);
+        }
+        runner.run(5);
+
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS, 5);
+
+        // All of the FlowFiles share a record schema, so a single producer is created and re-used
+        verify(mockClientService.getMockProducerBuilder(), times(1)).create();
+        verify(mockClientService.getMockTypedMessageBuilder(), times(5)).send();
+    }
+
+    @Test
+    public void passThroughTest() throws PulsarClientException {
+        final String content = "{\"name\":\"Mary Jane\",\"age\":32}\n\n{\"name\":\"John Doe\",\"age\":41}\n";
+
+        runner.enqueue(content);
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.RECORD_PASS_THROUGH, "Newline-Delimited");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS).get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "2");
+
+        // Each line is sent exactly as it was received, and the blank line is skipped
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).value("{\"name\":\"Mary Jane\",\"age\":32}".getBytes());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).value("{\"name\":\"John Doe\",\"age\":41}".getBytes());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+    }
+
+    @Test
+    public void passThroughCrlfTest() throws PulsarClientException {
+        final String content = "{\"name\":\"Mary Jane\",\"age\":32}\r\n\r\n{\"name\":\"John Doe\",\"age\":41}\r\n";
+
+        runner.enqueue(content);
+        runner.setProperty(AbstractPulsarProducerProcessor.TOPIC, TOPIC_NAME);
+        runner.setProperty(PublishPulsarRecord.RECORD_PASS_THROUGH, "Newline-Delimited");
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PublishPulsarRecord.REL_SUCCESS);
+        runner.getFlowFilesForRelationship(PublishPulsarRecord.REL_SUCCESS).get(0).assertAttributeEquals(PublishPulsarRecord.MSG_COUNT, "2");
+
+        // The carriage returns are dropped along with the newlines, so the blank line is still skipped
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).value("{\"name\":\"Mary Jane\",\"age\":32}".getBytes());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(1)).value("{\"name\":\"John Doe\",\"age\":41}".getBytes());
+        verify(mockClientService.getMockTypedMessageBuilder(), times(2)).send();
+    }
 }